@@ -0,0 +1,402 @@
+package clientside;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ * Клиентская библиотека поверх бинарного протокола для встраивания в другие сервисы. Потокобезопасна,
+ * операции возвращают CompletableFuture. К каждому узлу держится не больше connectionsPerNode соединений,
+ * запросы раскладываются по ним по кругу и уходят, не дожидаясь ответов на предыдущие.
+ * В кластере операция с каталогом идёт на его узел по кольцу, если владелец недоступен - на реплику.
+ * Текущий каталог на сервере - состояние соединения, поэтому use и команда после него отправляются
+ * под блокировкой соединения: use другого запроса между ними не вклинится.
+ */
+public class CatalogueClient implements Closeable {
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final int BODY_BLOCK = 256 * 1024;
+    private static final String SENT = "File sent successfully";
+
+    private final InetSocketAddress address;
+    private final int connectionsPerNode;
+    //Узел, к которому подключились первым; в кластере - его имя из ответа на cluster
+    private final String primary;
+    //null - сервер работает один
+    private final ClusterRing ring;
+    private final Map<String, NodePool> pools = new ConcurrentHashMap<>();
+    private final ExecutorService transfers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "catalogue-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Consumer<String> eventListener = event -> {
+    };
+
+    //Сколько отправлено байт файла из total; вызывается из потока передачи
+    public interface UploadProgress {
+        void update(long sent, long total);
+    }
+
+    private CatalogueClient(InetSocketAddress address, int connectionsPerNode, ClusterRing ring) {
+        this.address = address;
+        this.connectionsPerNode = connectionsPerNode;
+        this.ring = ring;
+        this.primary = ring != null ? ring.self() : address.getHostString() + ":" + address.getPort();
+    }
+
+    public static CatalogueClient connect(InetSocketAddress address) throws IOException {
+        return connect(address, DEFAULT_CONNECTIONS);
+    }
+
+    //Первое соединение открывается сразу: по нему узнаём состав кластера, остальные - по мере нужды
+    public static CatalogueClient connect(InetSocketAddress address, int connectionsPerNode) throws IOException {
+        FrameConnection connection = FrameConnection.connect(address);
+        try {
+            CatalogueClient client = new CatalogueClient(address, Math.max(1, connectionsPerNode),
+                    ClusterRing.parse(await(connection.submit("cluster"))));
+            client.pool(client.primary).lanes[0].adopt(connection);
+            return client;
+        } catch (IOException exception) {
+            connection.close();
+            throw exception;
+        }
+    }
+
+    //Рассылки сервера ([SERVER] ...): приходят по первому соединению с каждым узлом
+    public void onEvent(Consumer<String> listener) {
+        this.eventListener = listener;
+    }
+
+    //Каталоги сервера, без строки о текущем каталоге соединения
+    public CompletableFuture<List<String>> listCatalogues() {
+        return async(() -> onNode(null, lane -> lane.open(null, "catalogs", false)))
+                .thenCompose(FrameConnection.Exchange::reply)
+                .thenApply(reply -> {
+                    List<String> names = new ArrayList<>(Arrays.asList(reply.split("\n")));
+                    names.remove(names.size() - 1);
+                    return names;
+                });
+    }
+
+    //Проверяет, что каталог есть и доступен, и выбирает его на одном из соединений; ответ - ответ сервера на use
+    public CompletableFuture<String> use(String catalogue) {
+        return async(() -> onNode(catalogue, lane -> lane.select(catalogue)));
+    }
+
+    public CompletableFuture<List<String>> listFiles(String catalogue) {
+        return listFiles(catalogue, false);
+    }
+
+    //Все страницы листинга; detailed - записи files -l: "размер время sha256|- путь"
+    public CompletableFuture<List<String>> listFiles(String catalogue, boolean detailed) {
+        return listPage(catalogue, "files " + (detailed ? "-l " : "") + catalogue, new ArrayList<>());
+    }
+
+    private CompletableFuture<List<String>> listPage(String catalogue, String command, List<String> files) {
+        return async(() -> {
+            FrameConnection.Exchange exchange = onNode(catalogue, lane -> lane.open(null, command, true));
+            try {
+                readListing(exchange.input(), exchange.compression(), files::add);
+            } catch (IOException exception) {
+                //Поток данных оборвался ошибкой запроса - она понятнее, чем конец потока
+                await(exchange.reply());
+                throw exception;
+            }
+            return exchange;
+        }).thenCompose(FrameConnection.Exchange::reply).thenCompose(reply -> {
+            if (!reply.startsWith("Listed ")) {
+                throw new CompletionException(new IOException(reply));
+            }
+            //Следующая страница: "Listed N file(s), more: files <каталог> cursor=<токен>"
+            int more = reply.indexOf(", more: ");
+            return more >= 0 ? listPage(catalogue, reply.substring(more + ", more: ".length()), files)
+                    : CompletableFuture.completedFuture(files);
+        });
+    }
+
+    //Пути найденных файлов на сервере: часть имени или шаблон с * и ?, собираются все страницы выдачи
+    public CompletableFuture<List<String>> search(String catalogue, String query) {
+        return searchPage(catalogue, query, new ArrayList<>());
+    }
+
+    private CompletableFuture<List<String>> searchPage(String catalogue, String query, List<String> found) {
+        return async(() -> onNode(catalogue, lane -> lane.open(catalogue, "search " + query, false)))
+                .thenCompose(FrameConnection.Exchange::reply)
+                .thenCompose(reply -> {
+                    for (String line : reply.split("\n")) {
+                        int path = line.indexOf(" on path: ");
+                        if (line.startsWith("found ") && path >= 0) {
+                            found.add(line.substring(path + " on path: ".length()));
+                        }
+                    }
+                    int more = reply.lastIndexOf(", more: search ");
+                    return more >= 0 ? searchPage(catalogue, reply.substring(more + ", more: search ".length()), found)
+                            : CompletableFuture.completedFuture(found);
+                });
+    }
+
+    public CompletableFuture<String> upload(String catalogue, Path file) {
+        return upload(catalogue, file, null);
+    }
+
+    //send одного файла; future завершается ошибкой, если сервер файл не принял (например, он уже есть)
+    public CompletableFuture<String> upload(String catalogue, Path file, UploadProgress progress) {
+        return async(() -> {
+            if (!Files.isRegularFile(file)) {
+                throw new NoSuchFileException(file.toString());
+            }
+            FrameConnection.Exchange exchange = onNode(catalogue, lane -> lane.open(catalogue, "send " + file, false));
+            DataOutputStream body = exchange.body();
+            body.writeUTF(file.toString());
+            sendFile(file, body, exchange.compression(), progress);
+            body.close();
+            return exchange;
+        }).thenCompose(FrameConnection.Exchange::reply).thenApply(reply -> {
+            if (!reply.equals(SENT)) {
+                throw new CompletionException(new IOException(reply));
+            }
+            return reply;
+        });
+    }
+
+    //Произвольная команда в выбранном каталоге (null - без выбора) для команд, у которых нет своего метода.
+    //Блокирует на время подключения и use; keepData - как у FrameConnection.open
+    FrameConnection.Exchange open(String catalogue, String command, boolean keepData) throws IOException {
+        return onNode(catalogue, lane -> lane.open(catalogue, command, keepData));
+    }
+
+    //Адрес доступного узла каталога: send -r открывает туда собственные соединения
+    InetSocketAddress address(String catalogue) throws IOException {
+        return onNode(catalogue, lane -> lane.address);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transfers.shutdownNow();
+        for (NodePool pool : pools.values()) {
+            for (Lane lane : pool.lanes) {
+                lane.close();
+            }
+        }
+    }
+
+    private interface Operation<T> {
+        T run() throws IOException;
+    }
+
+    private interface LaneOperation<T> {
+        T run(Lane lane) throws IOException;
+    }
+
+    //Подключение и use блокируют, поэтому запрос отправляется из пула передач, а не из вызывающего потока
+    private <T> CompletableFuture<T> async(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            transfers.execute(() -> {
+                try {
+                    result.complete(operation.run());
+                } catch (IOException | RuntimeException exception) {
+                    result.completeExceptionally(exception);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            result.completeExceptionally(new IOException("Client is closed"));
+        }
+        return result;
+    }
+
+    //Первый доступный узел каталога. Недоступный узел пропускается только на подключении:
+    //запрос, который уже ушёл, повторно не отправляется
+    private <T> T onNode(String catalogue, LaneOperation<T> operation) throws IOException {
+        IOException failure = null;
+        for (String node : nodesFor(catalogue)) {
+            Lane lane = pool(node).next();
+            try {
+                lane.connect();
+            } catch (IOException exception) {
+                //Новое соединение узел может не принять (останов, лимит клиентов), а уже открытые ещё работают
+                Lane open = pool(node).openLane();
+                if (open == null) {
+                    failure = new IOException("Node " + node + " is not available: " + exception.getMessage());
+                    continue;
+                }
+                lane = open;
+            }
+            return operation.run(lane);
+        }
+        throw failure;
+    }
+
+    private List<String> nodesFor(String catalogue) {
+        return ring == null || catalogue == null ? List.of(primary) : ring.nodesFor(catalogue);
+    }
+
+    private NodePool pool(String node) {
+        return pools.computeIfAbsent(node, name -> new NodePool(name.equals(primary) ? address : ClusterRing.address(name)));
+    }
+
+    private final class NodePool {
+        private final Lane[] lanes = new Lane[connectionsPerNode];
+        private final AtomicInteger next = new AtomicInteger();
+
+        private NodePool(InetSocketAddress address) {
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new Lane(address, i == 0);
+            }
+        }
+
+        Lane next() {
+            return lanes[Math.floorMod(next.getAndIncrement(), lanes.length)];
+        }
+
+        //null - ни одного живого соединения с узлом
+        Lane openLane() {
+            for (Lane lane : lanes) {
+                if (lane.isOpen()) {
+                    return lane;
+                }
+            }
+            return null;
+        }
+    }
+
+    //Одно соединение пула; оборванное переоткрывается при следующем запросе
+    private final class Lane {
+        private final InetSocketAddress address;
+        private final boolean events;
+        private FrameConnection connection;
+        //Каталог, выбранный на сервере для этого соединения
+        private String catalogue;
+
+        private Lane(InetSocketAddress address, boolean events) {
+            this.address = address;
+            this.events = events;
+        }
+
+        synchronized boolean isOpen() {
+            return connection != null && connection.isOpen();
+        }
+
+        synchronized void connect() throws IOException {
+            if (connection == null || !connection.isOpen()) {
+                adopt(FrameConnection.connect(address));
+            }
+        }
+
+        synchronized void adopt(FrameConnection connection) {
+            connection.onEvent(event -> {
+                if (events) {
+                    eventListener.accept(event);
+                }
+            });
+            this.connection = connection;
+            this.catalogue = null;
+        }
+
+        synchronized String select(String catalogue) throws IOException {
+            connect();
+            String reply = await(connection.submit("use " + catalogue));
+            //Отказ не меняет каталог соединения на сервере
+            if (!reply.startsWith("Successfully")) {
+                throw new IOException(reply);
+            }
+            this.catalogue = catalogue;
+            return reply;
+        }
+
+        synchronized FrameConnection.Exchange open(String catalogue, String command, boolean keepData) throws IOException {
+            connect();
+            if (catalogue != null && !catalogue.equals(this.catalogue)) {
+                select(catalogue);
+            }
+            return connection.open(command, keepData);
+        }
+
+        synchronized void close() throws IOException {
+            if (connection == null) {
+                return;
+            }
+            //Прощаемся, чтобы сервер сразу убрал клиента из списка; ответ не ждём
+            if (connection.isOpen()) {
+                try {
+                    connection.submit("bye");
+                } catch (IOException ignored) {
+                }
+            }
+            connection.close();
+        }
+    }
+
+    //Тело send: имя, размер, байт кодировки (если согласовано сжатие) и содержимое
+    static void sendFile(Path file, DataOutputStream body, boolean compression, UploadProgress progress) throws IOException {
+        long size = Files.size(file);
+        body.writeUTF(file.getFileName().toString());
+        body.writeLong(size);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            boolean deflated = compression && WireCompression.worthCompressing(fileChannel, 0, size);
+            if (compression) {
+                body.writeByte(deflated ? WireCompression.DEFLATE : WireCompression.RAW);
+            }
+            DataOutputStream target = deflated ? WireCompression.deflating(body) : body;
+            byte[] block = new byte[BODY_BLOCK];
+            long position = 0;
+            while (position < size) {
+                int read = fileChannel.read(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - position)), position);
+                if (read < 0) {
+                    throw new EOFException("File changed while uploading: " + file);
+                }
+                target.write(block, 0, read);
+                position += read;
+                if (progress != null) {
+                    progress.update(position, size);
+                }
+            }
+            if (deflated) {
+                target.close();
+            }
+        }
+        body.flush();
+    }
+
+    //Записи листинга по одной, до записи-терминатора
+    static void readListing(DataInputStream inputStream, boolean compression, Consumer<String> records) throws IOException {
+        //Длинный листинг сервер сжимает целиком, байт кодировки стоит перед записями
+        boolean deflated = compression && inputStream.readByte() == WireCompression.DEFLATE;
+        if (deflated) {
+            inputStream = WireCompression.inflating(inputStream);
+        }
+        byte[] record = new byte[256];
+        int length;
+        while ((length = inputStream.readInt()) >= 0) {
+            if (length > record.length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            inputStream.readFully(record, 0, length);
+            records.accept(new String(record, 0, length, StandardCharsets.UTF_8));
+        }
+        if (deflated) {
+            inputStream.close();
+        }
+    }
+
+    static String await(CompletableFuture<String> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (ExecutionException exception) {
+            throw new IOException(exception.getCause().getMessage());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
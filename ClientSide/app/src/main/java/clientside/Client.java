@@ -3,14 +3,27 @@ package clientside;
 import com.google.common.math.PairedStats;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32C;
 
 public class Client {
  private static Socket clientSocket;
@@ -18,17 +31,56 @@ public class Client {
     private static DataOutputStream dataOutputStream = null;
     private static DataInputStream dataInputStream = null;
 
+    //Адрес по умолчанию; другой узел передаётся аргументом host:port
+    private static final InetSocketAddress SERVER_ADDRESS = new InetSocketAddress("localhost", 8321);
     private static final Scanner scanner = new Scanner(System.in);
+    private static final int UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+    //false, если ответ сервера на последнюю команду уже прочитан и выведен её обработчиком
+    private static boolean replyPending = true;
+    //Незавершённые запросы бинарного режима: bye дожидается их, прежде чем закрыть соединение
+    private static final List<CompletableFuture<?>> pending = new ArrayList<>();
+    //Каталог из последней команды use: его же выбирают дополнительные соединения send -r
+    private static String currentCatalogue;
+    private static final int DEFAULT_UPLOAD_CONNECTIONS = 4;
+    //Сервер согласился сжимать тела передач и листингов на основном соединении
+    private static boolean compression;
+    //Узел, к которому подключены сейчас: в кластере use переключает соединение на узел каталога
+    private static InetSocketAddress serverAddress = SERVER_ADDRESS;
+    //Кольцо узлов из ответа на cluster; null - сервер работает один
+    private static ClusterRing ring;
+    //Бинарный режим работает через библиотеку: пул соединений и маршрутизация по узлам кластера
+    private static CatalogueClient library;
+    //Номер запроса бинарного режима в выводе: ответы приходят не по порядку
+    private static int requestNumber;
 
+    //Аргументы: [--binary] [host:port]
     public static void main(String[] args) {
+        InetSocketAddress address = SERVER_ADDRESS;
+        for (String argument : args) {
+            if (!argument.startsWith("--")) {
+                address = ClusterRing.address(argument);
+            }
+        }
         try {
-            clientSocket = new Socket("localhost", 8321);
-            dataInputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
-            dataOutputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            if (Arrays.asList(args).contains("--binary")) {
+                runFramed(address);
+                return;
+            }
+            connect(address);
+            replyPending = false;
             String input;
             while (true) {
-                System.out.println(dataInputStream.readUTF());
+                if (replyPending) {
+                    System.out.println(dataInputStream.readUTF());
+                }
+                replyPending = true;
                 System.out.print("input> ");
+                //Ввод закончился (например, команды пришли через конвейер) - прощаемся с сервером
+                if (!scanner.hasNextLine()) {
+                    dataOutputStream.writeUTF("bye");
+                    dataOutputStream.flush();
+                    return;
+                }
                 input = scanner.nextLine();
                 String command = input;
                 String parameter = input;
@@ -37,13 +89,52 @@ public class Client {
                     command = input.substring(0, input.indexOf(' '));
                     parameter = input.substring(input.indexOf(' ') + 1).trim();
                 }
+                if ("rsend".equalsIgnoreCase(command)) {
+                    uploadResumable(Path.of(parameter));
+                    continue;
+                }
+                if ("dsend".equalsIgnoreCase(command)) {
+                    if (!isPath(Path.of(parameter))) {
+                        System.out.println("Provided path doesn't contain any files");
+                        replyPending = false;
+                        continue;
+                    }
+                    dataOutputStream.writeUTF("send_dedup");
+                    uploadDeduplicated(Path.of(parameter), dataOutputStream, dataInputStream);
+                    continue;
+                }
+                if ("send".equalsIgnoreCase(command) && parameter.startsWith("-r ")) {
+                    uploadDirectory(parameter);
+                    replyPending = false;
+                    continue;
+                }
+                if ("use".equalsIgnoreCase(command)) {
+                    Socket previous = clientSocket;
+                    if (route(parameter)) {
+                        previous.close();
+                    }
+                    currentCatalogue = parameter;
+                }
+                if ("get".equalsIgnoreCase(command)) {
+                    input = resumeRequest(input, parameter);
+                }
                 dataOutputStream.writeUTF(input);
-                if ("send".equalsIgnoreCase(command)) {
+                if ("get".equalsIgnoreCase(command)) {
+                    dataOutputStream.flush();
+                    downloadFile(parameter.split("\\s+")[0], dataInputStream, clientSocket.getChannel(), compression);
+                } else if ("files".equalsIgnoreCase(command) || "currcat_files".equalsIgnoreCase(command)) {
+                    dataOutputStream.flush();
+                    readListing(dataInputStream, compression);
+                } else if ("send".equalsIgnoreCase(command)) {
                     dataOutputStream.writeUTF(parameter);
                     Path filePath = Path.of(parameter);
                     if (isPath(filePath)) {
-                            uploadFile(filePath);
-                        } else System.out.println("Provided path doesn't contain any files");
+                        uploadFile(filePath, dataOutputStream, clientSocket.getChannel(), compression);
+                    } else {
+                        //Пустое имя файла сообщает серверу, что тела не будет
+                        dataOutputStream.writeUTF("");
+                        System.out.println("Provided path doesn't contain any files");
+                    }
                 }
                 dataOutputStream.flush();
             }
@@ -52,30 +143,518 @@ public class Client {
         }
     }
 
-    public static void uploadFile(Path pathToFile) throws IOException {
+    //Бинарный режим - оболочка над CatalogueClient: команда уходит сразу, не дожидаясь ответов
+    //на предыдущие, ответы печатаются по мере прихода с номером запроса
+    private static void runFramed(InetSocketAddress address) throws IOException {
+        library = CatalogueClient.connect(address);
+        library.onEvent(System.out::println);
+        System.out.println("Connected to " + address.getHostString() + ":" + address.getPort());
+        while (true) {
+            System.out.print("input> ");
+            String input = scanner.hasNextLine() ? scanner.nextLine() : "bye";
+            String command = input;
+            String parameter = input;
+            if (input.indexOf(' ') >= 0) {
+                command = input.substring(0, input.indexOf(' '));
+                parameter = input.substring(input.indexOf(' ') + 1).trim();
+            }
+            final String argument = parameter;
+            final String catalogue = currentCatalogue;
+            if (command.equalsIgnoreCase("bye")) {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).exceptionally(error -> null).join();
+                library.close();
+                return;
+            }
+            //Отказ в подключении или обрыв при отправке - ошибка одной команды: соединения пула
+            //переоткрываются при следующей
+            try {
+                switch (command.toLowerCase()) {
+                    case ("catalogs"):
+                        printReply(library.listCatalogues().thenApply(names -> String.join("\n", names)));
+                        break;
+                    case ("use"):
+                        //Каталог нужен следующим командам, поэтому ответ дожидаемся сразу
+                        try {
+                            System.out.println(CatalogueClient.await(library.use(parameter)));
+                            currentCatalogue = parameter;
+                        } catch (IOException exception) {
+                            System.out.println(exception.getMessage());
+                        }
+                        break;
+                    case ("files"):
+                    case ("currcat_files"): {
+                        String arguments = input.equals(parameter) ? "" : parameter;
+                        boolean detailed = arguments.equals("-l") || arguments.startsWith("-l ");
+                        arguments = detailed ? arguments.substring(2).trim() : arguments;
+                        //Библиотека сама проходит все страницы, курсор не нужен
+                        if (arguments.contains("cursor=")) {
+                            arguments = arguments.substring(0, arguments.indexOf("cursor=")).trim();
+                        }
+                        String target = command.equalsIgnoreCase("files") ? arguments : catalogue;
+                        if (target == null) {
+                            System.out.println("No catalogues chosen yet!");
+                            break;
+                        }
+                        printReply(library.listFiles(target, detailed).thenApply(files -> {
+                            files.forEach(System.out::println);
+                            return "Listed " + files.size() + " file(s).";
+                        }));
+                        break;
+                    }
+                    case ("search"):
+                        if (catalogue == null) {
+                            System.out.println("No catalogues chosen yet!");
+                            break;
+                        }
+                        printReply(library.search(catalogue, parameter).thenApply(found -> found.isEmpty()
+                                ? "No such file found." : "found " + String.join("\nfound ", found)));
+                        break;
+                    case ("rsend"):
+                        inBackground(() -> uploadResumableFramed(catalogue, Path.of(argument)));
+                        break;
+                    case ("dsend"): {
+                        if (!isPath(Path.of(argument))) {
+                            System.out.println("Provided path doesn't contain any files");
+                            break;
+                        }
+                        FrameConnection.Exchange exchange = library.open(catalogue, "send_dedup", true);
+                        printReply(exchange.reply());
+                        inBackground(() -> {
+                            uploadDeduplicated(Path.of(argument), exchange.body(), exchange.input());
+                            exchange.body().close();
+                        });
+                        break;
+                    }
+                    case ("send"):
+                        if (parameter.startsWith("-r ")) {
+                            inBackground(() -> uploadDirectory(argument));
+                        } else if (catalogue == null) {
+                            System.out.println("No catalogues chosen yet!");
+                        } else {
+                            printReply(library.upload(catalogue, Path.of(parameter)));
+                        }
+                        break;
+                    case ("get"): {
+                        FrameConnection.Exchange exchange = library.open(catalogue, resumeRequest(input, parameter), true);
+                        CompletableFuture<String> reply = exchange.reply();
+                        inBackground(() -> {
+                            downloadFile(argument.split("\\s+")[0], exchange.input(), null, exchange.compression());
+                            printReply(reply);
+                        });
+                        break;
+                    }
+                    default:
+                        printReply(library.open(catalogue, input, false).reply());
+                }
+            } catch (IOException exception) {
+                System.out.println(exception.getMessage());
+            }
+        }
+    }
+
+    //Соединение с узлом: приветствие, сжатие и состав кластера. Поля меняются, только если всё удалось
+    private static void connect(InetSocketAddress address) throws IOException {
+        Socket socket = SocketChannel.open(address).socket();
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String hello;
+            while (!(hello = inputStream.readUTF()).startsWith("Hello")) {
+            }
+            System.out.println(hello);
+            boolean negotiated = FrameConnection.negotiateCompression(hello, inputStream, outputStream);
+            outputStream.writeUTF("cluster");
+            outputStream.flush();
+            ring = ClusterRing.parse(FrameConnection.awaitReply("cluster ", inputStream));
+            clientSocket = socket;
+            dataInputStream = inputStream;
+            dataOutputStream = outputStream;
+            compression = negotiated;
+            serverAddress = address;
+        } catch (IOException exception) {
+            socket.close();
+            throw exception;
+        }
+    }
+
+    //Кластер: каталог хранят владелец и реплики по кольцу. Если текущий узел не среди них или дальше
+    //доступного по списку, переходим на первый доступный. true - соединение сменилось, старое закрывает вызывающий
+    private static boolean route(String catalogue) {
+        if (ring == null) {
+            return false;
+        }
+        String current = ring.self();
+        for (String node : ring.nodesFor(catalogue)) {
+            if (node.equals(current)) {
+                return false;
+            }
+            try {
+                connect(ClusterRing.address(node));
+                System.out.println("Catalogue " + catalogue + " is kept by " + node + ", switched to it");
+                return true;
+            } catch (IOException exception) {
+                System.out.println("Node " + node + " is not available: " + exception.getMessage());
+            }
+        }
+        return false;
+    }
+
+    //send -r [-p connections] <dir>: дерево уходит по пулу отдельных соединений бинарного протокола
+    private static void uploadDirectory(String parameter) throws IOException {
+        String[] arguments = parameter.split("\\s+", 4);
+        int connectionCount = DEFAULT_UPLOAD_CONNECTIONS;
+        String directory = parameter.substring(3).trim();
+        if (arguments.length >= 4 && arguments[1].equals("-p")) {
+            try {
+                connectionCount = Math.max(1, Integer.parseInt(arguments[2]));
+            } catch (NumberFormatException exception) {
+                System.out.println("Usage: send -r [-p connections] <directory>");
+                return;
+            }
+            directory = arguments[3];
+        }
+        Path root = Path.of(directory);
+        if (!Files.isDirectory(root)) {
+            System.out.println("Provided path is not a directory");
+            return;
+        }
+        if (currentCatalogue == null) {
+            System.out.println("No catalogues chosen yet!");
+            return;
+        }
+        List<FrameConnection> connections = new ArrayList<>();
+        try {
+            InetSocketAddress address = library != null ? library.address(currentCatalogue) : serverAddress;
+            for (int i = 0; i < connectionCount; i++) {
+                FrameConnection connection = FrameConnection.connect(address);
+                connection.onEvent(event -> {
+                });
+                connections.add(connection);
+                String reply = await(connection.submit("use " + currentCatalogue));
+                if (!reply.startsWith("Successfully")) {
+                    System.out.println(reply);
+                    return;
+                }
+            }
+            new DirectoryUpload(root, connections).run();
+        } finally {
+            for (FrameConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private interface Transfer {
+        void run() throws IOException;
+    }
+
+    private static void inBackground(Transfer transfer) {
+        pending.add(CompletableFuture.runAsync(() -> {
+            try {
+                transfer.run();
+            } catch (IOException exception) {
+                System.out.println("Transfer failed: " + exception);
+            }
+        }));
+    }
+
+    private static void printReply(CompletableFuture<String> reply) {
+        int number = ++requestNumber;
+        pending.add(reply.whenComplete((result, error) -> System.out.println("[#" + number + "] "
+                + (error == null ? result : (error instanceof CompletionException ? error.getCause() : error).getMessage()))));
+    }
+
+    private static String await(CompletableFuture<String> reply) throws IOException {
+        return CatalogueClient.await(reply);
+    }
+
+    public static void uploadFile(Path pathToFile, DataOutputStream outputStream, SocketChannel socketChannel,
+                                  boolean compression) throws IOException {
         String fileName = pathToFile.getFileName().toString();
         long fileSize = Files.size(pathToFile);
 
-        dataOutputStream.writeUTF(fileName);
-        dataOutputStream.writeLong(fileSize);
+        outputStream.writeUTF(fileName);
+        outputStream.writeLong(fileSize);
+
+        try (FileChannel fileChannel = FileChannel.open(pathToFile, StandardOpenOption.READ)) {
+            //Сжатое тело идёт через кучу, поэтому уже сжатые файлы лучше отправить как есть через sendfile
+            boolean deflated = compression && WireCompression.worthCompressing(fileChannel, 0, fileSize);
+            if (compression) {
+                outputStream.writeByte(deflated ? WireCompression.DEFLATE : WireCompression.RAW);
+            }
+            outputStream.flush();
+            if (deflated) {
+                WireCompression.deflate(fileChannel, 0, fileSize, outputStream);
+            } else if (socketChannel != null) {
+                //sendfile: файл уходит в сокет без копирования через кучу
+                long position = 0;
+                while (position < fileSize) {
+                    position += fileChannel.transferTo(position, fileSize - position, socketChannel);
+                }
+            } else {
+                uploadBuffered(fileChannel, outputStream);
+            }
+        }
+    }
+
+    //Загрузка кусками с CRC32C: сервер сам помнит, какие куски уже получил,
+    //поэтому повторный rsend того же файла досылает только недостающие
+    public static void uploadResumable(Path pathToFile) throws IOException {
+        if (!isPath(pathToFile)) {
+            System.out.println("Provided path doesn't contain any files");
+            replyPending = false;
+            return;
+        }
+        long fileSize = Files.size(pathToFile);
+        dataOutputStream.writeUTF("upload_init " + pathToFile.getFileName() + " " + fileSize + " " + UPLOAD_CHUNK_SIZE);
         dataOutputStream.flush();
+        String reply = dataInputStream.readUTF();
+        if (!reply.startsWith("session ")) {
+            System.out.println(reply);
+            replyPending = false;
+            return;
+        }
+        String[] session = reply.split(" ");
+        List<Integer> missingChunks = parseRanges(session[3]);
+        System.out.println("Sending " + missingChunks.size() + " chunk(s) of " + Math.max(1, (fileSize + UPLOAD_CHUNK_SIZE - 1) / UPLOAD_CHUNK_SIZE));
 
+        byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+        CRC32C crc = new CRC32C();
         try (FileChannel fileChannel = FileChannel.open(pathToFile, StandardOpenOption.READ)) {
-            ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+            for (int index : missingChunks) {
+                int length = readChunk(fileChannel, pathToFile, index, fileSize, chunk, crc);
+                dataOutputStream.writeUTF("upload_chunk " + session[1] + " " + index);
+                dataOutputStream.writeInt(length);
+                dataOutputStream.writeInt((int) crc.getValue());
+                dataOutputStream.write(chunk, 0, length);
+            }
+        }
+        dataOutputStream.writeUTF("upload_commit " + session[1]);
+        dataOutputStream.flush();
+    }
 
-            while (fileChannel.read(buffer) != -1) {
-                buffer.flip();
-                dataOutputStream.write(buffer.array(), 0, buffer.remaining());
-                dataOutputStream.flush();
-                buffer.clear();
+    //То же в бинарном режиме: куски уходят подряд, не дожидаясь подтверждений, подтверждения собираются в конце
+    private static void uploadResumableFramed(String catalogue, Path pathToFile) throws IOException {
+        if (!isPath(pathToFile)) {
+            System.out.println("Provided path doesn't contain any files");
+            return;
+        }
+        long fileSize = Files.size(pathToFile);
+        //Сессия загрузки общая для узла: куски и commit могут идти по любым его соединениям из пула
+        String reply = await(library.open(catalogue, "upload_init " + pathToFile.getFileName() + " " + fileSize + " " + UPLOAD_CHUNK_SIZE, false).reply());
+        if (!reply.startsWith("session ")) {
+            System.out.println(reply);
+            return;
+        }
+        String[] session = reply.split(" ");
+        List<Integer> missingChunks = parseRanges(session[3]);
+        System.out.println("Sending " + missingChunks.size() + " chunk(s) of " + Math.max(1, (fileSize + UPLOAD_CHUNK_SIZE - 1) / UPLOAD_CHUNK_SIZE));
+
+        byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+        CRC32C crc = new CRC32C();
+        List<CompletableFuture<String>> acknowledgements = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(pathToFile, StandardOpenOption.READ)) {
+            for (int index : missingChunks) {
+                int length = readChunk(fileChannel, pathToFile, index, fileSize, chunk, crc);
+                FrameConnection.Exchange exchange = library.open(catalogue, "upload_chunk " + session[1] + " " + index, false);
+                exchange.body().writeInt(length);
+                exchange.body().writeInt((int) crc.getValue());
+                exchange.body().write(chunk, 0, length);
+                exchange.body().close();
+                acknowledgements.add(exchange.reply());
+            }
+        }
+        for (CompletableFuture<String> acknowledgement : acknowledgements) {
+            String result = await(acknowledgement);
+            if (result.startsWith("rejected")) {
+                System.out.println(result);
+            }
+        }
+        System.out.println(await(library.open(catalogue, "upload_commit " + session[1], false).reply()));
+    }
+
+    //dsend: сначала уходит список кусков (SHA-256 + длина), сервер отвечает, каких у него нет,
+    //и передаются только они. Итоговый ответ читает вызывающий
+    private static void uploadDeduplicated(Path pathToFile, DataOutputStream outputStream, DataInputStream inputStream) throws IOException {
+        long fileSize = Files.size(pathToFile);
+        List<FileChunk> chunks = splitIntoChunks(pathToFile, fileSize);
+        outputStream.writeUTF(pathToFile.getFileName().toString());
+        outputStream.writeLong(fileSize);
+        outputStream.writeInt(chunks.size());
+        for (FileChunk chunk : chunks) {
+            outputStream.write(chunk.hash());
+            outputStream.writeInt(chunk.length());
+        }
+        outputStream.flush();
+        String reply = inputStream.readUTF();
+        if (!reply.startsWith("missing ")) {
+            return;
+        }
+        List<Integer> missingChunks = parseRanges(reply.substring("missing ".length()));
+        long missingBytes = missingChunks.stream().mapToLong(index -> chunks.get(index).length()).sum();
+        System.out.println("Sending " + missingChunks.size() + " of " + chunks.size() + " chunk(s), "
+                + missingBytes + " of " + fileSize + " bytes");
+        byte[] data = new byte[ContentChunker.MAX_SIZE];
+        try (FileChannel fileChannel = FileChannel.open(pathToFile, StandardOpenOption.READ)) {
+            for (int index : missingChunks) {
+                FileChunk chunk = chunks.get(index);
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, chunk.length());
+                while (buffer.hasRemaining()) {
+                    if (fileChannel.read(buffer, chunk.offset() + buffer.position()) < 0) {
+                        throw new EOFException("File changed while uploading: " + pathToFile);
+                    }
+                }
+                outputStream.write(data, 0, chunk.length());
+            }
+        }
+        outputStream.flush();
+    }
+
+    private record FileChunk(long offset, int length, byte[] hash) {
+    }
+
+    //Та же нарезка, что и у сервера в режиме dedup, иначе одинаковые данные не совпадут по хэшам
+    private static List<FileChunk> splitIntoChunks(Path pathToFile, long fileSize) throws IOException {
+        List<FileChunk> chunks = new ArrayList<>();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+        byte[] buffer = new byte[ContentChunker.MAX_SIZE * 2];
+        int start = 0;
+        int filled = 0;
+        long offset = 0;
+        long remaining = fileSize;
+        try (InputStream inputStream = Files.newInputStream(pathToFile)) {
+            while (remaining > 0 || start < filled) {
+                if (filled - start < ContentChunker.MAX_SIZE && remaining > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                    int read = inputStream.read(buffer, filled, (int) Math.min(buffer.length - filled, remaining));
+                    if (read < 0) {
+                        throw new EOFException("File changed while uploading: " + pathToFile);
+                    }
+                    filled += read;
+                    remaining -= read;
+                    continue;
+                }
+                int length = ContentChunker.cut(buffer, start, filled - start);
+                digest.update(buffer, start, length);
+                chunks.add(new FileChunk(offset, length, digest.digest()));
+                offset += length;
+                start += length;
             }
+        }
+        return chunks;
+    }
 
-            String serverResponse = dataInputStream.readUTF();
-            if (!serverResponse.isEmpty()) {
-                System.out.println(serverResponse);
+    private static int readChunk(FileChannel fileChannel, Path pathToFile, int index, long fileSize, byte[] chunk, CRC32C crc) throws IOException {
+        long position = (long) index * UPLOAD_CHUNK_SIZE;
+        int length = (int) Math.min(UPLOAD_CHUNK_SIZE, fileSize - position);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File changed while uploading: " + pathToFile);
             }
         }
+        crc.reset();
+        crc.update(chunk, 0, length);
+        return length;
     }
+
+    private static List<Integer> parseRanges(String ranges) {
+        List<Integer> result = new ArrayList<>();
+        if (ranges.equals("none")) {
+            return result;
+        }
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            int start = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int end = dash < 0 ? start : Integer.parseInt(range.substring(dash + 1));
+            for (int index = start; index <= end; index++) {
+                result.add(index);
+            }
+        }
+        return result;
+    }
+
+    private static void uploadBuffered(FileChannel fileChannel, DataOutputStream outputStream) throws IOException {
+        //Буфер свой на каждую передачу: в бинарном режиме несколько передач идут одновременно
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        while (fileChannel.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+        outputStream.flush();
+    }
+    //Записи листинга печатаются по мере прихода, строку статуса после них выводит основной цикл
+    public static void readListing(DataInputStream inputStream, boolean compression) throws IOException {
+        CatalogueClient.readListing(inputStream, compression, System.out::println);
+    }
+
+    //get без смещения докачивает уже существующий локальный файл с его текущего размера
+    private static String resumeRequest(String input, String parameter) throws IOException {
+        String[] arguments = parameter.split("\\s+");
+        Path localPath = Path.of(arguments[0]).getFileName();
+        if (arguments.length == 1 && !input.equals(parameter) && localPath != null && isPath(localPath)) {
+            long localSize = Files.size(localPath);
+            System.out.println("Resuming " + localPath + " from byte " + localSize);
+            return input + " " + localSize;
+        }
+        return input;
+    }
+
+    public static void downloadFile(String fileName, DataInputStream inputStream, SocketChannel socketChannel,
+                                    boolean compression) throws IOException {
+        long fileSize = inputStream.readLong();
+        if (fileSize < 0) {
+            return;
+        }
+        long position = inputStream.readLong();
+        long end = position + inputStream.readLong();
+        boolean deflated = compression && inputStream.readByte() == WireCompression.DEFLATE;
+        Path targetPath = Path.of(fileName).getFileName();
+
+        try (FileChannel fileChannel = FileChannel.open(targetPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (deflated) {
+                WireCompression.inflate(inputStream, fileChannel, position, end - position);
+                position = end;
+            }
+            //Начало тела могло уже попасть в буфер потока вместе с заголовком
+            byte[] chunk = new byte[64 * 1024];
+            long buffered = Math.min(inputStream.available(), end - position);
+            while (buffered > 0) {
+                int count = inputStream.read(chunk, 0, (int) Math.min(chunk.length, buffered));
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                fileChannel.write(ByteBuffer.wrap(chunk, 0, count), position);
+                position += count;
+                buffered -= count;
+            }
+            while (position < end) {
+                long count = socketChannel != null
+                        ? fileChannel.transferFrom(socketChannel, position, end - position)
+                        : inputStream.read(chunk, 0, (int) Math.min(chunk.length, end - position));
+                if (count <= 0) {
+                    throw new EOFException();
+                }
+                if (socketChannel == null) {
+                    fileChannel.write(ByteBuffer.wrap(chunk, 0, (int) count), position);
+                }
+                position += count;
+            }
+        }
+        System.out.println("Saved " + targetPath.toAbsolutePath() + " (" + end + " of " + fileSize + " bytes)");
+    }
+
     public static boolean isPath(Path path) {
         return Files.exists(path) && Files.isRegularFile(path);
     }
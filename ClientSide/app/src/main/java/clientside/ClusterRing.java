@@ -0,0 +1,84 @@
+package clientside;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/*
+ * Кольцо консистентного хеширования узлов кластера, построенное из ответа сервера на команду cluster:
+ * "cluster self=<узел> replicas=<n> virtualNodes=<n> nodes=<узел>,<узел>,...".
+ * Копия серверного кольца: хеш и порядок обхода должны совпадать с ним, иначе клиент пойдёт не к тому узлу.
+ */
+final class ClusterRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final String self;
+    private final int replicas;
+
+    private ClusterRing(List<String> nodes, String self, int replicas, int virtualNodes) {
+        this.self = self;
+        this.replicas = replicas;
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    //null - сервер работает один ("cluster none")
+    static ClusterRing parse(String reply) {
+        Map<String, String> fields = new HashMap<>();
+        for (String field : reply.split("\\s+")) {
+            int equals = field.indexOf('=');
+            if (equals > 0) {
+                fields.put(field.substring(0, equals), field.substring(equals + 1));
+            }
+        }
+        if (!fields.containsKey("nodes") || !fields.containsKey("self")) {
+            return null;
+        }
+        return new ClusterRing(Arrays.asList(fields.get("nodes").split(",")), fields.get("self"),
+                Integer.parseInt(fields.getOrDefault("replicas", "1")), Integer.parseInt(fields.getOrDefault("virtualNodes", "64")));
+    }
+
+    //Узел, ответивший на cluster
+    String self() {
+        return self;
+    }
+
+    //Узлы каталога по порядку предпочтения: владелец, затем реплики
+    List<String> nodesFor(String catalogue) {
+        List<String> result = new ArrayList<>();
+        long point = hash(catalogue);
+        collect(ring.tailMap(point, true).values(), result);
+        collect(ring.headMap(point, false).values(), result);
+        return result;
+    }
+
+    private void collect(Collection<String> points, List<String> result) {
+        for (String node : points) {
+            if (result.size() > replicas) {
+                return;
+            }
+            if (!result.contains(node)) {
+                result.add(node);
+            }
+        }
+    }
+
+    static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package clientside;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+ * send -r: выгрузка дерева по нескольким соединениям бинарного протокола.
+ * Крупные файлы идут отдельными send, мелкие собираются в пачки send_batch, чтобы тысячи файлов
+ * не стоили тысяч обменов. На каждом соединении в полёте держится несколько запросов сразу.
+ */
+class DirectoryUpload {
+    private static final long SMALL_FILE_SIZE = 256 * 1024;
+    private static final long BATCH_BYTES = 4 * 1024 * 1024;
+    private static final int BATCH_FILES = 1000;
+    private static final int REQUESTS_IN_FLIGHT = 4;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final Path root;
+    private final List<FrameConnection> connections;
+    private final Queue<Batch> work = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger stored = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+
+    //Один файл (single) или пачка мелких
+    private record Batch(List<Entry> entries, boolean single) {
+    }
+
+    //name - путь относительно родителя выгружаемого каталога, через '/'
+    private record Entry(Path file, String name, long size) {
+    }
+
+    private record Pending(Batch batch, CompletableFuture<String> reply) {
+    }
+
+    DirectoryUpload(Path root, List<FrameConnection> connections) {
+        this.root = root.toAbsolutePath().normalize();
+        this.connections = connections;
+    }
+
+    void run() throws IOException {
+        long start = System.nanoTime();
+        int files = plan();
+        List<Thread> workers = new ArrayList<>();
+        for (FrameConnection connection : connections) {
+            Thread worker = new Thread(() -> drain(connection), "upload-" + workers.size());
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        //Работа, которую не успели забрать: все соединения потеряны
+        Batch leftover;
+        while ((leftover = work.poll()) != null) {
+            fail(leftover, "Lost connection to the server");
+        }
+        double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        System.out.printf("Uploaded %d of %d file(s), %.1f MB in %.2f s: %.1f MB/s, %.0f files/s over %d connection(s)%n",
+                stored.get(), files, bytesSent.get() / (1024.0 * 1024.0), seconds,
+                bytesSent.get() / (1024.0 * 1024.0) / seconds, stored.get() / seconds, connections.size());
+        if (skipped.get() > 0) {
+            System.out.println("Skipped " + skipped.get() + " file(s):");
+            problems.stream().limit(10).forEach(System.out::println);
+            if (problems.size() > 10) {
+                System.out.println("...");
+            }
+        }
+    }
+
+    //Обходим дерево заранее: так известен общий объём, а пачки собираются из соседних файлов
+    private int plan() throws IOException {
+        Path base = root.getParent() == null ? root : root.getParent();
+        List<Entry> batch = new ArrayList<>();
+        long batchBytes = 0;
+        int files = 0;
+        try (Stream<Path> tree = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) tree.filter(Files::isRegularFile).sorted()::iterator) {
+                Entry entry = new Entry(file, base.relativize(file).toString().replace('\\', '/'), Files.size(file));
+                files++;
+                if (entry.size() > SMALL_FILE_SIZE) {
+                    work.add(new Batch(List.of(entry), true));
+                    continue;
+                }
+                batch.add(entry);
+                batchBytes += entry.size();
+                if (batch.size() == BATCH_FILES || batchBytes >= BATCH_BYTES) {
+                    work.add(new Batch(batch, false));
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            work.add(new Batch(batch, false));
+        }
+        return files;
+    }
+
+    private void drain(FrameConnection connection) {
+        Deque<Pending> inFlight = new ArrayDeque<>();
+        Batch batch;
+        while ((batch = work.poll()) != null) {
+            if (inFlight.size() == REQUESTS_IN_FLIGHT) {
+                settle(inFlight.removeFirst());
+            }
+            try {
+                Pending pending = submit(connection, batch);
+                if (pending != null) {
+                    inFlight.add(pending);
+                }
+            } catch (IOException exception) {
+                fail(batch, exception.getMessage());
+                //Соединение, скорее всего, потеряно: остальную работу заберут другие
+                break;
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            settle(inFlight.removeFirst());
+        }
+    }
+
+    private Pending submit(FrameConnection connection, Batch batch) throws IOException {
+        FrameConnection.Exchange exchange = connection.open(batch.single() ? "send " + batch.entries().get(0).name() : "send_batch", false);
+        DataOutputStream body = exchange.body();
+        try {
+            if (batch.single()) {
+                //Тело как у обычного send: путь на стороне клиента, имя, размер, содержимое
+                body.writeUTF(batch.entries().get(0).file().toString());
+                writeEntry(body, batch.entries().get(0), connection.compression());
+            } else {
+                //У пачки байт кодировки один на всё тело: мелкие файлы сжимаются лучше вместе
+                boolean deflated = connection.compression() && worthCompressing(batch.entries());
+                if (connection.compression()) {
+                    body.writeByte(deflated ? WireCompression.DEFLATE : WireCompression.RAW);
+                }
+                DataOutputStream records = deflated ? WireCompression.deflating(body) : body;
+                for (Entry entry : batch.entries()) {
+                    writeEntry(records, entry, false);
+                }
+                records.writeUTF("");
+                if (deflated) {
+                    records.close();
+                }
+            }
+        } catch (IOException exception) {
+            //Обрываем тело: сервер получит конец потока и завершит запрос ошибкой, соединение остаётся рабочим
+            body.close();
+            fail(batch, exception.getMessage());
+            return null;
+        }
+        body.close();
+        return new Pending(batch, exchange.reply());
+    }
+
+    //encoded - перед содержимым идёт свой байт кодировки, как у одиночного send со сжатием
+    private void writeEntry(DataOutputStream body, Entry entry, boolean encoded) throws IOException {
+        body.writeUTF(entry.name());
+        body.writeLong(entry.size());
+        boolean deflated = encoded && worthCompressing(List.of(entry));
+        if (encoded) {
+            body.writeByte(deflated ? WireCompression.DEFLATE : WireCompression.RAW);
+        }
+        DataOutputStream target = deflated ? WireCompression.deflating(body) : body;
+        //Ровно заявленный размер: если файл укоротился, запрос не может завершиться корректно
+        try (InputStream inputStream = Files.newInputStream(entry.file())) {
+            long copied = inputStream.transferTo(new BoundedOutput(target, entry.size()));
+            if (copied < entry.size()) {
+                throw new EOFException("File changed while uploading: " + entry.file());
+            }
+        }
+        if (deflated) {
+            target.close();
+        }
+        bytesSent.addAndGet(entry.size());
+    }
+
+    //Образец - начала файлов подряд, пока не наберётся SAMPLE_SIZE
+    private static boolean worthCompressing(List<Entry> entries) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int filled = 0;
+        for (Entry entry : entries) {
+            if (filled == sample.length) {
+                break;
+            }
+            try (InputStream inputStream = Files.newInputStream(entry.file())) {
+                filled += inputStream.readNBytes(sample, filled, sample.length - filled);
+            }
+        }
+        return WireCompression.worthCompressing(sample, filled);
+    }
+
+    private void settle(Pending pending) {
+        String reply;
+        try {
+            reply = pending.reply().get();
+        } catch (ExecutionException exception) {
+            fail(pending.batch(), exception.getCause().getMessage());
+            return;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (pending.batch().single()) {
+            if (reply.equals("File sent successfully")) {
+                stored.incrementAndGet();
+            } else {
+                fail(pending.batch(), reply);
+            }
+            return;
+        }
+        //Stored N of M file(s), затем по строке на каждый пропущенный файл
+        String[] lines = reply.split("\n");
+        String[] summary = lines[0].split(" ");
+        if (!lines[0].startsWith("Stored ")) {
+            fail(pending.batch(), reply);
+            return;
+        }
+        stored.addAndGet(Integer.parseInt(summary[1]));
+        for (int i = 1; i < lines.length; i++) {
+            skipped.incrementAndGet();
+            problems.add(lines[i]);
+        }
+    }
+
+    private void fail(Batch batch, String reason) {
+        skipped.addAndGet(batch.entries().size());
+        batch.entries().forEach(entry -> problems.add("skipped " + entry.name() + ": " + reason));
+    }
+
+    //Не даёт записать больше заявленного размера, если файл вырос во время выгрузки
+    private static class BoundedOutput extends OutputStream {
+        private final DataOutputStream target;
+        private long remaining;
+
+        BoundedOutput(DataOutputStream target, long limit) {
+            this.target = target;
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            if (remaining > 0) {
+                target.write(value);
+                remaining--;
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            int count = (int) Math.min(length, remaining);
+            target.write(bytes, offset, count);
+            remaining -= count;
+        }
+    }
+}
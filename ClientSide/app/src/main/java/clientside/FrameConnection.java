@@ -0,0 +1,386 @@
+package clientside;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ * Клиентская сторона бинарного протокола. Каждая команда получает свой id, поэтому команды
+ * можно отправлять не дожидаясь ответов: отдельный поток читает кадры и раскладывает их по запросам.
+ * Кадр: byte версия | byte тип | byte флаги | int id запроса | int длина | тело.
+ * Тело запроса отправляется в пределах окна: сверх WINDOW байт - только после кадров CREDIT от сервера.
+ * Одновременно открыто не больше запросов, чем сервер разрешил при переключении; open ждёт свободного места.
+ */
+public class FrameConnection implements Closeable {
+    static final byte VERSION = 2;
+    static final int MAX_PAYLOAD = 1024 * 1024;
+    static final byte COMMAND = 1;
+    static final byte RESPONSE = 2;
+    static final byte EVENT = 3;
+    static final byte DATA = 4;
+    static final byte ERROR = 5;
+    static final byte CREDIT = 6;
+    static final int WINDOW = 1024 * 1024;
+    static final byte FLAG_END = 1;
+    private static final int BODY_CHUNK = 256 * 1024;
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final Map<Integer, Exchange> exchanges = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Thread reader;
+    private final boolean compression;
+    //Лимит запросов в полёте, объявленный сервером
+    private final Semaphore slots;
+    private volatile Consumer<String> eventListener = System.out::println;
+    //false - поток-читатель остановился, запросы по соединению больше не завершатся
+    private volatile boolean open = true;
+
+    private FrameConnection(Socket socket, DataInputStream inputStream, DataOutputStream outputStream, boolean compression,
+                            int maxRequests) {
+        this.socket = socket;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.compression = compression;
+        this.slots = new Semaphore(maxRequests);
+        this.reader = new Thread(this::readFrames, "frame-reader");
+        reader.setDaemon(true);
+    }
+
+    //Включает сжатие, если сервер объявил его в приветствии; до переключения на кадры
+    public static boolean negotiateCompression(String hello, DataInputStream inputStream, DataOutputStream outputStream) throws IOException {
+        if (!hello.contains(WireCompression.CAPABILITY)) {
+            return false;
+        }
+        outputStream.writeUTF("caps " + WireCompression.CAPABILITY);
+        outputStream.flush();
+        return awaitReply("caps ", inputStream).equals("caps " + WireCompression.CAPABILITY);
+    }
+
+    //Переключает уже открытое текстовое соединение (приветствие прочитано) на кадры
+    public static FrameConnection negotiate(Socket socket, DataInputStream inputStream, DataOutputStream outputStream,
+                                            boolean compression) throws IOException {
+        outputStream.writeUTF("protocol binary");
+        outputStream.flush();
+        //"protocol binary <версия> <лимит запросов>"
+        String[] reply = awaitReply("protocol binary ", inputStream).split(" ");
+        if (reply.length != 4 || !reply[2].equals(String.valueOf(VERSION))) {
+            throw new IOException("Unsupported binary protocol version: " + String.join(" ", reply));
+        }
+        int maxRequests;
+        try {
+            maxRequests = Integer.parseInt(reply[3]);
+        } catch (NumberFormatException exception) {
+            throw new IOException("Invalid request limit from server: " + reply[3]);
+        }
+        FrameConnection connection = new FrameConnection(socket, inputStream, outputStream, compression, Math.max(1, maxRequests));
+        connection.reader.start();
+        return connection;
+    }
+
+    static String awaitReply(String prefix, DataInputStream inputStream) throws IOException {
+        while (true) {
+            String reply = inputStream.readUTF();
+            if (reply.startsWith(prefix)) {
+                return reply;
+            }
+            //Рассылка сервера могла прийти раньше ответа на команду
+            if (!reply.startsWith("[SERVER]")) {
+                throw new IOException("Unexpected reply to " + prefix.trim() + ": " + reply);
+            }
+            System.out.println(reply);
+        }
+    }
+
+    //Новое соединение сразу в бинарном режиме, для пулов соединений
+    public static FrameConnection connect(InetSocketAddress address) throws IOException {
+        Socket socket = SocketChannel.open(address).socket();
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        try {
+            //Приветствию может предшествовать рассылка о подключении другого клиента
+            String hello;
+            while (!(hello = inputStream.readUTF()).startsWith("Hello")) {
+            }
+            return negotiate(socket, inputStream, outputStream, negotiateCompression(hello, inputStream, outputStream));
+        } catch (IOException exception) {
+            socket.close();
+            throw exception;
+        }
+    }
+
+    //Согласовано ли сжатие тел на этом соединении
+    public boolean compression() {
+        return compression;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void onEvent(Consumer<String> listener) {
+        this.eventListener = listener;
+    }
+
+    //Команда без тела, данные ответа (если есть) отбрасываются
+    public CompletableFuture<String> submit(String command) throws IOException {
+        return open(command, false).reply();
+    }
+
+    //keepData - складывать кадры DATA ответа в input() обмена; читать их тогда обязательно,
+    //иначе поток-читатель остановится на переполненной очереди
+    //Если лимит запросов исчерпан, ждёт, пока сервер ответит на один из открытых
+    public Exchange open(String command, boolean keepData) throws IOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        Exchange exchange = new Exchange(nextId.getAndIncrement(), keepData);
+        exchanges.put(exchange.id, exchange);
+        if (!open) {
+            exchanges.remove(exchange.id);
+            slots.release();
+            throw new IOException("Lost connection to the server");
+        }
+        byte[] payload = command.getBytes(StandardCharsets.UTF_8);
+        try {
+            writeFrame(COMMAND, (byte) 0, exchange.id, payload, 0, payload.length);
+        } catch (IOException exception) {
+            exchanges.remove(exchange.id);
+            slots.release();
+            throw exception;
+        }
+        return exchange;
+    }
+
+    private synchronized void writeFrame(byte type, byte flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+        outputStream.writeByte(VERSION);
+        outputStream.writeByte(type);
+        outputStream.writeByte(flags);
+        outputStream.writeInt(requestId);
+        outputStream.writeInt(length);
+        outputStream.write(payload, offset, length);
+        outputStream.flush();
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                byte version = inputStream.readByte();
+                byte type = inputStream.readByte();
+                byte flags = inputStream.readByte();
+                int requestId = inputStream.readInt();
+                int length = inputStream.readInt();
+                if (version != VERSION || length < 0 || length > MAX_PAYLOAD) {
+                    throw new IOException("Malformed frame from server");
+                }
+                byte[] payload = new byte[length];
+                inputStream.readFully(payload);
+                if (type == EVENT) {
+                    eventListener.accept(new String(payload, StandardCharsets.UTF_8));
+                    continue;
+                }
+                Exchange exchange = exchanges.get(requestId);
+                if (exchange == null) {
+                    continue;
+                }
+                if (type == DATA) {
+                    exchange.offer(payload);
+                } else if (type == CREDIT && length == Integer.BYTES) {
+                    exchange.grant(ByteBuffer.wrap(payload).getInt());
+                } else if (type == RESPONSE || type == ERROR) {
+                    exchanges.remove(requestId);
+                    exchange.finish(type == ERROR, new String(payload, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException | InterruptedException exception) {
+            open = false;
+            IOException closed = new IOException("Lost connection to the server");
+            exchanges.values().forEach(exchange -> exchange.fail(closed));
+            exchanges.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        socket.close();
+    }
+
+    public class Exchange {
+        private final int id;
+        private final boolean keepData;
+        private final CompletableFuture<String> reply = new CompletableFuture<>();
+        private final BlockingQueue<byte[]> data = new ArrayBlockingQueue<>(64);
+        private final DataInputStream input = new DataInputStream(new DataPipe());
+        private final DataOutputStream body = new DataOutputStream(new BufferedOutputStream(new BodyOutputStream(), BODY_CHUNK));
+        //Сколько байт тела ещё можно отправить; под монитором обмена
+        private int credit = WINDOW;
+        private boolean done;
+
+        private Exchange(int id, boolean keepData) {
+            this.id = id;
+            this.keepData = keepData;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        //Согласовано ли сжатие на соединении этого обмена
+        public boolean compression() {
+            return compression;
+        }
+
+        //Текстовый ответ сервера; ERROR завершает future исключением
+        public CompletableFuture<String> reply() {
+            return reply;
+        }
+
+        //Данные ответа (кадры DATA) до финального ответа, дальше - конец потока
+        public DataInputStream input() {
+            return input;
+        }
+
+        //Тело запроса уходит кадрами DATA; close() отправляет последний кадр с флагом END
+        public DataOutputStream body() {
+            return body;
+        }
+
+        private void offer(byte[] payload) throws InterruptedException {
+            if (keepData) {
+                data.put(payload);
+            }
+        }
+
+        private void finish(boolean error, String message) throws InterruptedException {
+            complete();
+            if (keepData) {
+                data.put(END_OF_STREAM);
+            }
+            if (error) {
+                reply.completeExceptionally(new IOException(message));
+            } else {
+                reply.complete(message);
+            }
+        }
+
+        private void fail(IOException exception) {
+            complete();
+            data.offer(END_OF_STREAM);
+            reply.completeExceptionally(exception);
+        }
+
+        private synchronized void complete() {
+            if (!done) {
+                done = true;
+                slots.release();
+                notifyAll();
+            }
+        }
+
+        private synchronized void grant(int bytes) {
+            credit += bytes;
+            notifyAll();
+        }
+
+        //Сколько байт из length можно отправить сейчас; 0 - запрос уже завершён и тело серверу не нужно
+        private synchronized int reserve(int length) throws InterruptedIOException {
+            while (credit <= 0 && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (done) {
+                return 0;
+            }
+            int count = Math.min(length, credit);
+            credit -= count;
+            return count;
+        }
+
+        private class DataPipe extends InputStream {
+            private byte[] current = new byte[0];
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (current != END_OF_STREAM && position == current.length) {
+                    try {
+                        current = data.take();
+                        position = 0;
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (current == END_OF_STREAM) {
+                    return -1;
+                }
+                int count = Math.min(length, current.length - position);
+                System.arraycopy(current, position, bytes, offset, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return current == END_OF_STREAM ? 0 : current.length - position;
+            }
+        }
+
+        private class BodyOutputStream extends OutputStream {
+            private boolean closed;
+
+            @Override
+            public void write(int value) throws IOException {
+                write(new byte[]{(byte) value}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    //Ожидание кредита - вне блокировки записи, кадры других запросов идут дальше
+                    int count = reserve(Math.min(length, BODY_CHUNK));
+                    if (count == 0) {
+                        return;
+                    }
+                    writeFrame(DATA, (byte) 0, id, bytes, offset, count);
+                    offset += count;
+                    length -= count;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    writeFrame(DATA, FLAG_END, id, END_OF_STREAM, 0, 0);
+                }
+            }
+        }
+    }
+}
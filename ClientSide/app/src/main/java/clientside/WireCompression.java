@@ -0,0 +1,231 @@
+package clientside;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Сжатие на проводе, клиентская копия формата сервера. Включается командой "caps deflate" сразу после приветствия.
+ * Перед сжимаемым телом идёт байт кодировки (RAW или DEFLATE). Сжатое тело - блоки "int длина + байты"
+ * потока Deflater, конец - блок нулевой длины. Так граница тела видна без распаковки,
+ * и распаковщик не может зачитать лишнее из следующей команды.
+ */
+final class WireCompression {
+    static final String CAPABILITY = "deflate";
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int MIN_SIZE = 512;
+    //Сжимаем, только если образец ужался хотя бы на 10%: иначе это уже сжатые данные
+    private static final double MAX_RATIO = 0.9;
+
+    private WireCompression() {
+    }
+
+    //Решение по образцу из начала файла, чтобы не гонять через Deflater архивы и картинки
+    static boolean worthCompressing(FileChannel fileChannel, long position, long count) throws IOException {
+        if (count < MIN_SIZE) {
+            return false;
+        }
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, count));
+        while (sample.hasRemaining() && fileChannel.read(sample, position + sample.position()) > 0) {
+        }
+        return worthCompressing(sample.array(), sample.position());
+    }
+
+    static boolean worthCompressing(byte[] sample, int length) {
+        if (length < MIN_SIZE) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] scratch = new byte[BLOCK_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(scratch);
+            }
+            return compressed < length * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //Поток, который сжимает всё записанное; close() дописывает конец и не закрывает нижний поток
+    static DataOutputStream deflating(OutputStream outputStream) {
+        return new DataOutputStream(new DeflatingStream(new BlockOutputStream(outputStream)));
+    }
+
+    //Обратный поток; close() дочитывает тело до блока нулевой длины
+    static DataInputStream inflating(InputStream inputStream) {
+        return new DataInputStream(new InflatingStream(new BlockInputStream(inputStream)));
+    }
+
+    static void deflate(FileChannel fileChannel, long position, long count, OutputStream outputStream) throws IOException {
+        byte[] chunk = new byte[BLOCK_SIZE];
+        try (DataOutputStream deflating = deflating(outputStream)) {
+            long end = position + count;
+            while (position < end) {
+                int read = fileChannel.read(ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, end - position)), position);
+                if (read < 0) {
+                    throw new EOFException("File ended at " + position + " of " + end + " bytes");
+                }
+                deflating.write(chunk, 0, read);
+                position += read;
+            }
+        }
+        outputStream.flush();
+    }
+
+    static long inflate(InputStream inputStream, FileChannel fileChannel, long position, long count) throws IOException {
+        byte[] chunk = new byte[BLOCK_SIZE];
+        long received = 0;
+        try (DataInputStream inflating = inflating(inputStream)) {
+            while (received < count) {
+                int read = inflating.read(chunk, 0, (int) Math.min(chunk.length, count - received));
+                if (read < 0) {
+                    throw new EOFException("Compressed body ended after " + received + " of " + count + " bytes");
+                }
+                ByteBuffer source = ByteBuffer.wrap(chunk, 0, read);
+                while (source.hasRemaining()) {
+                    fileChannel.write(source, position + received + source.position());
+                }
+                received += read;
+            }
+        }
+        return received;
+    }
+
+    private static class DeflatingStream extends DeflaterOutputStream {
+        private boolean closed;
+
+        DeflatingStream(BlockOutputStream blocks) {
+            super(blocks, new Deflater(Deflater.BEST_SPEED), BLOCK_SIZE, true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                finish();
+                out.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    private static class InflatingStream extends InflaterInputStream {
+        private final BlockInputStream blocks;
+        private boolean closed;
+
+        InflatingStream(BlockInputStream blocks) {
+            super(blocks, new Inflater(), BLOCK_SIZE);
+            this.blocks = blocks;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                blocks.drain();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    private static class BlockOutputStream extends OutputStream {
+        private final DataOutputStream outputStream;
+
+        BlockOutputStream(OutputStream outputStream) {
+            this.outputStream = outputStream instanceof DataOutputStream data ? data : new DataOutputStream(outputStream);
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > 0) {
+                outputStream.writeInt(length);
+                outputStream.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.writeInt(0);
+            outputStream.flush();
+        }
+    }
+
+    private static class BlockInputStream extends InputStream {
+        private final DataInputStream inputStream;
+        private int remaining;
+        private boolean ended;
+
+        BlockInputStream(InputStream inputStream) {
+            this.inputStream = inputStream instanceof DataInputStream data ? data : new DataInputStream(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextBlock()) {
+                return -1;
+            }
+            int count = inputStream.read(bytes, offset, Math.min(length, remaining));
+            if (count < 0) {
+                throw new EOFException("Connection closed inside compressed block");
+            }
+            remaining -= count;
+            return count;
+        }
+
+        private boolean nextBlock() throws IOException {
+            while (!ended && remaining == 0) {
+                remaining = inputStream.readInt();
+                if (remaining < 0) {
+                    throw new IOException("Invalid compressed block length: " + remaining);
+                }
+                ended = remaining == 0;
+            }
+            return !ended;
+        }
+
+        void drain() throws IOException {
+            while (nextBlock()) {
+                inputStream.skipNBytes(remaining);
+                remaining = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package clientside;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogueClientTest {
+    //Однонодовый сервер: use запоминается на соединении, search отвечает по выбранному каталогу
+    private static FakeServer.Handler catalogues(Map<FakeServer.Connection, String> selected) {
+        return (connection, id, command) -> {
+            if (command.equals("cluster")) {
+                connection.reply(id, "cluster none");
+            } else if (command.equals("catalogs")) {
+                connection.reply(id, "cat1\ncat2\nNo directory selected yet!");
+            } else if (command.startsWith("use ")) {
+                selected.put(connection, command.substring(4));
+                connection.reply(id, "Successfully updated current catalogue. Current catalogue is: " + command.substring(4));
+            } else if (command.startsWith("search ")) {
+                String query = command.substring(7);
+                connection.reply(id, "found " + query + " on path: /" + selected.get(connection) + "/" + query);
+            } else if (!command.equals("bye")) {
+                connection.error(id, "Unrecognized command!");
+            }
+        };
+    }
+
+    @Test void concurrentRequestsGetTheirOwnReplies() throws Exception {
+        try (FakeServer server = new FakeServer(catalogues(new ConcurrentHashMap<>()));
+             CatalogueClient client = CatalogueClient.connect(server.address(), 2)) {
+            CompletableFuture<List<String>> cat1 = client.search("cat1", "a.bin");
+            CompletableFuture<List<String>> cat2 = client.search("cat2", "b.bin");
+            CompletableFuture<List<String>> names = client.listCatalogues();
+            CompletableFuture<List<String>> cat1Again = client.search("cat1", "c.bin");
+            assertEquals(List.of("/cat1/a.bin"), cat1.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of("/cat2/b.bin"), cat2.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of("cat1", "cat2"), names.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of("/cat1/c.bin"), cat1Again.get(5, TimeUnit.SECONDS));
+            assertEquals(2, server.accepted());
+        }
+    }
+
+    @Test void pendingOperationsFailWhenServerDisconnects() throws Exception {
+        CountDownLatch searching = new CountDownLatch(1);
+        Map<FakeServer.Connection, String> selected = new ConcurrentHashMap<>();
+        FakeServer.Handler handler = catalogues(selected);
+        try (FakeServer server = new FakeServer((connection, id, command) -> {
+            //search остаётся без ответа до обрыва
+            if (command.startsWith("search ")) {
+                searching.countDown();
+            } else {
+                handler.onCommand(connection, id, command);
+            }
+        }); CatalogueClient client = CatalogueClient.connect(server.address(), 1)) {
+            CompletableFuture<List<String>> search = client.search("cat1", "a.bin");
+            assertTrue(searching.await(5, TimeUnit.SECONDS));
+            server.refuseConnections = true;
+            server.connections().get(0).close();
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> search.get(5, TimeUnit.SECONDS));
+            assertEquals("Lost connection to the server", exception.getCause().getMessage());
+            //Переподключиться некуда - следующая операция тоже завершается ошибкой, а не висит
+            exception = assertThrows(ExecutionException.class, () -> client.listCatalogues().get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, exception.getCause());
+        }
+    }
+
+    @Test void refusedConnectionFallsBackToOpenLane() throws Exception {
+        try (FakeServer server = new FakeServer(catalogues(new ConcurrentHashMap<>()));
+             CatalogueClient client = CatalogueClient.connect(server.address(), 2)) {
+            //Сервер больше не принимает соединений, но первое ещё живо
+            server.refuseConnections = true;
+            for (int i = 0; i < 4; i++) {
+                assertEquals(List.of("cat1", "cat2"), client.listCatalogues().get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, server.accepted());
+        }
+    }
+
+    @Test void droppedLaneIsReopened() throws Exception {
+        try (FakeServer server = new FakeServer(catalogues(new ConcurrentHashMap<>()));
+             CatalogueClient client = CatalogueClient.connect(server.address(), 1)) {
+            assertEquals(List.of("/cat1/a.bin"), client.search("cat1", "a.bin").get(5, TimeUnit.SECONDS));
+            server.connections().get(0).close();
+            //Новое соединение выбирает каталог заново: use прежнего соединения на нём не действует
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            List<String> found = null;
+            while (found == null && System.nanoTime() < deadline) {
+                try {
+                    found = client.search("cat1", "b.bin").get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException exception) {
+                    //Обрыв ещё не замечен потоком чтения - запрос ушёл в закрытое соединение
+                    Thread.sleep(10);
+                }
+            }
+            assertEquals(List.of("/cat1/b.bin"), found);
+            assertEquals(2, server.accepted());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package clientside;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryUploadTest {
+    @TempDir
+    Path directory;
+
+    private final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+    private final Map<String, Integer> commands = new ConcurrentHashMap<>();
+
+    //Разбирает тела send и send_batch без сжатия и складывает файлы в stored
+    private FakeServer.Handler receiver() {
+        return (connection, id, command) -> {
+            String name = command.split(" ")[0];
+            commands.merge(name, 1, Integer::sum);
+            connection.body(id).thenAccept(body -> {
+                try {
+                    DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(body));
+                    if (name.equals("send")) {
+                        inputStream.readUTF();
+                        store(inputStream, inputStream.readUTF());
+                        connection.reply(id, "File sent successfully");
+                        return;
+                    }
+                    int count = 0;
+                    String entry;
+                    while (!(entry = inputStream.readUTF()).isEmpty()) {
+                        store(inputStream, entry);
+                        count++;
+                    }
+                    connection.reply(id, "Stored " + count + " of " + count + " file(s)");
+                } catch (IOException exception) {
+                    throw new RuntimeException(exception);
+                }
+            });
+        };
+    }
+
+    private void store(DataInputStream inputStream, String name) throws IOException {
+        byte[] content = new byte[(int) inputStream.readLong()];
+        inputStream.readFully(content);
+        assertNull(stored.put(name, content), "stored twice: " + name);
+    }
+
+    @Test void treeIsUploadedOverAllConnections() throws IOException {
+        Path root = directory.resolve("tree");
+        Map<String, byte[]> expected = new TreeMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 40; i++) {
+            byte[] content = new byte[random.nextInt(4096)];
+            random.nextBytes(content);
+            expected.put("tree/sub" + (i % 3) + "/small" + i + ".bin", content);
+        }
+        //Крупнее окна бинарного протокола: уходит отдельным send и ждёт кредита
+        byte[] large = new byte[FrameConnection.WINDOW + FrameConnection.WINDOW / 2];
+        random.nextBytes(large);
+        expected.put("tree/large.bin", large);
+        expected.put("tree/empty.txt", new byte[0]);
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            Path file = directory.resolve(entry.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, entry.getValue());
+        }
+
+        try (FakeServer server = new FakeServer(receiver())) {
+            List<FrameConnection> connections = new ArrayList<>();
+            try {
+                for (int i = 0; i < 2; i++) {
+                    connections.add(FrameConnection.connect(server.address()));
+                }
+                new DirectoryUpload(root, connections).run();
+            } finally {
+                for (FrameConnection connection : connections) {
+                    connection.close();
+                }
+            }
+        }
+        assertEquals(expected.keySet(), new TreeMap<>(stored).keySet());
+        expected.forEach((name, content) -> assertArrayEquals(content, stored.get(name), name));
+        //Мелкие файлы идут пачками, а не по одному
+        assertEquals(1, (int) commands.get("send"));
+        assertTrue(commands.get("send_batch") < 10, "batches: " + commands.get("send_batch"));
+    }
+
+    @Test void emptyTreeSendsNothing() throws IOException {
+        Files.createDirectories(directory.resolve("empty"));
+        try (FakeServer server = new FakeServer(receiver());
+             FrameConnection connection = FrameConnection.connect(server.address())) {
+            new DirectoryUpload(directory.resolve("empty"), List.of(connection)).run();
+        }
+        assertTrue(commands.isEmpty());
+    }
+}
@@ -0,0 +1,184 @@
+package clientside;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Сервер бинарного протокола для тестов клиента: приветствие, переключение на кадры,
+ * дальше каждая команда отдаётся handler'у в потоке чтения соединения. Тело запроса копится
+ * и приходит целиком в body(id), поэтому handler не должен его ждать - только подписаться.
+ */
+class FakeServer implements Closeable {
+    interface Handler {
+        void onCommand(Connection connection, int id, String command) throws IOException;
+    }
+
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final int maxRequests;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    //true - новые соединения закрываются сразу, как у сервера, который больше никого не принимает
+    volatile boolean refuseConnections;
+    //true - кредит возвращается сразу за каждый полученный кадр тела, как у сервера, который успевает читать
+    volatile boolean grantCredit = true;
+
+    FakeServer(Handler handler) throws IOException {
+        this(handler, 32);
+    }
+
+    FakeServer(Handler handler, int maxRequests) throws IOException {
+        this.handler = handler;
+        this.maxRequests = maxRequests;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "fake-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    int accepted() {
+        return accepted.get();
+    }
+
+    List<Connection> connections() {
+        return connections;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (refuseConnections) {
+                    socket.close();
+                    continue;
+                }
+                accepted.incrementAndGet();
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                Thread reader = new Thread(connection::run, "fake-connection");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException exception) {
+                return;
+            }
+        }
+    }
+
+    final class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+        private final Map<Integer, ByteArrayOutputStream> bodies = new ConcurrentHashMap<>();
+        private final Map<Integer, CompletableFuture<byte[]>> completed = new ConcurrentHashMap<>();
+        //Сколько байт тела получено по всем запросам, для проверки окна
+        private final AtomicInteger received = new AtomicInteger();
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        CompletableFuture<byte[]> body(int id) {
+            return completed.computeIfAbsent(id, key -> new CompletableFuture<>());
+        }
+
+        int received() {
+            return received.get();
+        }
+
+        void reply(int id, String message) throws IOException {
+            write(FrameConnection.RESPONSE, FrameConnection.FLAG_END, id, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void error(int id, String message) throws IOException {
+            write(FrameConnection.ERROR, FrameConnection.FLAG_END, id, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void data(int id, byte[] payload) throws IOException {
+            write(FrameConnection.DATA, (byte) 0, id, payload);
+        }
+
+        void credit(int id, int bytes) throws IOException {
+            write(FrameConnection.CREDIT, (byte) 0, id, ByteBuffer.allocate(Integer.BYTES).putInt(bytes).array());
+        }
+
+        synchronized void write(byte type, byte flags, int id, byte[] payload) throws IOException {
+            outputStream.writeByte(FrameConnection.VERSION);
+            outputStream.writeByte(type);
+            outputStream.writeByte(flags);
+            outputStream.writeInt(id);
+            outputStream.writeInt(payload.length);
+            outputStream.write(payload);
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private void run() {
+            try {
+                outputStream.writeUTF("Hello, Client_" + accepted.get() + " (capabilities: binary)");
+                outputStream.flush();
+                if (!inputStream.readUTF().equals("protocol binary")) {
+                    throw new IOException("Expected protocol switch");
+                }
+                outputStream.writeUTF("protocol binary " + FrameConnection.VERSION + " " + maxRequests);
+                outputStream.flush();
+                while (true) {
+                    byte version = inputStream.readByte();
+                    byte type = inputStream.readByte();
+                    byte flags = inputStream.readByte();
+                    int id = inputStream.readInt();
+                    byte[] payload = new byte[inputStream.readInt()];
+                    inputStream.readFully(payload);
+                    if (version != FrameConnection.VERSION) {
+                        throw new IOException("Unexpected version " + version);
+                    }
+                    if (type == FrameConnection.COMMAND) {
+                        handler.onCommand(this, id, new String(payload, StandardCharsets.UTF_8));
+                    } else if (type == FrameConnection.DATA) {
+                        received.addAndGet(payload.length);
+                        if (grantCredit && payload.length > 0) {
+                            credit(id, payload.length);
+                        }
+                        bodies.computeIfAbsent(id, key -> new ByteArrayOutputStream()).write(payload);
+                        if ((flags & FrameConnection.FLAG_END) != 0) {
+                            body(id).complete(bodies.remove(id).toByteArray());
+                        }
+                    }
+                }
+            } catch (IOException exception) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package clientside;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameConnectionTest {
+    @Test void repliesAreMatchedById() throws Exception {
+        //Ответы идут в обратном порядке: каждый должен попасть в свой запрос
+        Map<Integer, String> commands = new ConcurrentHashMap<>();
+        CountDownLatch all = new CountDownLatch(3);
+        try (FakeServer server = new FakeServer((connection, id, command) -> {
+            commands.put(id, command);
+            all.countDown();
+            if (commands.size() == 3) {
+                List<Integer> ids = new ArrayList<>(commands.keySet());
+                ids.sort((first, second) -> second - first);
+                for (int each : ids) {
+                    connection.data(each, ("data " + commands.get(each)).getBytes());
+                    connection.reply(each, "reply " + commands.get(each));
+                }
+            }
+        }); FrameConnection connection = FrameConnection.connect(server.address())) {
+            FrameConnection.Exchange first = connection.open("first", true);
+            FrameConnection.Exchange second = connection.open("second", false);
+            FrameConnection.Exchange third = connection.open("third", true);
+            assertTrue(all.await(5, TimeUnit.SECONDS));
+            assertEquals("reply first", first.reply().get(5, TimeUnit.SECONDS));
+            assertEquals("reply second", second.reply().get(5, TimeUnit.SECONDS));
+            assertEquals("reply third", third.reply().get(5, TimeUnit.SECONDS));
+            assertEquals("data first", new String(first.input().readAllBytes()));
+            assertEquals("data third", new String(third.input().readAllBytes()));
+        }
+    }
+
+    @Test void errorCompletesOnlyItsRequest() throws Exception {
+        try (FakeServer server = new FakeServer((connection, id, command) -> {
+            if (command.equals("bad")) {
+                connection.error(id, "Unrecognized command!");
+            } else {
+                connection.reply(id, "ok");
+            }
+        }); FrameConnection connection = FrameConnection.connect(server.address())) {
+            CompletableFuture<String> bad = connection.submit("bad");
+            CompletableFuture<String> good = connection.submit("good");
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> bad.get(5, TimeUnit.SECONDS));
+            assertEquals("Unrecognized command!", exception.getCause().getMessage());
+            assertEquals("ok", good.get(5, TimeUnit.SECONDS));
+            assertTrue(connection.isOpen());
+        }
+    }
+
+    @Test void pendingRequestsFailWhenConnectionDrops() throws Exception {
+        CountDownLatch received = new CountDownLatch(2);
+        try (FakeServer server = new FakeServer((connection, id, command) -> received.countDown());
+             FrameConnection connection = FrameConnection.connect(server.address())) {
+            CompletableFuture<String> first = connection.submit("first");
+            FrameConnection.Exchange second = connection.open("second", true);
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            server.connections().get(0).close();
+            for (CompletableFuture<String> reply : List.of(first, second.reply())) {
+                ExecutionException exception = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+                assertEquals("Lost connection to the server", exception.getCause().getMessage());
+            }
+            //Данные оборванного запроса заканчиваются, а не висят
+            assertEquals(0, second.input().readAllBytes().length);
+            assertFalse(connection.isOpen());
+            assertThrows(IOException.class, () -> connection.submit("after"));
+        }
+    }
+
+    @Test void bodyWaitsForCredit() throws Exception {
+        try (FakeServer server = new FakeServer((connection, id, command) ->
+                connection.body(id).thenRun(() -> {
+                    try {
+                        connection.reply(id, "stored");
+                    } catch (IOException ignored) {
+                    }
+                }));
+             FrameConnection connection = FrameConnection.connect(server.address())) {
+            server.grantCredit = false;
+            FrameConnection.Exchange exchange = connection.open("send", false);
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                try {
+                    exchange.body().write(new byte[FrameConnection.WINDOW + 1000]);
+                    exchange.body().close();
+                } catch (IOException exception) {
+                    throw new RuntimeException(exception);
+                }
+            });
+            FakeServer.Connection serverSide = awaitConnection(server);
+            //Без кредита клиент останавливается ровно на окне
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (serverSide.received() < FrameConnection.WINDOW && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            assertEquals(FrameConnection.WINDOW, serverSide.received());
+            assertFalse(writer.isDone());
+            serverSide.credit(exchange.id(), 1000);
+            writer.get(5, TimeUnit.SECONDS);
+            assertEquals("stored", exchange.reply().get(5, TimeUnit.SECONDS));
+            assertEquals(FrameConnection.WINDOW + 1000, serverSide.received());
+        }
+    }
+
+    @Test void bodyIsDroppedOnceServerHasReplied() throws Exception {
+        //Сервер отказал, не читая тело: кредита не будет, но запись не должна зависнуть
+        try (FakeServer server = new FakeServer((connection, id, command) -> connection.reply(id, "This file already exists!"));
+             FrameConnection connection = FrameConnection.connect(server.address())) {
+            FrameConnection.Exchange exchange = connection.open("send", false);
+            assertEquals("This file already exists!", exchange.reply().get(5, TimeUnit.SECONDS));
+            exchange.body().write(new byte[FrameConnection.WINDOW * 3]);
+            exchange.body().close();
+            assertTrue(connection.isOpen());
+        }
+    }
+
+    @Test void requestsInFlightAreLimitedByServer() throws Exception {
+        List<Integer> unanswered = new ArrayList<>();
+        try (FakeServer server = new FakeServer((connection, id, command) -> {
+            synchronized (unanswered) {
+                unanswered.add(id);
+                unanswered.notifyAll();
+            }
+        }, 2); FrameConnection connection = FrameConnection.connect(server.address())) {
+            connection.submit("first");
+            connection.submit("second");
+            CompletableFuture<FrameConnection.Exchange> third = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return connection.open("third", false);
+                } catch (IOException exception) {
+                    throw new RuntimeException(exception);
+                }
+            });
+            Thread.sleep(200);
+            //Третий запрос ждёт, пока сервер не ответит на один из первых двух
+            assertFalse(third.isDone());
+            int answered;
+            synchronized (unanswered) {
+                while (unanswered.size() < 2) {
+                    unanswered.wait(5000);
+                }
+                answered = unanswered.get(0);
+                assertEquals(2, unanswered.size());
+            }
+            server.connections().get(0).reply(answered, "done");
+            assertNotNull(third.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static FakeServer.Connection awaitConnection(FakeServer server) throws InterruptedException {
+        while (server.connections().isEmpty()) {
+            Thread.sleep(10);
+        }
+        return server.connections().get(0);
+    }
+}
@@ -35,7 +35,7 @@ testing {
 // Apply a specific Java toolchain to ease working on different environments.
 java {
     toolchain {
-        languageVersion.set(JavaLanguageVersion.of(16))
+        languageVersion.set(JavaLanguageVersion.of(21))
     }
 }
 
@@ -43,3 +43,41 @@ application {
     // Define the main class for the application.
     mainClass.set("serverside.App")
 }
+
+sourceSets {
+    // Benchmarks live next to the code they measure but are not part of the application jar.
+    create("bench") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+    // JMH benchmarks of the hot paths: copy loop, name index, catalogue commands and loopback load.
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("transferBenchmark") {
+    group = "verification"
+    description = "Compares upload throughput of the heap-buffer copy loop and the zero-copy channel path."
+    classpath = sourceSets["bench"].runtimeClasspath
+    mainClass.set("serverside.logic.TransferThroughput")
+    args(project.findProperty("sizeMb")?.toString() ?: "256")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks; -Pjmh.include=<regex> selects them, -Pjmh.args passes extra JMH options."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    val include = project.findProperty("jmh.include")?.toString()
+    val extra = project.findProperty("jmh.args")?.toString()?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+    args(listOfNotNull(include) + extra + listOf("-rf", "json", "-rff", results.get().asFile.path))
+    doFirst { results.get().asFile.parentFile.mkdirs() }
+}
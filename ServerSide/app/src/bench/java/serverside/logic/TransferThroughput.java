@@ -0,0 +1,117 @@
+package serverside.logic;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Сравнение пропускной способности загрузки через loopback:
+ * старый путь (heap-буфер 4 KB, flush на каждый кусок) против transferTo/transferFrom.
+ * Запуск: ./gradlew transferBenchmark [-PsizeMb=512]
+ */
+public class TransferThroughput {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        Path source = Files.createTempFile("transfer-source", ".bin");
+        Path target = Files.createTempFile("transfer-target", ".bin");
+        writeRandom(source, size);
+        ExecutorService receiver = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            //Первый прогон каждого варианта - прогрев JIT и страничного кэша
+            for (int round = 0; round <= ROUNDS; round++) {
+                long legacy = measure(serverChannel, receiver, source, target, size, false);
+                long zeroCopy = measure(serverChannel, receiver, source, target, size, true);
+                if (round > 0) {
+                    System.out.printf("round %d: heap 4 KB %8.1f MB/s, zero-copy %8.1f MB/s%n",
+                            round, megabytesPerSecond(size, legacy), megabytesPerSecond(size, zeroCopy));
+                }
+            }
+        } finally {
+            receiver.shutdownNow();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private static long measure(ServerSocketChannel serverChannel, ExecutorService receiver, Path source, Path target,
+                                long size, boolean zeroCopy) throws Exception {
+        Files.deleteIfExists(target);
+        Future<?> received = receiver.submit(() -> {
+            try (SocketChannel channel = serverChannel.accept();
+                 FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                DataInputStream inputStream = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+                if (zeroCopy) {
+                    FileTransfer.receive(inputStream, channel, fileChannel, size);
+                } else {
+                    receiveLegacy(inputStream, fileChannel, size);
+                }
+            }
+            return null;
+        });
+        long start = System.nanoTime();
+        try (SocketChannel channel = SocketChannel.open(serverChannel.getLocalAddress());
+             FileChannel fileChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (zeroCopy) {
+                long position = 0;
+                while (position < size) {
+                    position += fileChannel.transferTo(position, size - position, channel);
+                }
+            } else {
+                sendLegacy(new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream())), fileChannel);
+            }
+            received.get();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void sendLegacy(DataOutputStream outputStream, FileChannel fileChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+        while (fileChannel.read(buffer) != -1) {
+            buffer.flip();
+            outputStream.write(buffer.array(), 0, buffer.remaining());
+            outputStream.flush();
+            buffer.clear();
+        }
+    }
+
+    private static void receiveLegacy(DataInputStream inputStream, FileChannel fileChannel, long size) throws IOException {
+        byte[] chunk = new byte[4 * 1024];
+        while (size > 0) {
+            int count = inputStream.read(chunk, 0, (int) Math.min(chunk.length, size));
+            if (count < 0) {
+                throw new EOFException();
+            }
+            fileChannel.write(ByteBuffer.wrap(chunk, 0, count));
+            size -= count;
+        }
+    }
+
+    private static void writeRandom(Path path, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                outputStream.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static double megabytesPerSecond(long size, long nanos) {
+        return size / (1024.0 * 1024.0) / (nanos / 1_000_000_000.0);
+    }
+}
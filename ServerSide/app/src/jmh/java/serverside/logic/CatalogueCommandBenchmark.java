@@ -0,0 +1,69 @@
+package serverside.logic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * files, search и разбор/диспетчеризация команд через настоящий сервер и текстовый протокол,
+ * на каталогах из 10 тысяч, 100 тысяч и миллиона файлов. Один клиент, команды по очереди.
+ * ./gradlew jmh -Pjmh.include=CatalogueCommand
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogueCommandBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    private ServerProcess server;
+    private ServerProcess.TextClient client;
+    private String catalogue;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        catalogue = "tree" + files;
+        Path base = SyntheticTree.baseDirectory();
+        SyntheticTree.create(base, catalogue, files);
+        server = ServerProcess.start(base, catalogue, "blocking");
+        client = server.text();
+        client.command("use " + catalogue);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    //Первая страница листинга (listing.pageSize записей)
+    @Benchmark
+    public int listFirstPage() throws Exception {
+        return client.listing("files " + catalogue);
+    }
+
+    @Benchmark
+    public String searchPrefix() throws Exception {
+        return client.command("search report-0000*");
+    }
+
+    @Benchmark
+    public String searchSubstring() throws Exception {
+        return client.command("search *0042*");
+    }
+
+    @Benchmark
+    public String searchExact() throws Exception {
+        return client.command("search " + SyntheticTree.fileName(files / 2));
+    }
+
+    //Самая дешёвая команда: по сути стоимость readUTF, разбора и switch в ClientHandler плюс обмен по loopback
+    @Benchmark
+    public String dispatch() throws Exception {
+        return client.command("catalogs");
+    }
+}
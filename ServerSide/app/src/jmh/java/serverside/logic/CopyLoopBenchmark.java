@@ -0,0 +1,155 @@
+package serverside.logic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Цикл копирования тела файла через loopback: приём (receiveFile) и отправка (uploadFile).
+ * bufferSize - размер heap-буфера, 0 - путь FileTransfer через transferFrom/transferTo.
+ * Операция - один мегабайт, поэтому ops/s читается как МБ/с.
+ * ./gradlew jmh -Pjmh.include=CopyLoop
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyLoopBenchmark {
+    private static final int MEGABYTES = 16;
+    private static final long SIZE = MEGABYTES * 1024L * 1024L;
+
+    @State(Scope.Thread)
+    public static class Loopback {
+        @Param({"0", "4096", "65536", "262144", "1048576"})
+        public int bufferSize;
+
+        SocketChannel local;
+        SocketChannel remote;
+        DataInputStream input;
+        DataOutputStream output;
+        FileChannel file;
+        byte[] heapBuffer;
+        private Path path;
+        private Thread peer;
+
+        //Другой конец соединения бесконечно пишет (для приёма) или вычитывает (для отправки)
+        void open(boolean peerWrites) throws IOException {
+            try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                local = SocketChannel.open(listener.getLocalAddress());
+                remote = listener.accept();
+            }
+            input = new DataInputStream(new BufferedInputStream(local.socket().getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(local.socket().getOutputStream()));
+            path = Files.createTempFile("copy-loop", ".bin");
+            writeRandom(path);
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            heapBuffer = new byte[Math.max(1, bufferSize)];
+            peer = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                try {
+                    while (true) {
+                        buffer.clear();
+                        if (peerWrites) {
+                            remote.write(buffer);
+                        } else if (remote.read(buffer) < 0) {
+                            return;
+                        }
+                    }
+                } catch (IOException closed) {
+                    //Соединение закрыто в TearDown
+                }
+            }, "copy-loop-peer");
+            peer.setDaemon(true);
+            peer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            local.close();
+            remote.close();
+            peer.join(1000);
+            file.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    public static class Receive extends Loopback {
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            open(true);
+        }
+    }
+
+    public static class Upload extends Loopback {
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            open(false);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEGABYTES)
+    public long receive(Receive state) throws IOException {
+        if (state.bufferSize == 0) {
+            return FileTransfer.receive(state.input, state.local, state.file, SIZE);
+        }
+        //Прежний цикл receiveFile: read в heap-буфер и запись в файл
+        long position = 0;
+        while (position < SIZE) {
+            int count = state.input.read(state.heapBuffer, 0, (int) Math.min(state.heapBuffer.length, SIZE - position));
+            if (count < 0) {
+                throw new EOFException();
+            }
+            ByteBuffer source = ByteBuffer.wrap(state.heapBuffer, 0, count);
+            while (source.hasRemaining()) {
+                position += state.file.write(source, position);
+            }
+        }
+        return position;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEGABYTES)
+    public long upload(Upload state) throws IOException {
+        if (state.bufferSize == 0) {
+            FileTransfer.send(state.output, state.local, state.file, 0, SIZE);
+            return SIZE;
+        }
+        //Цикл uploadFile без sendfile: чтение файла в heap-буфер и запись в поток сокета
+        long position = 0;
+        while (position < SIZE) {
+            int count = state.file.read(ByteBuffer.wrap(state.heapBuffer), position);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            state.output.write(state.heapBuffer, 0, count);
+            position += count;
+        }
+        state.output.flush();
+        return position;
+    }
+
+    private static void writeRandom(Path path) throws IOException {
+        Random random = new Random(42);
+        byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            for (int i = 0; i < MEGABYTES; i++) {
+                random.nextBytes(chunk);
+                outputStream.write(chunk);
+            }
+        }
+    }
+}
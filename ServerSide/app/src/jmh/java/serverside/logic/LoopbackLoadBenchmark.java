@@ -0,0 +1,77 @@
+package serverside.logic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Сквозная нагрузка: N одновременных клиентов по loopback, бинарный протокол, у каждого своё соединение.
+ * N - число потоков JMH, по умолчанию 8: ./gradlew jmh -Pjmh.include=LoopbackLoad -Pjmh.args="-t 64"
+ * Throughput - суммарные операции по всем клиентам, SampleTime - распределение задержек (p50/p99/p99.9).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class LoopbackLoadBenchmark {
+    private static final String CATALOGUE = "load";
+    private static final String PAYLOAD = "payload.bin";
+
+    @State(Scope.Benchmark)
+    public static class Target {
+        @Param({"blocking", "nio"})
+        public String mode;
+
+        @Param({"1048576"})
+        public int payloadSize;
+
+        ServerProcess server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            Path base = SyntheticTree.baseDirectory();
+            Path root = SyntheticTree.create(base, CATALOGUE, 10_000);
+            SyntheticTree.payload(root, PAYLOAD, payloadSize);
+            server = ServerProcess.start(base, CATALOGUE, mode);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        ServerProcess.FrameClient connection;
+
+        @Setup(Level.Trial)
+        public void connect(Target target) throws Exception {
+            connection = target.server.frames();
+            connection.call("use " + CATALOGUE);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws Exception {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public long smallCommand(Client client) throws Exception {
+        return client.connection.call("catalogs");
+    }
+
+    @Benchmark
+    public long search(Client client) throws Exception {
+        return client.connection.call("search log*12.txt");
+    }
+
+    @Benchmark
+    public long download(Client client) throws Exception {
+        return client.connection.call("get " + PAYLOAD);
+    }
+}
@@ -0,0 +1,64 @@
+package serverside.logic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Поиск по FileNameIndex без диска и сети: префикс, подстрока и glob на синтетических именах.
+ * Та же работа, что у search на сервере, за вычетом протокола - см. CatalogueCommandBenchmark.
+ * ./gradlew jmh -Pjmh.include=NameIndex
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class NameIndexBenchmark {
+    private static final int LIMIT = 50;
+
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    private FileNameIndex index;
+
+    @Setup(Level.Trial)
+    public void build() {
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < files; i++) {
+            names.add(SyntheticTree.fileName(i));
+        }
+        index = new FileNameIndex(names);
+        index.rebuild();
+    }
+
+    @Benchmark
+    public List<String> prefix() {
+        return index.find("report-0000*", LIMIT);
+    }
+
+    @Benchmark
+    public List<String> substring() {
+        return index.find("*0042*", LIMIT);
+    }
+
+    @Benchmark
+    public List<String> glob() {
+        return index.find("img_*7.png", LIMIT);
+    }
+
+    //Редкое совпадение: кандидатов по триграммам много, подходящих почти нет
+    @Benchmark
+    public List<String> selectiveGlob() {
+        return index.find("log*9?2.txt", LIMIT);
+    }
+
+    @Benchmark
+    public List<String> exactName() {
+        return index.find(SyntheticTree.fileName(files / 2), LIMIT);
+    }
+}
@@ -0,0 +1,221 @@
+package serverside.logic;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Сервер для сквозных бенчмарков: отдельный процесс на том же classpath в режиме server.headless,
+ * останавливается SIGTERM. Вывод сервера - в <порт>.log рядом с каталогами.
+ */
+final class ServerProcess implements Closeable {
+    //Индекс строится до начала приёма (catalog.indexInBackground=false), иначе замеры попали бы на обход диска
+    private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Process process;
+    private final int port;
+    private final Path propertiesFile;
+
+    private ServerProcess(Process process, int port, Path propertiesFile) {
+        this.process = process;
+        this.propertiesFile = propertiesFile;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws IOException {
+        new Server(PropertiesLoader.propertiesLoader(args[0])).start();
+    }
+
+    //catalogue - имя каталога внутри base; mode - blocking или nio
+    static ServerProcess start(Path base, String catalogue, String mode) throws IOException, InterruptedException {
+        return start(base, catalogue, mode, new Properties());
+    }
+
+    //extra - дополнительные настройки сервера поверх обязательных
+    static ServerProcess start(Path base, String catalogue, String mode, Properties extra) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        Properties properties = new Properties();
+        properties.putAll(extra);
+        properties.setProperty("server.port", String.valueOf(port));
+        properties.setProperty("server.address", "127.0.0.1");
+        properties.setProperty("server.mode", mode);
+        properties.setProperty("server.executor", "virtual");
+        properties.setProperty("server.maxClients", "1000");
+        properties.setProperty("catalog.<id>.name", "catalog." + catalogue + ".name");
+        properties.setProperty("catalog.<id>.dir", "catalog." + catalogue + ".dir");
+        properties.setProperty("catalog.indexInBackground", "false");
+        properties.setProperty("server.headless", "true");
+        //Загрузки бенчмарка обрываются остановом, ждать их незачем
+        properties.setProperty("shutdown.drainSeconds", "0");
+        Path propertiesFile = base.resolve(port + ".properties");
+        try (OutputStream outputStream = Files.newOutputStream(propertiesFile)) {
+            properties.store(outputStream, null);
+        }
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), ServerProcess.class.getName(), propertiesFile.toString())
+                .directory(base.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(base.resolve(port + ".log").toFile())
+                .start();
+        ServerProcess server = new ServerProcess(process, port, propertiesFile);
+        server.awaitAccepting();
+        return server;
+    }
+
+    private void awaitAccepting() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                new TextClient(port).close();
+                return;
+            } catch (IOException exception) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Benchmark server did not start on port " + port, exception);
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    TextClient text() throws IOException {
+        return new TextClient(port);
+    }
+
+    FrameClient frames() throws IOException {
+        return new FrameClient(port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException exception) {
+            process.destroyForcibly();
+        }
+        Files.deleteIfExists(propertiesFile);
+    }
+
+    //Текстовый протокол, команды строго по очереди - тот же путь, что readUTF и onCommand в ClientHandler.run()
+    static final class TextClient implements Closeable {
+        private final Socket socket;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+
+        private TextClient(int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            //Рассылки о подключении других клиентов могут прийти раньше приветствия
+            while (!inputStream.readUTF().startsWith("Hello")) {
+            }
+        }
+
+        String command(String command) throws IOException {
+            outputStream.writeUTF(command);
+            outputStream.flush();
+            return reply();
+        }
+
+        //Рассылки о подключениях других клиентов приходят в тот же поток, что и ответы
+        private String reply() throws IOException {
+            String line;
+            while ((line = inputStream.readUTF()).startsWith("[SERVER]")) {
+            }
+            return line;
+        }
+
+        //files/currcat_files: записи "int длина + байты" до -1, затем строка статуса
+        int listing(String command) throws IOException {
+            outputStream.writeUTF(command);
+            outputStream.flush();
+            int records = 0;
+            int length;
+            while ((length = inputStream.readInt()) >= 0) {
+                inputStream.skipNBytes(length);
+                records++;
+            }
+            inputStream.readUTF();
+            return records;
+        }
+
+        //send: тело размером size из повторов chunk, ответ - строка статуса
+        String send(String fileName, byte[] chunk, long size) throws IOException {
+            outputStream.writeUTF("send " + fileName);
+            outputStream.writeUTF(fileName);
+            outputStream.writeUTF(fileName);
+            outputStream.writeLong(size);
+            for (long sent = 0; sent < size; sent += chunk.length) {
+                outputStream.write(chunk, 0, (int) Math.min(chunk.length, size - sent));
+            }
+            outputStream.flush();
+            return reply();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    //Бинарный протокол; запросы по одному, события других клиентов пропускаются
+    static final class FrameClient implements Closeable {
+        private final Socket socket;
+        private final DataInputStream inputStream;
+        private final BinaryProtocol.FrameWriter writer;
+        private final AtomicInteger nextId = new AtomicInteger(1);
+
+        private FrameClient(int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (!inputStream.readUTF().startsWith("Hello")) {
+            }
+            outputStream.writeUTF(BinaryProtocol.SWITCH_COMMAND);
+            outputStream.flush();
+            while (!inputStream.readUTF().startsWith(BinaryProtocol.SWITCH_COMMAND)) {
+            }
+            writer = new BinaryProtocol.FrameWriter(outputStream);
+        }
+
+        //Возвращает число байт данных в ответе (кадры DATA)
+        long call(String command) throws IOException {
+            int id = nextId.getAndIncrement();
+            writer.write(BinaryProtocol.COMMAND, (byte) 0, id, command.getBytes(StandardCharsets.UTF_8));
+            long data = 0;
+            while (true) {
+                BinaryProtocol.Frame frame = BinaryProtocol.readFrame(inputStream);
+                if (frame.requestId() != id) {
+                    continue;
+                }
+                if (frame.type() == BinaryProtocol.DATA) {
+                    data += frame.payload().length;
+                } else if (frame.type() == BinaryProtocol.ERROR) {
+                    throw new IOException(new String(frame.payload(), StandardCharsets.UTF_8));
+                } else if (frame.type() == BinaryProtocol.RESPONSE && frame.isEnd()) {
+                    return data;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package serverside.logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+ * Синтетические каталоги для бенчмарков: имена четырёх видов, по 1000 пустых файлов в подкаталоге.
+ * Дерево создаётся один раз и переиспользуется между запусками: миллион файлов - это минуты.
+ */
+final class SyntheticTree {
+    private static final String[] PATTERNS = {"report-%07d.csv", "img_%07d.png", "log%07d.txt", "data.%07d.json"};
+    private static final int FILES_PER_DIRECTORY = 1000;
+
+    private SyntheticTree() {
+    }
+
+    static Path baseDirectory() throws IOException {
+        return Files.createDirectories(Path.of(System.getProperty("java.io.tmpdir"), "jmh-catalogues"));
+    }
+
+    static String fileName(int index) {
+        return String.format(PATTERNS[index % PATTERNS.length], index);
+    }
+
+    //name без разделителей пути: только такие имена принимает разбор catalog.<id>.name
+    static Path create(Path base, String name, int files) throws IOException {
+        Path root = base.resolve(name);
+        Path marker = base.resolve(name + ".complete");
+        if (Files.exists(marker)) {
+            return root;
+        }
+        //Недостроенное дерево от прерванного запуска
+        if (Files.exists(root)) {
+            try (Stream<Path> tree = Files.walk(root)) {
+                for (Path path : (Iterable<Path>) tree.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+        for (int i = 0; i < files; i++) {
+            Path directory = root.resolve(String.format("d%04d", i / FILES_PER_DIRECTORY));
+            if (i % FILES_PER_DIRECTORY == 0) {
+                Files.createDirectories(directory);
+            }
+            Files.createFile(directory.resolve(fileName(i)));
+        }
+        Files.createFile(marker);
+        return root;
+    }
+
+    //Файл со случайным содержимым в корне каталога, например для get
+    static void payload(Path root, String fileName, int size) throws IOException {
+        Path file = root.resolve(fileName);
+        if (Files.exists(file) && Files.size(file) == size) {
+            return;
+        }
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+            outputStream.write(content);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package serverside.logic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Задержка интерактивных команд, пока несколько клиентов непрерывно загружают большие файлы.
+ * shaping: none - как без ограничений, fair - DRR по кускам с одним слотом записи,
+ * shaped - то же плюс общий лимит transfer.rate. Смотреть на p99/p99.9 в SampleTime.
+ * ./gradlew jmh -Pjmh.include=UploadFairness
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UploadFairnessBenchmark {
+    private static final String CATALOGUE = "fairness";
+    private static final long FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"none", "fair", "shaped"})
+    public String shaping;
+
+    @Param({"8"})
+    public int uploaders;
+
+    @Param({"64m"})
+    public String rate;
+
+    private ServerProcess server;
+    private ServerProcess.TextClient client;
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final LongAdder uploaded = new LongAdder();
+    private long started;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        Path base = SyntheticTree.baseDirectory();
+        Path root = SyntheticTree.create(base, CATALOGUE, 10_000);
+        //Недокачанные файлы прошлого запуска: сервер останавливается посреди загрузок
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(root, "upload-*.bin")) {
+            for (Path leftover : leftovers) {
+                Files.delete(leftover);
+            }
+        }
+        Properties properties = new Properties();
+        if (!shaping.equals("none")) {
+            properties.setProperty("transfer.fair", "true");
+            properties.setProperty("transfer.slots", "1");
+        }
+        if (shaping.equals("shaped")) {
+            properties.setProperty("transfer.rate", rate);
+        }
+        server = ServerProcess.start(base, CATALOGUE, "blocking", properties);
+        List<ServerProcess.TextClient> connections = new ArrayList<>();
+        for (int i = 0; i < uploaders; i++) {
+            ServerProcess.TextClient connection = server.text();
+            connection.command("use " + CATALOGUE);
+            connections.add(connection);
+        }
+        //Измеряющий клиент подключается последним: больше рассылок о подключениях он не получит
+        client = server.text();
+        client.command("use " + CATALOGUE);
+        byte[] chunk = new byte[64 * 1024];
+        new Random(7).nextBytes(chunk);
+        for (int i = 0; i < uploaders; i++) {
+            ServerProcess.TextClient connection = connections.get(i);
+            String prefix = "upload-" + i + "-";
+            Thread thread = new Thread(() -> upload(connection, root, prefix, chunk), "uploader-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        started = System.nanoTime();
+        threads.forEach(Thread::start);
+    }
+
+    private void upload(ServerProcess.TextClient connection, Path root, String prefix, byte[] chunk) {
+        try (connection) {
+            for (long n = 0; running.get(); n++) {
+                String fileName = prefix + n + ".bin";
+                connection.send(fileName, chunk, FILE_SIZE);
+                uploaded.add(FILE_SIZE);
+                Files.deleteIfExists(root.resolve(fileName));
+            }
+        } catch (IOException exception) {
+            if (running.get()) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        running.set(false);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("%nuploads: %.1f MB/s in total across %d client(s)%n", uploaded.sum() / seconds / (1024 * 1024), uploaders);
+        client.close();
+        server.close();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Benchmark
+    public String catalogs() throws Exception {
+        return client.command("catalogs");
+    }
+
+    @Benchmark
+    public String search() throws Exception {
+        return client.command("search log*12.txt");
+    }
+
+    @Benchmark
+    public int files() throws Exception {
+        return client.listing("files " + CATALOGUE);
+    }
+}
@@ -7,12 +7,36 @@ import serverside.logic.PropertiesLoader;
 import serverside.logic.Server;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
 
 public class App {
+    //Путь по умолчанию - относительно каталога app, из которого его запускает gradle run
+    private static final String DEFAULT_CONFIG = "src/props.properties";
 
+    //Аргументы: [--headless] [путь к props] [ключ=значение ...]; ключ=значение перекрывает настройку из файла.
+    //--headless - то же, что server.headless=true: приём начинается сразу, без команды start в консоли
     public static void main(String[] args) {
+        String config = System.getenv().getOrDefault("SERVER_CONFIG", DEFAULT_CONFIG);
+        Properties overrides = new Properties();
+        for (String argument : args) {
+            if (argument.equals("--headless")) {
+                overrides.setProperty("server.headless", "true");
+            } else if (argument.indexOf('=') > 0) {
+                overrides.setProperty(argument.substring(0, argument.indexOf('=')).trim(), argument.substring(argument.indexOf('=') + 1).trim());
+            } else {
+                config = argument;
+            }
+        }
+        if (!Files.isRegularFile(Path.of(config))) {
+            System.out.println("Properties file not found: " + config + ". Usage: App [--headless] [path to props] [key=value ...]");
+            System.exit(1);
+        }
         try {
-            Server server = new Server(PropertiesLoader.propertiesLoader("C:\\Users\\Ineed\\Desktop\\ITHillelGit\\ItHillelGit\\ithillelhomework\\Hometasks\\Lecture 20\\ServerSide\\app\\src\\props.properties"));
+            Properties properties = PropertiesLoader.propertiesLoader(config);
+            properties.putAll(overrides);
+            Server server = new Server(properties);
             server.start();
         } catch (IOException exception) {
             exception.printStackTrace();
@@ -0,0 +1,98 @@
+package serverside.logic;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Бинарный протокол поверх того же сокета. Клиент переключается командой "protocol binary"
+ * в текстовом режиме, после ответа "protocol binary <версия>" обе стороны обмениваются кадрами:
+ *
+ *   byte версия | byte тип | byte флаги | int id запроса | int длина | тело
+ *
+ * Каждая команда несёт свой id, поэтому клиент может слать команды не дожидаясь ответов,
+ * а ответы (RESPONSE с флагом END в конце, перед ним при необходимости DATA) сопоставлять по id.
+ * Сообщения сервера всем клиентам приходят кадрами EVENT с id 0 и не смешиваются с ответами.
+ *
+ * Тело запроса идёт под окном: без ответа клиент может отправить по запросу не больше WINDOW байт,
+ * дальше сервер по мере чтения возвращает кредит кадрами CREDIT (тело - int, сколько байт добавить).
+ * Поэтому читатель кадров никогда не ждёт медленную команду и не задерживает кадры соседних запросов.
+ * Число одновременных запросов на соединение сервер сообщает в ответе на переключение:
+ * "protocol binary <версия> <лимит>".
+ */
+final class BinaryProtocol {
+    static final byte VERSION = 2;
+    static final int HEADER_SIZE = 11;
+    static final int MAX_PAYLOAD = 1024 * 1024;
+    static final String SWITCH_COMMAND = "protocol binary";
+
+    static final byte COMMAND = 1;
+    static final byte RESPONSE = 2;
+    static final byte EVENT = 3;
+    static final byte DATA = 4;
+    static final byte ERROR = 5;
+    static final byte CREDIT = 6;
+
+    static final int WINDOW = 1024 * 1024;
+
+    static final byte FLAG_END = 1;
+
+    private BinaryProtocol() {
+    }
+
+    record Frame(byte type, byte flags, int requestId, byte[] payload) {
+        boolean isEnd() {
+            return (flags & FLAG_END) != 0;
+        }
+    }
+
+    static Frame readFrame(DataInputStream inputStream) throws IOException {
+        byte version = inputStream.readByte();
+        byte type = inputStream.readByte();
+        byte flags = inputStream.readByte();
+        int requestId = inputStream.readInt();
+        int length = inputStream.readInt();
+        validateHeader(version, length);
+        byte[] payload = new byte[length];
+        inputStream.readFully(payload);
+        return new Frame(type, flags, requestId, payload);
+    }
+
+    static void validateHeader(byte version, int length) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    //Пишет кадры целиком под одной блокировкой, поэтому ответы разных запросов не перемешиваются внутри кадра.
+    //ReentrantLock, а не synchronized: запись в сокет блокирует, а виртуальный поток под монитором не отпускает носитель
+    static final class FrameWriter {
+        private final DataOutputStream outputStream;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        FrameWriter(DataOutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        void write(byte type, byte flags, int requestId, byte[] payload, int offset, int length) throws IOException {
+            lock.lock();
+            try {
+                outputStream.writeByte(VERSION);
+                outputStream.writeByte(type);
+                outputStream.writeByte(flags);
+                outputStream.writeInt(requestId);
+                outputStream.writeInt(length);
+                outputStream.write(payload, offset, length);
+                outputStream.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void write(byte type, byte flags, int requestId, byte[] payload) throws IOException {
+            write(type, flags, requestId, payload, 0, payload.length);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package serverside.logic;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Пул direct-буферов одного размера. Буферы вне кучи дорого создавать,
+ * поэтому они переиспользуются между передачами, а лишние просто отдаются GC.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    //Для O_DIRECT адрес и размер буфера должны быть кратны блоку файловой системы; 0 - без выравнивания
+    private final int alignment;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, 0);
+    }
+
+    BufferPool(int bufferSize, int maxPooled, int alignment) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.alignment = alignment;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return alignment > 0 ? ByteBuffer.allocateDirect(bufferSize + alignment).alignedSlice(alignment)
+                    : ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,245 @@
+package serverside.logic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Индекс файлов каталогов в памяти. Строится один раз при старте обходом диска,
+ * дальше поддерживается событиями WatchService, поэтому files/search не ходят на диск.
+ * Если наблюдение за каталогом невозможно (например, кончились inotify watches),
+ * каталог помечается как неактуальный и запросы к нему снова идут через Files.walk.
+ */
+class CatalogueIndex implements Closeable {
+    private final Map<String, Catalogue> catalogues = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Directory> watchedDirectories = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+    private final Thread watcher;
+    //Метаданные для stat сбрасываются теми же событиями, что обновляют индекс; null - кэша нет
+    private final MetadataCache metadataCache;
+
+    CatalogueIndex(MetadataCache metadataCache) throws IOException {
+        this.metadataCache = metadataCache;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watcher = new Thread(this::processEvents, "catalogue-watcher");
+        watcher.setDaemon(true);
+    }
+
+    void add(String name, Path root) {
+        Catalogue catalogue = new Catalogue(root.toAbsolutePath().normalize());
+        catalogues.put(name, catalogue);
+        catalogue.rebuild();
+    }
+
+    //Служебные файлы сервера (недокачанные загрузки, временные файлы дедупликации) лежат в каталогах,
+    //но клиентам не показываются, а их имена нельзя занять загрузкой
+    static boolean isServerFile(String fileName) {
+        return ResumableUploads.isUploadFile(fileName) || fileName.endsWith(DedupStore.IMPORT_SUFFIX);
+    }
+
+    //Для обхода диска там, где индекса нет
+    static boolean isCatalogueFile(Path path) {
+        return Files.isRegularFile(path) && !isServerFile(path.getFileName().toString());
+    }
+
+    Catalogue get(String name) {
+        return catalogues.get(name);
+    }
+
+    Collection<Catalogue> catalogues() {
+        return catalogues.values();
+    }
+
+    void start() {
+        watcher.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.interrupt();
+        watchService.close();
+    }
+
+    private void processEvents() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException exception) {
+                return;
+            }
+            Directory directory = watchedDirectories.get(key);
+            if (directory == null) {
+                key.cancel();
+                continue;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    //События потеряны - состояние каталога неизвестно, пересобираем его целиком
+                    directory.catalogue.rebuild();
+                    continue;
+                }
+                Path child = directory.path.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    directory.catalogue.removeTree(child);
+                } else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    directory.catalogue.addTree(child);
+                } else if (Files.isRegularFile(child)) {
+                    directory.catalogue.addFile(child);
+                    //Изменение содержимого индекс не трогает, а вот размер, время и хеш устарели
+                    invalidate(child);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private void invalidate(Path file) {
+        if (metadataCache != null) {
+            metadataCache.invalidate(file);
+        }
+    }
+
+    private record Directory(Catalogue catalogue, Path path) {
+    }
+
+    class Catalogue {
+        private final Path root;
+        //Ключ - путь относительно корня каталога, отсортированный порядок нужен для постраничной выдачи
+        private final ConcurrentSkipListMap<String, Path> files = new ConcurrentSkipListMap<>();
+        private final Map<String, Set<Path>> filesByName = new ConcurrentHashMap<>();
+        private final FileNameIndex nameIndex = new FileNameIndex(filesByName.keySet());
+        private volatile boolean live;
+
+        private Catalogue(Path root) {
+            this.root = root;
+        }
+
+        Path root() {
+            return root;
+        }
+
+        boolean isLive() {
+            return live;
+        }
+
+        int size() {
+            return files.size();
+        }
+
+        //Файлы в порядке ключей строго после afterKey (null - с начала), для постраничной выдачи
+        NavigableMap<String, Path> filesAfter(String afterKey) {
+            return afterKey == null ? files : files.tailMap(afterKey, false);
+        }
+
+        Set<Path> findByName(String fileName) {
+            return filesByName.getOrDefault(fileName, Collections.emptySet());
+        }
+
+        FileNameIndex nameIndex() {
+            return nameIndex;
+        }
+
+        //Пока индекс наполняется заново, каталог не живой: files и search идут на диск, а не получают
+        //пустой или частичный индекс как полный
+        private synchronized void rebuild() {
+            live = false;
+            nameIndex.suspend();
+            if (metadataCache != null) {
+                metadataCache.invalidateTree(root);
+            }
+            files.clear();
+            filesByName.clear();
+            live = Files.isDirectory(root) && addTree(root);
+            nameIndex.rebuild();
+            if (!live) {
+                System.out.println("Catalogue " + root + " is not indexed, listings will be read from disk");
+            }
+        }
+
+        private boolean addTree(Path start) {
+            try {
+                Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                        WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        watchedDirectories.put(key, new Directory(Catalogue.this, directory));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (attributes.isRegularFile()) {
+                            addFile(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                return true;
+            } catch (IOException exception) {
+                System.out.println("Failed to watch " + start + ": " + exception.getMessage());
+                live = false;
+                return false;
+            }
+        }
+
+        private void addFile(Path file) {
+            String name = file.getFileName().toString();
+            if (isServerFile(name)) {
+                return;
+            }
+            if (files.putIfAbsent(key(file), file) == null) {
+                Set<Path> paths = filesByName.computeIfAbsent(name, key -> ConcurrentHashMap.newKeySet());
+                paths.add(file);
+                if (paths.size() == 1) {
+                    nameIndex.onNameAdded(name);
+                }
+            }
+        }
+
+        private void removeTree(Path path) {
+            String prefix = key(path);
+            //Удалённый путь может быть как файлом, так и целым подкаталогом
+            removeFile(prefix);
+            Iterator<String> iterator = files.tailMap(prefix + "/", true).keySet().iterator();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                if (!key.startsWith(prefix + "/")) {
+                    break;
+                }
+                removeFile(key);
+            }
+        }
+
+        private void removeFile(String key) {
+            Path file = files.remove(key);
+            if (file != null) {
+                invalidate(file);
+                String name = file.getFileName().toString();
+                Set<Path> paths = filesByName.computeIfPresent(name, (ignored, current) -> {
+                    current.remove(file);
+                    return current.isEmpty() ? null : current;
+                });
+                if (paths == null) {
+                    nameIndex.onNameRemoved(name);
+                }
+            }
+        }
+
+        private String key(Path file) {
+            return root.relativize(file).toString().replace('\\', '/');
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package serverside.logic;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * Кольцо консистентного хеширования узлов кластера. Узел занимает virtualNodes точек кольца,
+ * каталог принадлежит первому узлу по часовой стрелке от хеша своего имени, копии - следующим различным узлам.
+ * Появление или пропажа узла в списке переносит только соседние с ним отрезки кольца.
+ * Клиент строит такое же кольцо (clientside.ClusterRing) из ответа на команду cluster - хеш и обход должны совпадать.
+ */
+class ClusterRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes;
+
+    ClusterRing(List<String> nodes, int virtualNodes) {
+        this.nodes = List.copyOf(nodes);
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    //Узлы каталога по порядку предпочтения: владелец, затем реплики; не больше count и не больше числа узлов
+    List<String> nodesFor(String catalogue, int count) {
+        List<String> result = new ArrayList<>();
+        long point = hash(catalogue);
+        collect(ring.tailMap(point, true).values(), result, count);
+        collect(ring.headMap(point, false).values(), result, count);
+        return result;
+    }
+
+    private static void collect(Collection<String> points, List<String> result, int count) {
+        for (String node : points) {
+            if (result.size() >= count) {
+                return;
+            }
+            if (!result.contains(node)) {
+                result.add(node);
+            }
+        }
+    }
+
+    //Первые 8 байт MD5: равномерно и одинаково на любой JVM, криптостойкость здесь не нужна
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
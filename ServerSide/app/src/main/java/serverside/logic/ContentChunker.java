@@ -0,0 +1,45 @@
+package serverside.logic;
+
+/*
+ * Нарезка по содержимому (gear hash, как в FastCDC): граница куска зависит только от последних
+ * 64 байт перед ней, поэтому вставка в начало файла сдвигает лишь соседние куски, остальные совпадают.
+ * Таблица и параметры должны совпадать с клиентской копией, иначе куски сервера и клиента не сойдутся.
+ */
+final class ContentChunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+    //16 старших бит - в среднем граница раз в 64 КБ после минимального размера
+    private static final long MASK = 0xFFFFL << 48;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        //splitmix64 с фиксированным зерном: таблица одинакова на любой JVM
+        long seed = 0x5EED_C0DE_F11E_5L;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private ContentChunker() {
+    }
+
+    //Длина следующего куска из data[offset, offset + length). Вызывающий даёт не меньше MAX_SIZE байт,
+    //если только это не хвост потока - тогда последний кусок может быть короче минимума
+    static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int end = offset + Math.min(length, MAX_SIZE);
+        long hash = 0;
+        for (int i = offset + MIN_SIZE; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK) == 0) {
+                return i + 1 - offset;
+            }
+        }
+        return end - offset;
+    }
+}
@@ -0,0 +1,247 @@
+package serverside.logic;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/*
+ * Хранилище с дедупликацией (storage.mode = dedup). Содержимое режется ContentChunker'ом, каждый кусок
+ * лежит один раз в общем каталоге под своим SHA-256: <storage.chunks>/ab/abcdef...
+ * Файл в каталоге - текстовый манифест: сигнатура, размер и строки "хэш длина". Манифестом файл считается,
+ * только если о нём есть отметка в <storage.chunks>/manifests (имя - SHA-256 пути, содержимое - SHA-256 манифеста):
+ * клиент туда писать не может, поэтому загруженный им файл с той же сигнатурой остаётся обычным файлом.
+ * Одинаковые данные под другими именами и в других каталогах места больше не занимают.
+ * Сборки мусора нет: куски, на которые не ссылается ни один манифест, остаются в хранилище.
+ */
+final class DedupStore {
+    static final int HASH_SIZE = 32;
+    private static final String MAGIC = "#dedup-manifest 1";
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    //Манифест, который importFile пишет рядом с файлом в каталоге, пока не подменит им сам файл
+    static final String IMPORT_SUFFIX = ".dedup.tmp";
+
+    private final Path root;
+    private final Path marks;
+    //false - storage.mode=plain: манифестов не читаем вовсе, любой файл отдаётся как есть
+    private final boolean enabled;
+
+    record Chunk(String hash, int length) {
+    }
+
+    record Manifest(long size, List<Chunk> chunks) {
+    }
+
+    DedupStore(Path root, boolean enabled) {
+        this.root = root.toAbsolutePath().normalize();
+        this.marks = this.root.resolve("manifests");
+        this.enabled = enabled;
+    }
+
+    boolean contains(String hash) {
+        return Files.exists(chunkPath(hash));
+    }
+
+    //Кусок от клиента: хэш проверяется, иначе под известным хэшем можно было бы подложить чужие данные
+    boolean put(String hash, byte[] data, int offset, int length) throws IOException {
+        if (!hash.equals(hash(data, offset, length))) {
+            return false;
+        }
+        store(hash, data, offset, length);
+        return true;
+    }
+
+    private void store(String hash, byte[] data, int offset, int length) throws IOException {
+        Path target = chunkPath(hash);
+        if (Files.exists(target)) {
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        //Через временный файл: параллельная запись того же куска или обрыв не оставят его обрезанным
+        Path temporary = target.resolveSibling(hash + "." + UUID.randomUUID() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW)) {
+            outputStream.write(data, offset, length);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //Принимает из потока ровно size байт и пишет манифест в target; уже существующий target не трогается
+    void write(InputStream inputStream, long size, Path target) throws IOException {
+        OutputStream manifestStream = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW);
+        boolean complete = false;
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(manifestStream, StandardCharsets.UTF_8))) {
+            writeHeader(writer, size);
+            byte[] buffer = new byte[ContentChunker.MAX_SIZE * 2];
+            int start = 0;
+            int filled = 0;
+            long remaining = size;
+            while (remaining > 0 || start < filled) {
+                //Граница ищется не меньше чем по MAX_SIZE байтам, иначе она зависела бы от того, как пришли пакеты
+                if (filled - start < ContentChunker.MAX_SIZE && remaining > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                    int read = inputStream.read(buffer, filled, (int) Math.min(buffer.length - filled, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Connection closed after " + (size - remaining) + " of " + size + " bytes");
+                    }
+                    filled += read;
+                    remaining -= read;
+                    continue;
+                }
+                int length = ContentChunker.cut(buffer, start, filled - start);
+                String hash = hash(buffer, start, length);
+                store(hash, buffer, start, length);
+                writeChunk(writer, new Chunk(hash, length));
+                start += length;
+            }
+            //Отметка считается по содержимому файла, поэтому манифест должен быть уже дописан
+            writer.flush();
+            mark(target, target);
+            complete = true;
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    //Манифест из уже принятого списка кусков (send_dedup)
+    void writeManifest(Path target, Manifest manifest) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW)) {
+            writeHeader(writer, manifest.size());
+            for (Chunk chunk : manifest.chunks()) {
+                writeChunk(writer, chunk);
+            }
+        }
+        mark(target, target);
+    }
+
+    //Переводит обычный файл в манифест на месте, например после upload_commit
+    void importFile(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + IMPORT_SUFFIX);
+        Files.deleteIfExists(temporary);
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file))) {
+            write(inputStream, Files.size(file), temporary);
+        }
+        //Отметка посчитана для временного файла, а манифест будет жить под именем file
+        mark(file, temporary);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(markPath(temporary));
+    }
+
+    //null, если файл обычный: режим plain, отметки нет или файл с тех пор подменили
+    Manifest readManifest(Path file) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        Path mark = markPath(file);
+        if (!Files.exists(mark)) {
+            return null;
+        }
+        byte[] content = Files.readAllBytes(file);
+        byte[] magic = (MAGIC + "\n").getBytes(StandardCharsets.UTF_8);
+        if (!Files.readString(mark, StandardCharsets.UTF_8).equals(hash(content, 0, content.length))
+                || content.length < magic.length || !Arrays.equals(Arrays.copyOf(content, magic.length), magic)) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(content, magic.length, content.length - magic.length), StandardCharsets.UTF_8));
+        try {
+            long size = Long.parseLong(reader.readLine().substring("size ".length()));
+            List<Chunk> chunks = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                Chunk chunk = new Chunk(line.substring(0, space), Integer.parseInt(line.substring(space + 1)));
+                if (!HASH.matcher(chunk.hash()).matches() || chunk.length() <= 0) {
+                    throw new IllegalArgumentException("bad chunk line: " + line);
+                }
+                chunks.add(chunk);
+            }
+            return new Manifest(size, chunks);
+        } catch (RuntimeException exception) {
+            throw new IOException("Broken dedup manifest: " + file, exception);
+        }
+    }
+
+    //Отметка о манифесте file с содержимым как у source, через временный файл
+    private void mark(Path file, Path source) throws IOException {
+        byte[] content = Files.readAllBytes(source);
+        Files.createDirectories(marks);
+        Path mark = markPath(file);
+        Path temporary = mark.resolveSibling(mark.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Files.writeString(temporary, hash(content, 0, content.length), StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+        Files.move(temporary, mark, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path markPath(Path file) {
+        byte[] path = file.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        return marks.resolve(hash(path, 0, path.length));
+    }
+
+    //Диапазон содержимого файла, собранный из кусков
+    void copy(Manifest manifest, long offset, long count, OutputStream outputStream) throws IOException {
+        long chunkStart = 0;
+        for (Chunk chunk : manifest.chunks()) {
+            long chunkEnd = chunkStart + chunk.length();
+            if (count > 0 && chunkEnd > offset) {
+                byte[] data;
+                try {
+                    data = Files.readAllBytes(chunkPath(chunk.hash()));
+                } catch (NoSuchFileException exception) {
+                    throw new IOException("Missing chunk " + chunk.hash() + " in dedup store");
+                }
+                int from = (int) (offset - chunkStart);
+                int length = (int) Math.min(count, chunk.length() - from);
+                outputStream.write(data, from, length);
+                offset += length;
+                count -= length;
+            }
+            chunkStart = chunkEnd;
+        }
+        if (count > 0) {
+            throw new EOFException("Dedup manifest is shorter than its declared size");
+        }
+    }
+
+    static String hash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private Path chunkPath(String hash) {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Invalid chunk hash: " + hash);
+        }
+        Path path = root.resolve(hash.substring(0, 2)).resolve(hash).normalize();
+        if (!path.startsWith(root)) {
+            throw new IllegalArgumentException("Chunk path escapes the store: " + hash);
+        }
+        return path;
+    }
+
+    private static void writeHeader(BufferedWriter writer, long size) throws IOException {
+        writer.write(MAGIC);
+        writer.write('\n');
+        writer.write("size " + size);
+        writer.write('\n');
+    }
+
+    private static void writeChunk(BufferedWriter writer, Chunk chunk) throws IOException {
+        writer.write(chunk.hash() + " " + chunk.length());
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,263 @@
+package serverside.logic;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/*
+ * Поиск по именам файлов каталога: отсортированный массив уникальных имён для префиксов
+ * и триграммный инвертированный индекс для подстрок и glob-шаблонов.
+ * Массивы неизменяемы и пересобираются в фоне; имена, появившиеся после сборки,
+ * лежат в небольшой дельте и просматриваются линейно. Исчезнувшие имена не удаляются из снимка сразу:
+ * у них просто нет файлов в живом индексе каталога, и они отсеиваются при выдаче.
+ */
+class FileNameIndex {
+    private static final ExecutorService rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "name-index-rebuilder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int MIN_REBUILD_CHANGES = 1024;
+
+    private final Set<String> liveNames;
+    private final Set<String> added = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger removedSinceBuild = new AtomicInteger();
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+    private volatile Snapshot snapshot = Snapshot.build(Collections.emptySet());
+    //Пока каталог обходится целиком, отдельные изменения не учитываем - после обхода будет полная сборка
+    private volatile boolean suspended;
+
+    //liveNames - живое множество имён каталога, из него берётся состав при пересборке
+    FileNameIndex(Set<String> liveNames) {
+        this.liveNames = liveNames;
+    }
+
+    void suspend() {
+        suspended = true;
+    }
+
+    void rebuild() {
+        suspended = false;
+        Snapshot rebuilt = Snapshot.build(liveNames);
+        snapshot = rebuilt;
+        removedSinceBuild.set(0);
+        added.removeIf(rebuilt::contains);
+    }
+
+    void onNameAdded(String name) {
+        if (!suspended && !snapshot.contains(name)) {
+            added.add(name);
+            scheduleRebuildIfNeeded();
+        }
+    }
+
+    void onNameRemoved(String name) {
+        if (!added.remove(name) && !suspended) {
+            removedSinceBuild.incrementAndGet();
+            scheduleRebuildIfNeeded();
+        }
+    }
+
+    //Имена, подходящие под glob-шаблон (* и ?), в алфавитном порядке; перебор останавливается на limit
+    List<String> find(String glob, int limit) {
+        Snapshot current = snapshot;
+        Predicate<String> matcher = globMatcher(glob);
+        List<String> result = new ArrayList<>();
+        String literalPrefix = literalPrefix(glob);
+        List<String> fragments = literalFragments(glob);
+        if (fragments.stream().anyMatch(fragment -> fragment.length() >= 3)) {
+            for (int id : current.candidates(fragments)) {
+                addIfMatches(result, current.names[id], matcher);
+                if (result.size() >= limit) {
+                    break;
+                }
+            }
+        } else {
+            //Коротких фрагментов триграммы не покрывают: сужаем перебор хотя бы по префиксу
+            for (int id = current.lowerBound(literalPrefix); id < current.names.length; id++) {
+                if (!current.names[id].startsWith(literalPrefix) || result.size() >= limit) {
+                    break;
+                }
+                addIfMatches(result, current.names[id], matcher);
+            }
+        }
+        List<String> recent = new ArrayList<>();
+        added.forEach(name -> addIfMatches(recent, name, matcher));
+        if (!recent.isEmpty()) {
+            result.addAll(recent);
+            Collections.sort(result);
+        }
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    int nameCount() {
+        return snapshot.names.length + added.size();
+    }
+
+    int trigramCount() {
+        return snapshot.postings.size();
+    }
+
+    long estimatedBytes() {
+        return snapshot.estimatedBytes + added.size() * 64L;
+    }
+
+    private void addIfMatches(List<String> result, String name, Predicate<String> matcher) {
+        if (liveNames.contains(name) && matcher.test(name)) {
+            result.add(name);
+        }
+    }
+
+    private void scheduleRebuildIfNeeded() {
+        int changes = added.size() + removedSinceBuild.get();
+        if (changes >= Math.max(MIN_REBUILD_CHANGES, snapshot.names.length / 20) && rebuildScheduled.compareAndSet(false, true)) {
+            rebuilder.execute(() -> {
+                try {
+                    rebuild();
+                } finally {
+                    rebuildScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    static boolean isPattern(String query) {
+        return query.indexOf('*') >= 0 || query.indexOf('?') >= 0;
+    }
+
+    static Predicate<String> globMatcher(String glob) {
+        if (!isPattern(glob)) {
+            return glob::equals;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String fragment : glob.split("((?<=[*?])|(?=[*?]))")) {
+            switch (fragment) {
+                case "*" -> regex.append(".*");
+                case "?" -> regex.append('.');
+                default -> regex.append(Pattern.quote(fragment));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL).asMatchPredicate();
+    }
+
+    private static String literalPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') {
+            end++;
+        }
+        return glob.substring(0, end);
+    }
+
+    private static List<String> literalFragments(String glob) {
+        List<String> fragments = new ArrayList<>();
+        for (String fragment : glob.split("[*?]+")) {
+            if (!fragment.isEmpty()) {
+                fragments.add(fragment);
+            }
+        }
+        return fragments;
+    }
+
+    private static long trigram(String text, int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16) | text.charAt(index + 2);
+    }
+
+    private static final class Snapshot {
+        private final String[] names;
+        private final Map<Long, int[]> postings;
+        private final long estimatedBytes;
+
+        private Snapshot(String[] names, Map<Long, int[]> postings, long estimatedBytes) {
+            this.names = names;
+            this.postings = postings;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        static Snapshot build(Set<String> liveNames) {
+            String[] names = liveNames.toArray(new String[0]);
+            Arrays.sort(names);
+            //Два прохода: сначала считаем длины списков, потом заполняем точно отмеренные int[]
+            Map<Long, Integer> counts = new HashMap<>();
+            Set<Long> seen = new HashSet<>();
+            long bytes = 16L + 4L * names.length;
+            for (String name : names) {
+                seen.clear();
+                for (int i = 0; i + 3 <= name.length(); i++) {
+                    if (seen.add(trigram(name, i))) {
+                        counts.merge(trigram(name, i), 1, Integer::sum);
+                    }
+                }
+                bytes += 40 + 2L * name.length();
+            }
+            Map<Long, int[]> postings = new HashMap<>(counts.size() * 2);
+            Map<Long, Integer> filled = new HashMap<>(counts.size() * 2);
+            counts.forEach((key, count) -> postings.put(key, new int[count]));
+            for (int id = 0; id < names.length; id++) {
+                seen.clear();
+                for (int i = 0; i + 3 <= names[id].length(); i++) {
+                    long key = trigram(names[id], i);
+                    if (seen.add(key)) {
+                        int position = filled.merge(key, 1, Integer::sum) - 1;
+                        postings.get(key)[position] = id;
+                    }
+                }
+            }
+            for (int[] list : postings.values()) {
+                bytes += 80 + 4L * list.length;
+            }
+            return new Snapshot(names, postings, bytes);
+        }
+
+        boolean contains(String name) {
+            int index = lowerBound(name);
+            return index < names.length && names[index].equals(name);
+        }
+
+        int lowerBound(String key) {
+            int index = Arrays.binarySearch(names, key);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        //Пересечение списков по всем триграммам фрагментов; списки отсортированы, начинаем с самого короткого
+        int[] candidates(List<String> fragments) {
+            List<int[]> lists = new ArrayList<>();
+            for (String fragment : fragments) {
+                for (int i = 0; i + 3 <= fragment.length(); i++) {
+                    int[] list = postings.get(trigram(fragment, i));
+                    if (list == null) {
+                        return new int[0];
+                    }
+                    lists.add(list);
+                }
+            }
+            lists.sort(Comparator.comparingInt(list -> list.length));
+            int[] result = lists.get(0);
+            for (int i = 1; i < lists.size() && result.length > 0; i++) {
+                result = intersect(result, lists.get(i));
+            }
+            return result;
+        }
+
+        private static int[] intersect(int[] left, int[] right) {
+            int[] result = new int[Math.min(left.length, right.length)];
+            int size = 0;
+            for (int i = 0, j = 0; i < left.length && j < right.length; ) {
+                if (left[i] < right[j]) {
+                    i++;
+                } else if (left[i] > right[j]) {
+                    j++;
+                } else {
+                    result[size++] = left[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+    }
+}
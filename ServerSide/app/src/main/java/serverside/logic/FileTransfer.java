@@ -0,0 +1,189 @@
+package serverside.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Передача тела файла через сокет. Если сокет является каналом, байты идут через
+ * FileChannel.transferFrom/transferTo без копирования в кучу, иначе - через пул direct-буферов.
+ */
+final class FileTransfer {
+    static final BufferPool directBuffers = new BufferPool(256 * 1024, 64);
+
+    //Сколько байт тела уже записано в файл; вызывается после каждой записи
+    interface Progress {
+        void written(long position) throws IOException;
+    }
+
+    private FileTransfer() {
+    }
+
+    static long receive(DataInputStream inputStream, SocketChannel channel, FileChannel fileChannel, long size) throws IOException {
+        return receive(inputStream, channel, fileChannel, size, position -> {
+        });
+    }
+
+    static long receive(DataInputStream inputStream, SocketChannel channel, FileChannel fileChannel, long size,
+                        Progress progress) throws IOException {
+        //Часть тела уже могла осесть в буферах потока вместе с заголовком - сначала забираем её
+        long position = drainBuffered(inputStream, fileChannel, size);
+        progress.written(position);
+        if (channel == null) {
+            return position + receiveStream(inputStream, fileChannel, position, size, progress);
+        }
+        boolean awaited = false;
+        while (position < size) {
+            long count = fileChannel.transferFrom(channel, position, size - position);
+            if (count > 0) {
+                position += count;
+                awaited = false;
+                progress.written(position);
+            } else if (channel.isBlocking()) {
+                //На виртуальном потоке transferFrom может вернуть 0 и у блокирующего канала:
+                //дочитываем кусок обычным read, который умеет правильно ждать
+                position += receiveBuffered(channel, fileChannel, position, Math.min(size, position + directBuffers.bufferSize()));
+                progress.written(position);
+            } else if (awaited) {
+                throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+            } else {
+                TemporarySelectors.await(channel, SelectionKey.OP_READ);
+                awaited = true;
+            }
+        }
+        return position;
+    }
+
+    static void send(DataOutputStream outputStream, SocketChannel channel, FileChannel fileChannel, long position, long count) throws IOException {
+        //Заголовок ответа должен уйти в сокет раньше тела
+        outputStream.flush();
+        if (channel == null) {
+            sendStream(outputStream, fileChannel, position, count);
+            outputStream.flush();
+            return;
+        }
+        long end = position + count;
+        while (position < end) {
+            long sent = fileChannel.transferTo(position, end - position, channel);
+            if (sent > 0) {
+                position += sent;
+            } else if (position >= fileChannel.size()) {
+                throw new EOFException("File ended at " + position + " of " + end + " bytes");
+            } else if (channel.isBlocking()) {
+                //На виртуальном потоке sendfile может вернуть 0 и у блокирующего канала
+                long chunk = Math.min(directBuffers.bufferSize(), end - position);
+                sendBuffered(channel, fileChannel, position, chunk);
+                position += chunk;
+            } else {
+                TemporarySelectors.await(channel, SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    static void skip(DataInputStream inputStream, long size) throws IOException {
+        inputStream.skipNBytes(size);
+    }
+
+    private static long drainBuffered(DataInputStream inputStream, FileChannel fileChannel, long size) throws IOException {
+        long buffered = Math.min(inputStream.available(), size);
+        if (buffered <= 0) {
+            return 0;
+        }
+        byte[] chunk = new byte[(int) Math.min(buffered, 64 * 1024)];
+        long position = 0;
+        while (position < buffered) {
+            int count = inputStream.read(chunk, 0, (int) Math.min(chunk.length, buffered - position));
+            if (count < 0) {
+                throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+            }
+            ByteBuffer source = ByteBuffer.wrap(chunk, 0, count);
+            while (source.hasRemaining()) {
+                fileChannel.write(source, position + source.position());
+            }
+            position += count;
+        }
+        return position;
+    }
+
+    //Без Channels.newChannel: его обёртки держат монитор на время блокирующего вызова,
+    //и виртуальный поток, ждущий кадров запроса, занимал бы поток-носитель целиком
+    private static long receiveStream(DataInputStream inputStream, FileChannel fileChannel, long position, long size,
+                                      Progress progress) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        long received = 0;
+        while (position + received < size) {
+            int count = inputStream.read(chunk, 0, (int) Math.min(chunk.length, size - position - received));
+            if (count < 0) {
+                throw new EOFException("Connection closed after " + (position + received) + " of " + size + " bytes");
+            }
+            ByteBuffer source = ByteBuffer.wrap(chunk, 0, count);
+            while (source.hasRemaining()) {
+                fileChannel.write(source, position + received + source.position());
+            }
+            received += count;
+            progress.written(position + received);
+        }
+        return received;
+    }
+
+    private static void sendStream(DataOutputStream outputStream, FileChannel fileChannel, long position, long count) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        long end = position + count;
+        while (position < end) {
+            int read = fileChannel.read(ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, end - position)), position);
+            if (read < 0) {
+                throw new EOFException("File ended at " + position + " of " + end + " bytes");
+            }
+            outputStream.write(chunk, 0, read);
+            position += read;
+        }
+    }
+
+    private static void sendBuffered(WritableByteChannel target, FileChannel fileChannel, long position, long count) throws IOException {
+        ByteBuffer buffer = directBuffers.acquire();
+        try {
+            long end = position + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File ended at " + position + " of " + end + " bytes");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                position += read;
+            }
+        } finally {
+            directBuffers.release(buffer);
+        }
+    }
+
+    private static long receiveBuffered(ReadableByteChannel source, FileChannel fileChannel, long position, long size) throws IOException {
+        ByteBuffer buffer = directBuffers.acquire();
+        long received = 0;
+        try {
+            while (position + received < size) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - position - received));
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("Connection closed after " + (position + received) + " of " + size + " bytes");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    received += fileChannel.write(buffer, position + received);
+                }
+            }
+        } finally {
+            directBuffers.release(buffer);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,185 @@
+package serverside.logic;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Контекст одной команды бинарного протокола. Тело запроса (кадры DATA с тем же id) читается
+ * через input так же, как в текстовом режиме читается сокет, а всё, что команда пишет в output,
+ * уходит кадрами DATA. Текстовый ответ закрывает запрос кадром RESPONSE с флагом END.
+ * Очередь тела не ограничена по числу кадров, её держит окно: клиент шлёт не больше WINDOW байт сверх
+ * прочитанного командой, а прочитанное возвращается ему кадрами CREDIT.
+ */
+class FramedRequest {
+    private static final int FRAME_CHUNK = 64 * 1024;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final byte[] OVERFLOW = new byte[0];
+    //Кредит возвращается пачками, а не на каждый прочитанный кадр
+    private static final int CREDIT_BATCH = BinaryProtocol.WINDOW / 4;
+
+    private final int id;
+    private final BinaryProtocol.FrameWriter writer;
+    private final BlockingQueue<byte[]> incoming = new LinkedBlockingQueue<>();
+    //Сколько байт тела клиент ещё может прислать; уменьшает читатель кадров, увеличивает CREDIT
+    private final AtomicInteger window = new AtomicInteger(BinaryProtocol.WINDOW);
+    private volatile boolean overflowed;
+    private final DataInputStream input = new DataInputStream(new PipeInputStream());
+    private final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FrameOutputStream(), FRAME_CHUNK));
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean finished;
+    private boolean responded;
+    //Каталог клиента на момент, когда очередь дошла до этой команды
+    String catalogue;
+
+    FramedRequest(int id, BinaryProtocol.FrameWriter writer) {
+        this.id = id;
+        this.writer = writer;
+    }
+
+    int id() {
+        return id;
+    }
+
+    DataInputStream input() {
+        return input;
+    }
+
+    DataOutputStream output() {
+        return output;
+    }
+
+    //Вызывается читателем кадров и никогда не ждёт: место под тело гарантирует окно.
+    //Клиент, который вышел за окно, получает ошибку только по этому запросу, остальные кадры соединения идут дальше
+    void offer(BinaryProtocol.Frame frame) {
+        if (finished || overflowed) {
+            return;
+        }
+        if (window.addAndGet(-frame.payload().length) < 0) {
+            overflowed = true;
+            incoming.add(OVERFLOW);
+            return;
+        }
+        if (frame.payload().length > 0) {
+            incoming.add(frame.payload());
+        }
+        if (frame.isEnd()) {
+            incoming.add(END_OF_STREAM);
+        }
+    }
+
+    private void grant(int bytes) throws IOException {
+        if (finished || overflowed) {
+            return;
+        }
+        window.addAndGet(bytes);
+        writer.write(BinaryProtocol.CREDIT, (byte) 0, id, ByteBuffer.allocate(Integer.BYTES).putInt(bytes).array());
+    }
+
+    void respond(String message) throws IOException {
+        lock.lock();
+        try {
+            output.flush();
+            writer.write(BinaryProtocol.RESPONSE, BinaryProtocol.FLAG_END, id, message.getBytes(StandardCharsets.UTF_8));
+            responded = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void fail(String message) throws IOException {
+        lock.lock();
+        try {
+            if (!responded) {
+                writer.write(BinaryProtocol.ERROR, BinaryProtocol.FLAG_END, id, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+                responded = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Каждый запрос обязан закончиться кадром с END, даже если команда ничего не ответила
+    void finish() throws IOException {
+        finished = true;
+        incoming.clear();
+        lock.lock();
+        try {
+            if (!responded) {
+                respond("");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private byte[] current = new byte[0];
+        private int position;
+        private int consumed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (current != END_OF_STREAM && current != OVERFLOW && position == current.length) {
+                try {
+                    current = incoming.take();
+                    position = 0;
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                //Кадр забран из очереди - его место в окне свободно
+                consumed += current.length;
+                if (consumed >= CREDIT_BATCH) {
+                    grant(consumed);
+                    consumed = 0;
+                }
+            }
+            if (current == OVERFLOW) {
+                throw new IOException("Request body exceeds the flow control window");
+            }
+            if (current == END_OF_STREAM) {
+                return -1;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == END_OF_STREAM || current == OVERFLOW ? 0 : current.length - position;
+        }
+    }
+
+    private class FrameOutputStream extends OutputStream {
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, FRAME_CHUNK);
+                writer.write(BinaryProtocol.DATA, (byte) 0, id, bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+}
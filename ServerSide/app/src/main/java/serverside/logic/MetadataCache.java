@@ -0,0 +1,220 @@
+package serverside.logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/*
+ * Метаданные файлов каталогов для stat и files -l: размер, время изменения и SHA-256 содержимого.
+ * Записей не больше capacity, вытесняется давно не запрошенная. Хеш считается лениво на фоновом пуле:
+ * листинг только ставит файл в очередь и отдаёт "-", пока хеша нет. Запись сбрасывается событиями
+ * CatalogueIndex; для каталогов без наблюдения она сверяется с диском по размеру и времени изменения.
+ * Для манифестов dedup размер и хеш - логического содержимого, то есть того, что отдаёт get.
+ */
+class MetadataCache {
+    static final String PENDING = "-";
+    private static final int HASH_BUFFER = 256 * 1024;
+
+    private final int capacity;
+    private final DedupStore dedupStore;
+    private final ThreadPoolExecutor hashing;
+    private final LinkedHashMap<Path, Entry> entries;
+
+    MetadataCache(int capacity, int hashThreads, DedupStore dedupStore) {
+        this.capacity = capacity;
+        this.dedupStore = dedupStore;
+        //Очередь ограничена размером кэша: листинг огромного каталога не копит задачи без предела
+        this.hashing = new ThreadPoolExecutor(hashThreads, hashThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity));
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > MetadataCache.this.capacity;
+            }
+        };
+    }
+
+    record Metadata(long size, FileTime modified, String hash) {
+    }
+
+    ExecutorService executor() {
+        return hashing;
+    }
+
+    //watched - каталог под наблюдением CatalogueIndex, изменения сбросят запись сами и сверка с диском не нужна
+    Metadata lookup(Path file, boolean watched) throws IOException {
+        Entry entry = entry(file, watched);
+        String hash = entry.hash;
+        if (hash == null) {
+            schedule(entry);
+        }
+        return new Metadata(entry.size, entry.modified, hash == null ? PENDING : hash);
+    }
+
+    //То же, но с дожиданием хеша: для одиночного stat
+    Metadata await(Path file, boolean watched) throws IOException {
+        Entry entry = entry(file, watched);
+        Future<?> task = entry.hash == null ? schedule(entry) : null;
+        try {
+            if (task != null) {
+                task.get();
+            } else if (entry.hash == null) {
+                //Очередь пула полна - считаем сами, клиент всё равно ждёт ответа
+                hash(entry);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + file);
+        } catch (ExecutionException exception) {
+            throw exception.getCause() instanceof UncheckedIOException cause ? cause.getCause() : new IOException(exception.getCause());
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+        return new Metadata(entry.size, entry.modified, entry.hash == null ? PENDING : entry.hash);
+    }
+
+    void invalidate(Path file) {
+        synchronized (entries) {
+            entries.remove(file);
+        }
+    }
+
+    //Пересборка каталога после потери событий: всё, что под root, могло измениться
+    void invalidateTree(Path root) {
+        synchronized (entries) {
+            Iterator<Path> iterator = entries.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(root)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    int hashed() {
+        synchronized (entries) {
+            return (int) entries.values().stream().filter(entry -> entry.hash != null).count();
+        }
+    }
+
+    private Entry entry(Path file, boolean watched) throws IOException {
+        Entry cached;
+        synchronized (entries) {
+            cached = entries.get(file);
+        }
+        if (cached != null && watched) {
+            return cached;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (cached != null && cached.matches(attributes)) {
+            return cached;
+        }
+        DedupStore.Manifest manifest = dedupStore.readManifest(file);
+        Entry entry = new Entry(file, attributes, manifest);
+        synchronized (entries) {
+            entries.put(file, entry);
+        }
+        return entry;
+    }
+
+    //null - очередь пула полна, задача не поставлена
+    private Future<?> schedule(Entry entry) {
+        synchronized (entry) {
+            if (entry.task != null) {
+                return entry.task;
+            }
+            FutureTask<Void> task = new FutureTask<>(() -> hash(entry), null);
+            try {
+                hashing.execute(task);
+            } catch (RejectedExecutionException exception) {
+                //Очередь полна: хеш будет поставлен при следующем обращении
+                return null;
+            }
+            entry.task = task;
+            return task;
+        }
+    }
+
+    private void hash(Entry entry) {
+        synchronized (entries) {
+            //Запись вытеснена или сброшена, пока ждала в очереди - считать незачем
+            if (entries.get(entry.file) != entry) {
+                return;
+            }
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (entry.manifest != null) {
+                try (OutputStream sink = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                    dedupStore.copy(entry.manifest, 0, entry.manifest.size(), sink);
+                }
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER);
+                    while (fileChannel.read(buffer) >= 0) {
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.clear();
+                    }
+                }
+            }
+            //Файл менялся, пока его читали: хеш ничему не соответствует
+            if (!entry.matches(Files.readAttributes(entry.file, BasicFileAttributes.class))) {
+                invalidate(entry.file);
+                return;
+            }
+            entry.hash = HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchFileException exception) {
+            invalidate(entry.file);
+        } catch (IOException exception) {
+            invalidate(entry.file);
+            throw new UncheckedIOException(exception);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static final class Entry {
+        private final Path file;
+        //Размер и время самого файла на диске (для манифеста - манифеста), по ним запись сверяется с диском
+        private final long diskSize;
+        private final FileTime modified;
+        private final long size;
+        private final DedupStore.Manifest manifest;
+        private volatile String hash;
+        private Future<?> task;
+
+        private Entry(Path file, BasicFileAttributes attributes, DedupStore.Manifest manifest) {
+            this.file = file;
+            this.diskSize = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.manifest = manifest;
+            this.size = manifest != null ? manifest.size() : diskSize;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == diskSize && attributes.lastModifiedTime().equals(modified);
+        }
+    }
+}
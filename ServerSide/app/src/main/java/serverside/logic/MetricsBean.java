@@ -0,0 +1,78 @@
+package serverside.logic;
+
+import javax.management.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/*
+ * MBean только для чтения: атрибуты - числа, которые считаются в момент запроса из jconsole/VisualVM.
+ * DynamicMBean, чтобы не заводить публичных интерфейсов ради JMX.
+ */
+class MetricsBean implements DynamicMBean {
+    private final String description;
+    private final Map<String, Supplier<Number>> attributes = new LinkedHashMap<>();
+    private final Map<String, String> types = new LinkedHashMap<>();
+
+    MetricsBean(String description) {
+        this.description = description;
+    }
+
+    MetricsBean longAttribute(String name, Supplier<Number> value) {
+        attributes.put(name, value);
+        types.put(name, Long.class.getName());
+        return this;
+    }
+
+    MetricsBean doubleAttribute(String name, Supplier<Number> value) {
+        attributes.put(name, value);
+        types.put(name, Double.class.getName());
+        return this;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Number> value = attributes.get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        Number number = value.get();
+        return types.get(attribute).equals(Long.class.getName()) ? (Object) number.longValue() : (Object) number.doubleValue();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException ignored) {
+                //По контракту getAttributes неизвестные атрибуты просто пропускаются
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] infos = types.entrySet().stream()
+                .map(entry -> new MBeanAttributeInfo(entry.getKey(), entry.getValue(), entry.getKey(), true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), description, infos, null, null, null);
+    }
+}
@@ -0,0 +1,359 @@
+package serverside.logic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Событийный режим сервера: N потоков-реакторов держат все соединения на Selector'ах
+ * и сами собирают кадры writeUTF (2 байта длины + modified UTF-8), а после переключения сессии
+ * на бинарный протокол - кадры BinaryProtocol.
+ * Готовая команда уходит в пул worker'ов, пока она выполняется соединение не читается реактором.
+ */
+class NioEngine {
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_FRAME_SIZE = 2 + 65535;
+
+    interface Session {
+        void onOpen();
+
+        void onCommand(String input) throws IOException;
+
+        boolean isBinary();
+
+        void onFrame(BinaryProtocol.Frame frame) throws IOException;
+
+        void onDisconnect();
+    }
+
+    interface SessionFactory {
+        Session open(Connection connection) throws IOException;
+    }
+
+    private final Reactor[] reactors;
+    private final ExecutorService workers;
+    private final SessionFactory sessionFactory;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    NioEngine(int reactorCount, ExecutorService workers, SessionFactory sessionFactory) throws IOException {
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        this.workers = workers;
+        this.sessionFactory = sessionFactory;
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor("nio-reactor-" + i);
+        }
+    }
+
+    void start() {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+    }
+
+    void register(SocketChannel channel, Runnable onClose) throws IOException {
+        channel.configureBlocking(false);
+        Reactor reactor = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+        reactor.submit(() -> reactor.attach(channel, onClose));
+    }
+
+    void close() {
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    private class Reactor extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Reactor(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                } catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
+
+        private void attach(SocketChannel channel, Runnable onClose) {
+            try {
+                Connection connection = new Connection(this, channel, onClose);
+                connection.key = channel.register(selector, 0, connection);
+                workers.execute(connection::open);
+            } catch (IOException exception) {
+                exception.printStackTrace();
+                closeQuietly(channel);
+                onClose.run();
+            }
+        }
+    }
+
+    class Connection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final Runnable onClose;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final InputStream inputStream = new ChannelInputStream();
+        private final OutputStream outputStream = new ChannelOutputStream();
+        private SelectionKey key;
+        private Session session;
+        //Буфер хранится в режиме записи: реактор дописывает в него из канала, worker вычитывает остаток
+        private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        private Connection(Reactor reactor, SocketChannel channel, Runnable onClose) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.onClose = onClose;
+        }
+
+        SocketChannel channel() {
+            return channel;
+        }
+
+        InputStream inputStream() {
+            return inputStream;
+        }
+
+        OutputStream outputStream() {
+            return outputStream;
+        }
+
+        private void open() {
+            try {
+                session = sessionFactory.open(this);
+                session.onOpen();
+                reactor.submit(this::resume);
+            } catch (Exception exception) {
+                exception.printStackTrace();
+                close();
+            }
+        }
+
+        private void onReadable() {
+            try {
+                if (!inbound.hasRemaining()) {
+                    ensureCapacity(Math.max(MAX_FRAME_SIZE, inbound.capacity() * 2));
+                }
+                if (channel.read(inbound) < 0) {
+                    close();
+                    return;
+                }
+                decode();
+            } catch (IOException exception) {
+                close();
+            }
+        }
+
+        private void resume() {
+            if (!channel.isOpen() || !key.isValid()) {
+                close();
+                return;
+            }
+            try {
+                decode();
+            } catch (IOException exception) {
+                close();
+            }
+        }
+
+        private void decode() throws IOException {
+            inbound.flip();
+            if (session.isBinary()) {
+                decodeFrame();
+                return;
+            }
+            if (inbound.remaining() < 2) {
+                await(2);
+                return;
+            }
+            int length = Short.toUnsignedInt(inbound.getShort(inbound.position()));
+            if (inbound.remaining() < 2 + length) {
+                await(2 + length);
+                return;
+            }
+            byte[] frame = new byte[2 + length];
+            inbound.get(frame);
+            inbound.compact();
+            String input = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+            key.interestOps(0);
+            workers.execute(() -> execute(() -> session.onCommand(input)));
+        }
+
+        private void decodeFrame() throws IOException {
+            if (inbound.remaining() < BinaryProtocol.HEADER_SIZE) {
+                await(BinaryProtocol.HEADER_SIZE);
+                return;
+            }
+            int start = inbound.position();
+            int length = inbound.getInt(start + 7);
+            BinaryProtocol.validateHeader(inbound.get(start), length);
+            if (inbound.remaining() < BinaryProtocol.HEADER_SIZE + length) {
+                await(BinaryProtocol.HEADER_SIZE + length);
+                return;
+            }
+            inbound.get();
+            byte type = inbound.get();
+            byte flags = inbound.get();
+            int requestId = inbound.getInt();
+            inbound.getInt();
+            byte[] payload = new byte[length];
+            inbound.get(payload);
+            inbound.compact();
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame(type, flags, requestId, payload);
+            key.interestOps(0);
+            workers.execute(() -> execute(() -> session.onFrame(frame)));
+        }
+
+        //Кадр ещё не дочитан: ждём данных, заранее расширив буфер под весь кадр
+        private void await(int frameSize) {
+            inbound.compact();
+            ensureCapacity(frameSize);
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void ensureCapacity(int size) {
+            if (inbound.capacity() >= size) {
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(size);
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        }
+
+        private void execute(SessionCall call) {
+            try {
+                call.run();
+            } catch (IOException exception) {
+                close();
+                return;
+            } catch (Exception exception) {
+                exception.printStackTrace();
+            }
+            reactor.submit(this::resume);
+        }
+
+        private interface SessionCall {
+            void run() throws IOException;
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            //Закрытие может прийти и из реактора, и из worker'а - освобождаем ресурсы ровно один раз
+            if (closed.compareAndSet(false, true)) {
+                closeQuietly(channel);
+                if (session != null) {
+                    session.onDisconnect();
+                }
+                onClose.run();
+            }
+        }
+
+        private class ChannelInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (inbound.position() > 0) {
+                    inbound.flip();
+                    int count = Math.min(length, inbound.remaining());
+                    inbound.get(bytes, offset, count);
+                    inbound.compact();
+                    return count;
+                }
+                ByteBuffer target = ByteBuffer.wrap(bytes, offset, length);
+                while (true) {
+                    int count = channel.read(target);
+                    if (count != 0) {
+                        return count;
+                    }
+                    TemporarySelectors.await(channel, SelectionKey.OP_READ);
+                }
+            }
+
+            @Override
+            public int available() {
+                return inbound.position();
+            }
+        }
+
+        private class ChannelOutputStream extends OutputStream {
+            @Override
+            public void write(int value) throws IOException {
+                write(new byte[]{(byte) value}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer source = ByteBuffer.wrap(bytes, offset, length);
+                while (source.hasRemaining()) {
+                    if (channel.write(source) == 0) {
+                        TemporarySelectors.await(channel, SelectionKey.OP_WRITE);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
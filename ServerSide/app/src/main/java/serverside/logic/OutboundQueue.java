@@ -0,0 +1,71 @@
+package serverside.logic;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Ограниченная очередь рассылок одного клиента. Рассылающий только кладёт сообщение и уходит,
+ * в сокет пишет одна задача на клиента, пока очередь не опустеет. Медленный клиент задерживает
+ * только свою задачу, а переполнение очереди видно рассылающему - что с таким клиентом делать, решает он.
+ */
+class OutboundQueue {
+    interface Sink {
+        void write(String message) throws IOException;
+    }
+
+    private final ArrayBlockingQueue<String> messages;
+    private final Executor executor;
+    private final Sink sink;
+    //true, пока задача записи запущена или уже стоит в пуле: больше одной на клиента не бывает
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closed;
+
+    OutboundQueue(int capacity, Executor executor, Sink sink) {
+        this.messages = new ArrayBlockingQueue<>(capacity);
+        this.executor = executor;
+        this.sink = sink;
+    }
+
+    //false - очередь полна, сообщение не принято. После ошибки записи сообщения молча выбрасываются:
+    //соединение уже мёртвое, его закроет поток чтения
+    boolean offer(String message) {
+        if (closed) {
+            return true;
+        }
+        if (!messages.offer(message)) {
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    int size() {
+        return messages.size();
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            String message;
+            while ((message = messages.poll()) != null) {
+                sink.write(message);
+            }
+        } catch (IOException exception) {
+            closed = true;
+            messages.clear();
+        } finally {
+            draining.set(false);
+            //Сообщение могло прийти между последним poll и сбросом флага
+            if (!closed && !messages.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
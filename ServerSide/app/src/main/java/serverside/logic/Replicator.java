@@ -0,0 +1,248 @@
+package serverside.logic;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Кластер: какие каталоги держит этот узел и асинхронная репликация принятых файлов.
+ * Файл уходит всем узлам каталога по кольцу, кроме этого. У каждого пира своя очередь и одно постоянное
+ * текстовое соединение, поэтому файлы приходят к нему по порядку. Клиент ответа реплик не ждёт:
+ * если пир недоступен, файл остаётся в голове его очереди и отправляется повторно с растущей паузой.
+ * Пир принимает копию командой replicate (только с адресов узлов кольца), которая дальше не реплицирует.
+ */
+class Replicator {
+    static final String COMMAND = "replicate";
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60_000;
+
+    private final ClusterRing ring;
+    private final String self;
+    private final int replicas;
+    private final int virtualNodes;
+    private final DedupStore dedupStore;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    Replicator(List<String> nodes, String self, int replicas, int virtualNodes, DedupStore dedupStore) {
+        this.ring = new ClusterRing(nodes, virtualNodes);
+        this.self = self;
+        this.replicas = replicas;
+        this.virtualNodes = virtualNodes;
+        this.dedupStore = dedupStore;
+    }
+
+    //Владелец каталога и replicas следующих за ним узлов
+    List<String> nodesFor(String catalogue) {
+        return ring.nodesFor(catalogue, replicas + 1);
+    }
+
+    boolean keeps(String catalogue) {
+        return nodesFor(catalogue).contains(self);
+    }
+
+    //Ответ на команду cluster: из него клиент строит такое же кольцо
+    String describe() {
+        return "cluster self=" + self + " replicas=" + replicas + " virtualNodes=" + virtualNodes
+                + " nodes=" + String.join(",", ring.nodes());
+    }
+
+    //Соединение пришло с адреса одного из узлов кольца. Порт не сравнивается: пир подключается с эфемерного.
+    //Имена узлов разрешаются при каждой проверке, чтобы смена адреса в DNS не требовала перезапуска
+    boolean isPeer(InetAddress remote) {
+        for (String node : ring.nodes()) {
+            InetSocketAddress address = address(node);
+            if (!address.isUnresolved() && address.getAddress().equals(remote)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void replicate(String catalogue, String fileName, Path file) {
+        for (String node : nodesFor(catalogue)) {
+            if (!node.equals(self)) {
+                peers.computeIfAbsent(node, Peer::new).submit(new Replica(catalogue, fileName, file));
+            }
+        }
+    }
+
+    //Останов сервера: очереди пиров получают время до deadline (System.nanoTime) на отправку.
+    //Пиров, которые сейчас недоступны и ждут повтора, не ждём - до deadline они вряд ли вернутся
+    void awaitIdle(long deadline) throws InterruptedException {
+        while (deliverable() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    //Останавливает очереди пиров; неотправленное теряется, об этом пишется в лог. После start очереди создаются заново
+    void close() {
+        int lost = 0;
+        for (Peer peer : peers.values()) {
+            peer.close();
+            lost += peer.backlog.size();
+        }
+        peers.clear();
+        if (lost > 0) {
+            System.out.println(lost + " file(s) were not replicated before shutdown");
+        }
+    }
+
+    private int deliverable() {
+        return peers.values().stream().filter(peer -> !peer.waitingForRetry).mapToInt(peer -> peer.backlog.size()).sum();
+    }
+
+    //host:port из cluster.nodes
+    static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Cluster node must be host:port: " + node);
+        }
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    private record Replica(String catalogue, String fileName, Path file) {
+    }
+
+    private final class Peer {
+        private final String node;
+        //Файлы, ещё не отправленные или не подтверждённые пиром
+        private final Deque<Replica> backlog = new ConcurrentLinkedDeque<>();
+        private final ScheduledExecutorService queue;
+        //Последняя отправка не удалась, следующая попытка - по расписанию
+        private volatile boolean waitingForRetry;
+        //Используются только потоком очереди
+        private long retryMillis = MIN_RETRY_MILLIS;
+        private Socket socket;
+        private DataInputStream inputStream;
+        private DataOutputStream outputStream;
+
+        private Peer(String node) {
+            this.node = node;
+            this.queue = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "replication-" + node);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void submit(Replica replica) {
+            backlog.addLast(replica);
+            try {
+                queue.execute(this::drain);
+            } catch (RejectedExecutionException exception) {
+                //Очередь уже остановлена вместе с сервером
+            }
+        }
+
+        //Файл снимается с очереди, только когда пир его принял или отказал окончательно
+        private void drain() {
+            if (waitingForRetry) {
+                return;
+            }
+            Replica replica;
+            while ((replica = backlog.peekFirst()) != null) {
+                try {
+                    push(replica);
+                } catch (NoSuchFileException exception) {
+                    //Файл удалили раньше, чем до него дошла очередь
+                } catch (IOException exception) {
+                    System.out.println("Failed to replicate " + replica.fileName() + " to " + node + ", retrying in "
+                            + retryMillis / 1000 + "s: " + exception.getMessage());
+                    disconnect();
+                    waitingForRetry = true;
+                    queue.schedule(() -> {
+                        waitingForRetry = false;
+                        drain();
+                    }, retryMillis, TimeUnit.MILLISECONDS);
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                    return;
+                }
+                backlog.pollFirst();
+                retryMillis = MIN_RETRY_MILLIS;
+            }
+        }
+
+        //Тело как у send: UTF имя, long размер, байты; манифест dedup отдаётся собранным содержимым.
+        //IOException - попытку стоит повторить: связи нет или пир сейчас останавливается
+        private void push(Replica replica) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(replica.file(), StandardOpenOption.READ)) {
+                DedupStore.Manifest manifest = dedupStore.readManifest(replica.file());
+                long size = manifest != null ? manifest.size() : fileChannel.size();
+                connect();
+                outputStream.writeUTF(COMMAND + " " + replica.catalogue());
+                outputStream.writeUTF(replica.fileName());
+                outputStream.writeLong(size);
+                if (manifest != null) {
+                    dedupStore.copy(manifest, 0, size, outputStream);
+                    outputStream.flush();
+                } else {
+                    FileTransfer.send(outputStream, socket.getChannel(), fileChannel, 0, size);
+                }
+            }
+            String reply = reply();
+            if (reply.startsWith("Server is shutting down")) {
+                throw new IOException(reply);
+            }
+            if (!reply.equals("File sent successfully") && !reply.equals("This file already exists!")) {
+                System.out.println("Node " + node + " did not take a replica of " + replica.fileName() + ": " + reply);
+            }
+        }
+
+        private void connect() throws IOException {
+            if (socket != null) {
+                return;
+            }
+            socket = SocketChannel.open(address(node)).socket();
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            //Приветствию может предшествовать рассылка о подключении другого клиента
+            while (!inputStream.readUTF().startsWith("Hello")) {
+            }
+        }
+
+        //Рассылки пира ([SERVER] ...) идут в тот же поток, что и ответы
+        private String reply() throws IOException {
+            String reply;
+            do {
+                reply = inputStream.readUTF();
+            } while (reply.startsWith("[SERVER]"));
+            return reply;
+        }
+
+        private void close() {
+            queue.shutdownNow();
+            try {
+                queue.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            disconnect();
+        }
+
+        private void disconnect() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package serverside.logic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/*
+ * Докачиваемые загрузки: файл принимается кусками фиксированного размера в <name>.part,
+ * а рядом в <name>.part.manifest хранится, какие куски уже пришли и прошли проверку CRC32C.
+ * Манифест переживает и обрыв соединения, и перезапуск сервера.
+ * Эти файлы служебные: индекс и обход каталога их пропускают. Загрузка, манифест которой не менялся
+ * дольше expireMillis, считается брошенной и удаляется вместе с .part.
+ */
+class ResumableUploads {
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String MANIFEST_SUFFIX = ".part.manifest";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    static final long DEFAULT_EXPIRE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    //0 - загрузки не истекают
+    private final long expireMillis;
+    private ScheduledExecutorService sweeper;
+
+    ResumableUploads() {
+        this(DEFAULT_EXPIRE_MILLIS);
+    }
+
+    ResumableUploads(long expireMillis) {
+        this.expireMillis = expireMillis;
+    }
+
+    static boolean isUploadFile(String fileName) {
+        return fileName.endsWith(PART_SUFFIX) || fileName.endsWith(MANIFEST_SUFFIX)
+                || fileName.endsWith(MANIFEST_SUFFIX + TEMPORARY_SUFFIX);
+    }
+
+    Upload open(Path catalogue, String fileName, long size, int chunkSize) throws IOException {
+        Path target = catalogue.resolve(fileName).normalize();
+        if (!target.startsWith(catalogue) || target.equals(catalogue) || CatalogueIndex.isServerFile(target.getFileName().toString())) {
+            throw new IllegalArgumentException("Invalid file name: " + fileName);
+        }
+        if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid upload size or chunk size");
+        }
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException("This file already exists!");
+        }
+        Path manifest = Path.of(target + MANIFEST_SUFFIX);
+        //Одна и та же загрузка из разных соединений должна попадать в одну сессию
+        synchronized (this) {
+            for (Upload upload : uploads.values()) {
+                if (upload.target.equals(target)) {
+                    return upload.matches(size, chunkSize) ? upload : replace(upload, target, size, chunkSize);
+                }
+            }
+            if (Files.exists(manifest)) {
+                Upload restored = Upload.load(target, manifest);
+                if (restored != null && restored.matches(size, chunkSize)) {
+                    uploads.put(restored.id, restored);
+                    return restored;
+                }
+            }
+            return replace(null, target, size, chunkSize);
+        }
+    }
+
+    Upload find(String id) {
+        return uploads.get(id);
+    }
+
+    void complete(Upload upload) throws IOException {
+        upload.commit();
+        uploads.remove(upload.id);
+    }
+
+    //Проверка раз в четверть срока, но не реже раза в час; первая - сразу, чтобы убрать оставшееся с прошлого запуска
+    synchronized void startSweeper(List<Path> catalogues) {
+        if (expireMillis <= 0 || sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, Math.min(expireMillis / 4, TimeUnit.HOURS.toMillis(1)));
+        sweeper.scheduleAtFixedRate(() -> {
+            int removed = sweep(catalogues);
+            if (removed > 0) {
+                System.out.println("Removed " + removed + " expired upload(s)");
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    //Удаляет брошенные загрузки: и открытые в этом запуске, и найденные на диске после перезапуска.
+    //Под монитором, как open: иначе сессию, которую только что возобновили, удалили бы из-под неё
+    synchronized int sweep(Collection<Path> catalogues) {
+        if (expireMillis <= 0) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() - expireMillis;
+        int removed = 0;
+        for (Upload upload : uploads.values()) {
+            if (isOlder(upload.manifest, deadline)) {
+                uploads.remove(upload.id);
+                upload.delete();
+                removed++;
+            }
+        }
+        for (Path catalogue : catalogues) {
+            try (Stream<Path> walk = Files.walk(catalogue)) {
+                for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                    String name = file.getFileName().toString();
+                    if (!isUploadFile(name) || !isOlder(file, deadline)) {
+                        continue;
+                    }
+                    //Файлы живой сессии не трогаем, даже если её манифест вдруг старый
+                    String target = name.substring(0, name.lastIndexOf(PART_SUFFIX));
+                    Path targetPath = file.resolveSibling(target).toAbsolutePath().normalize();
+                    if (uploads.values().stream().noneMatch(upload -> upload.target.equals(targetPath))) {
+                        Files.deleteIfExists(file);
+                        removed += name.endsWith(MANIFEST_SUFFIX) ? 1 : 0;
+                    }
+                }
+            } catch (IOException | UncheckedIOException exception) {
+                System.out.println("Failed to sweep uploads in " + catalogue + ": " + exception.getMessage());
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isOlder(Path file, long deadline) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() < deadline;
+        } catch (NoSuchFileException exception) {
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    //Номера из [0, count), которых нет в present, в виде диапазонов; "none", если таких нет
+    static String missingRanges(BitSet present, int count) {
+        StringBuilder result = new StringBuilder();
+        int start = present.nextClearBit(0);
+        while (start < count) {
+            int next = present.nextSetBit(start);
+            int end = (next < 0 ? count : Math.min(next, count)) - 1;
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(start);
+            if (end > start) {
+                result.append('-').append(end);
+            }
+            start = present.nextClearBit(end + 1);
+        }
+        return result.length() == 0 ? "none" : result.toString();
+    }
+
+    private Upload replace(Upload previous, Path target, long size, int chunkSize) throws IOException {
+        if (previous != null) {
+            uploads.remove(previous.id);
+        }
+        Upload upload = new Upload(UUID.randomUUID().toString(), target, size, chunkSize, new BitSet());
+        //Пустой .part создаётся (или обрезается после прошлой загрузки) до первого куска
+        FileChannel.open(upload.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING).close();
+        upload.saveManifest();
+        uploads.put(upload.id, upload);
+        return upload;
+    }
+
+    static class Upload {
+        private final String id;
+        private final Path target;
+        private final Path part;
+        private final Path manifest;
+        private final long size;
+        private final int chunkSize;
+        private final int chunkCount;
+        private final BitSet received;
+
+        private Upload(String id, Path target, long size, int chunkSize, BitSet received) {
+            this.id = id;
+            this.target = target;
+            this.part = Path.of(target + PART_SUFFIX);
+            this.manifest = Path.of(target + MANIFEST_SUFFIX);
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+            this.received = received;
+        }
+
+        String id() {
+            return id;
+        }
+
+        Path target() {
+            return target;
+        }
+
+        private boolean matches(long size, int chunkSize) {
+            return this.size == size && this.chunkSize == chunkSize;
+        }
+
+        //Принимает тело куска; при несовпадении CRC кусок остаётся недостающим и будет запрошен повторно
+        boolean receiveChunk(DataInputStream inputStream, int index, int length, int expectedCrc, byte[] chunk) throws IOException {
+            boolean valid = index >= 0 && index < chunkCount && length == chunkLength(index);
+            CRC32C crc = new CRC32C();
+            long position = (long) index * chunkSize;
+            try (FileChannel fileChannel = valid ? FileChannel.open(part, StandardOpenOption.WRITE) : null) {
+                int remaining = length;
+                while (remaining > 0) {
+                    int count = inputStream.read(chunk, 0, Math.min(chunk.length, remaining));
+                    if (count < 0) {
+                        throw new EOFException("Connection closed inside chunk " + index);
+                    }
+                    if (valid) {
+                        crc.update(chunk, 0, count);
+                        ByteBuffer source = ByteBuffer.wrap(chunk, 0, count);
+                        while (source.hasRemaining()) {
+                            position += fileChannel.write(source, position);
+                        }
+                    }
+                    remaining -= count;
+                }
+            }
+            if (!valid || (int) crc.getValue() != expectedCrc) {
+                return false;
+            }
+            markReceived(index);
+            return true;
+        }
+
+        synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+
+        //Недостающие куски в виде диапазонов: 0-15,20,22-30
+        synchronized String missingRanges() {
+            return ResumableUploads.missingRanges(received, chunkCount);
+        }
+
+        private int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        private synchronized void markReceived(int index) throws IOException {
+            received.set(index);
+            saveManifest();
+        }
+
+        private synchronized void commit() throws IOException {
+            if (!isComplete()) {
+                throw new IllegalStateException("Upload is not complete");
+            }
+            Files.move(part, target);
+            Files.deleteIfExists(manifest);
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(manifest);
+            } catch (IOException exception) {
+                System.out.println("Failed to delete expired upload " + target + ": " + exception.getMessage());
+            }
+        }
+
+        private void saveManifest() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("session", id);
+            properties.setProperty("size", String.valueOf(size));
+            properties.setProperty("chunkSize", String.valueOf(chunkSize));
+            properties.setProperty("received", Base64.getEncoder().encodeToString(received.toByteArray()));
+            //Пишем во временный файл и атомарно подменяем, чтобы обрыв не оставил битый манифест
+            Path temporary = Path.of(manifest + TEMPORARY_SUFFIX);
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                properties.store(outputStream, null);
+            }
+            Files.move(temporary, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static Upload load(Path target, Path manifest) {
+            Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(manifest)) {
+                properties.load(inputStream);
+                Upload upload = new Upload(properties.getProperty("session"), target,
+                        Long.parseLong(properties.getProperty("size")),
+                        Integer.parseInt(properties.getProperty("chunkSize")),
+                        BitSet.valueOf(Base64.getDecoder().decode(properties.getProperty("received", ""))));
+                return Files.exists(upload.part) ? upload : null;
+            } catch (IOException | RuntimeException exception) {
+                System.out.println("Ignoring broken upload manifest: " + manifest);
+                return null;
+            }
+        }
+    }
+}
@@ -1,36 +1,114 @@
 package serverside.logic;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Server extends Thread {
-    protected static List<ClientHandler> clientsList = new ArrayList<>();
+    //Подключённые клиенты по UUID; рассылка обходит значения, не мешая подключениям и отключениям
+    protected static final Map<UUID, ClientHandler> clients = new ConcurrentHashMap<>();
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private int port = 8021;
-    private static int maxClients = 10;
+    private int maxClients = 10;
     private String timeout;
     private String serverIp = "localhost";
     private final List<String> catalogueNamesList = new ArrayList<>();
     private final List<Path> cataloguesPathList = new ArrayList<>();
+    private ResumableUploads resumableUploads;
+    private volatile CatalogueIndex catalogueIndex;
+    private int searchPageSize = 50;
+    private int listingPageSize = 1000;
+    private int searchMaxResults = 1000;
     private static final ExecutorService inputListener = Executors.newSingleThreadExecutor();
-    private static boolean isStarted = false;
-    private static final ExecutorService executor = Executors.newFixedThreadPool(maxClients);
+    private volatile boolean isStarted = false;
+    //Запуск и останов из консоли, по сигналу и из run() не должны пересекаться
+    private final Object lifecycle = new Object();
+    //Консоль не читается: приём начинается сразу, останов - по SIGTERM
+    private boolean headless;
+    //Сколько останов ждёт идущие передачи, прежде чем закрыть соединения
+    private long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    //Идёт останов: новые передачи отклоняются (тело пропускается), чтобы не тянуть время ожидания
+    private volatile boolean draining;
+    private static final String DRAINING = "Server is shutting down, try again later";
+    //Команды, на время которых останов откладывает закрытие соединений
+    private static final Set<String> TRANSFER_COMMANDS = Set.of("get", "send", "send_batch", "send_dedup", "upload_chunk",
+            "upload_commit", Replicator.COMMAND);
+    //Необязательный номер страницы в конце запроса search
+    private static final Pattern SEARCH_PAGE = Pattern.compile("\\s+page=(\\d+)$");
+    private final long createdAt = System.nanoTime();
+    private long initMillis;
+    //fixed - пул платформенных потоков, virtual - виртуальный поток на каждого клиента
+    private String executorType = "fixed";
+    private ExecutorService executor;
+    private Semaphore admission;
+    private static final int NIO_BACKLOG = 1024;
+    //blocking - поток на клиента, nio - реакторы на Selector'ах
+    private String serverMode = "blocking";
+    private int nioReactors = 1;
+    private int nioWorkers = 4;
+    private NioEngine nioEngine;
+    //Текстовый протокол оставлен на время перехода на бинарный; false - принимается только "protocol binary"
+    private boolean textProtocol = true;
+    //Сколько запросов бинарного протокола одно соединение может держать одновременно; сверх лимита - ERROR сразу
+    private int maxRequests = 32;
+    //Команды бинарного протокола выполняются вне потока, читающего кадры
+    private ExecutorService requestExecutor;
+    //Передачи не меняют состояние сессии, их можно выполнять параллельно с остальными командами
+    private static final Set<String> CONCURRENT_COMMANDS = Set.of("get", "send", "send_batch", "send_dedup", "upload_chunk", "stat");
+    //Листинг длиннее этого сжимается, если клиент согласился на сжатие
+    private static final int LARGE_LISTING = 256;
+    //plain - файлы как есть, dedup - манифесты в каталогах и общее хранилище кусков
+    private boolean deduplicate;
+    //В режиме plain только принимает куски send_dedup; манифесты читает лишь в режиме dedup
+    private DedupStore dedupStore;
+    private final ServerMetrics metrics = new ServerMetrics();
+    //0 - HTTP-эндпоинт метрик выключен, JMX работает независимо от него
+    private int metricsPort = 0;
+    private String metricsAddress = "127.0.0.1";
+    private ExecutorService nioWorkerExecutor;
+    private boolean metricsStarted;
+    //Рассылки копятся в очереди клиента; переполнилась - drop выбрасывает новые сообщения, disconnect отключает клиента
+    private int broadcastQueueSize = 256;
+    private boolean disconnectSlowConsumers;
+    //Задачи, которые пишут рассылки в сокеты клиентов
+    private ExecutorService broadcastExecutor;
+    //Ограничение скорости и справедливая очередь загрузок; по умолчанию выключены, тела идут через zero-copy
+    private UploadShaper uploadShaper;
+    //Запись принятых файлов на диск и политика fsync
+    private WriteStrategy writeStrategy;
+    //Размер, время изменения и хеши файлов для stat и files -l
+    private MetadataCache metadataCache;
+    //null - узел работает один; иначе каталоги распределены по кольцу cluster.nodes, загрузки копируются на реплики
+    private Replicator replicator;
 
     public Server(Properties properties) throws IOException {
         try {
@@ -42,8 +120,34 @@ public class Server extends Thread {
             System.out.println("Provided port is invalid. Default port will be used: " + port);
         }
         this.timeout = properties.getProperty("file.timeout", "1s");
+        loadLifecycle(properties);
+        loadServerMode(properties);
+        loadExecutor(properties);
+        textProtocol = Boolean.parseBoolean(properties.getProperty("protocol.text", "true").trim());
+        try {
+            maxRequests = Math.max(1, Integer.parseInt(properties.getProperty("protocol.maxRequests", String.valueOf(maxRequests)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided request limit is invalid. Default limit will be used: " + maxRequests);
+        }
+        loadStorage(properties);
+        loadMetadataCache(properties);
+        loadBroadcast(properties);
+        loadShaping(properties);
+        loadWriteStrategy(properties);
+        loadMetrics(properties);
         String ip = properties.getProperty("server.address");
         loadCatalogues(properties);
+        loadUploads(properties);
+        try {
+            searchPageSize = Math.max(1, Integer.parseInt(properties.getProperty("search.pageSize", String.valueOf(searchPageSize)).trim()));
+            searchMaxResults = Math.max(searchPageSize, Integer.parseInt(properties.getProperty("search.maxResults", String.valueOf(searchMaxResults)).trim()));
+            listingPageSize = Math.max(1, Integer.parseInt(properties.getProperty("listing.pageSize", String.valueOf(listingPageSize)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided search limits are invalid. Defaults will be used: " + searchPageSize + " per page, " + searchMaxResults + " at most");
+        }
+        if (Boolean.parseBoolean(properties.getProperty("catalog.index", "true").trim())) {
+            buildCatalogueIndex(Boolean.parseBoolean(properties.getProperty("catalog.indexInBackground", "true").trim()));
+        }
         try {
             if (!validateIp(ip)) {
                 throw new InvalidIpException();
@@ -52,6 +156,51 @@ public class Server extends Thread {
         } catch (InvalidIpException exception) {
             System.out.println("Provided ip is invalid. Default address will be used: " + serverIp + ":" + port);
         }
+        loadCluster(properties);
+        initMillis = (System.nanoTime() - createdAt) / 1_000_000;
+    }
+
+    private void loadLifecycle(Properties properties) {
+        headless = Boolean.parseBoolean(properties.getProperty("server.headless", "false").trim());
+        try {
+            drainTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(
+                    properties.getProperty("shutdown.drainSeconds", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(drainTimeoutMillis))).trim())));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided drain timeout is invalid. Default timeout will be used: " + TimeUnit.MILLISECONDS.toSeconds(drainTimeoutMillis) + "s");
+        }
+    }
+
+    private void loadCluster(Properties properties) {
+        List<String> nodes = Arrays.stream(properties.getProperty("cluster.nodes", "").split(","))
+                .map(String::trim).filter(node -> !node.isEmpty()).distinct().toList();
+        if (nodes.isEmpty()) {
+            return;
+        }
+        String self = properties.getProperty("cluster.self", "").trim();
+        if (self.isEmpty()) {
+            self = serverIp + ":" + port;
+        }
+        int replicas = 1;
+        int virtualNodes = 64;
+        try {
+            replicas = Math.max(0, Integer.parseInt(properties.getProperty("cluster.replicas", String.valueOf(replicas)).trim()));
+            virtualNodes = Math.max(1, Integer.parseInt(properties.getProperty("cluster.virtualNodes", String.valueOf(virtualNodes)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided cluster settings are invalid. Defaults will be used: " + replicas + " replica(s), " + virtualNodes + " virtual node(s)");
+        }
+        try {
+            nodes.forEach(Replicator::address);
+        } catch (IllegalArgumentException exception) {
+            System.out.println(exception.getMessage() + ". Cluster is disabled, the server will run alone");
+            return;
+        }
+        if (!nodes.contains(self)) {
+            System.out.println("This node (" + self + ") is not listed in cluster.nodes. Cluster is disabled, the server will run alone");
+            return;
+        }
+        replicator = new Replicator(nodes, self, replicas, virtualNodes, dedupStore);
+        List<String> kept = catalogueNamesList.stream().filter(replicator::keeps).toList();
+        System.out.println("Cluster node " + self + " of " + nodes.size() + ", " + replicas + " replica(s) per catalogue, keeps: " + kept);
     }
 
     private void loadCatalogues(Properties properties) {
@@ -73,66 +222,416 @@ public class Server extends Thread {
         }
     }
 
+    private void loadUploads(Properties properties) {
+        long expireHours = TimeUnit.MILLISECONDS.toHours(ResumableUploads.DEFAULT_EXPIRE_MILLIS);
+        try {
+            expireHours = Math.max(0, Long.parseLong(properties.getProperty("upload.expireHours", String.valueOf(expireHours)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided upload expiry is invalid. Default expiry will be used: " + expireHours + "h");
+        }
+        resumableUploads = new ResumableUploads(TimeUnit.HOURS.toMillis(expireHours));
+        resumableUploads.startSweeper(catalogueNamesList.stream().map(Path::of).toList());
+    }
+
+    //В фоне обход диска не задерживает начало приёма: пока каталог не проиндексирован,
+    //indexedCatalogue возвращает null и запросы к нему идут на диск, как без индекса
+    private void buildCatalogueIndex(boolean inBackground) throws IOException {
+        CatalogueIndex index = new CatalogueIndex(metadataCache);
+        catalogueIndex = index;
+        Runnable build = () -> {
+            long start = System.nanoTime();
+            catalogueNamesList.forEach(name -> index.add(name, Path.of(name)));
+            index.start();
+            int files = index.catalogues().stream().mapToInt(CatalogueIndex.Catalogue::size).sum();
+            System.out.println("Indexed " + files + " file(s) in " + catalogueNamesList.size() + " catalogue(s) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        };
+        if (!inBackground) {
+            build.run();
+            return;
+        }
+        Thread builder = new Thread(build, "catalogue-indexer");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    //null, если индекса нет или он сейчас не отражает диск - тогда вызывающий обходит каталог сам
+    private CatalogueIndex.Catalogue indexedCatalogue(String name) {
+        if (catalogueIndex == null) {
+            return null;
+        }
+        CatalogueIndex.Catalogue catalogue = catalogueIndex.get(name);
+        return catalogue != null && catalogue.isLive() ? catalogue : null;
+    }
+
+    private void printIndexInfo() {
+        System.out.println("Metadata cache: " + metadataCache.size() + " entr(ies), " + metadataCache.hashed() + " hashed");
+        if (catalogueIndex == null) {
+            System.out.println("Catalogue index is disabled.");
+            return;
+        }
+        catalogueNamesList.forEach(name -> {
+            CatalogueIndex.Catalogue catalogue = catalogueIndex.get(name);
+            if (catalogue == null) {
+                System.out.println("Catalogue " + name + ": waiting to be indexed");
+                return;
+            }
+            FileNameIndex nameIndex = catalogue.nameIndex();
+            System.out.printf("Catalogue %s: %d file(s), %s, search index: %d name(s), %d trigram(s), ~%.1f MB%n",
+                    name, catalogue.size(), catalogue.isLive() ? "live" : "not indexed", nameIndex.nameCount(),
+                    nameIndex.trigramCount(), nameIndex.estimatedBytes() / (1024.0 * 1024.0));
+        });
+    }
+
+    private void loadStorage(Properties properties) {
+        String mode = properties.getProperty("storage.mode", "plain").trim().toLowerCase();
+        if (!mode.equals("plain") && !mode.equals("dedup")) {
+            System.out.println("Unknown storage mode: " + mode + ". Default mode will be used: plain");
+        }
+        deduplicate = mode.equals("dedup");
+        dedupStore = new DedupStore(Path.of(properties.getProperty("storage.chunks", "chunks").trim()), deduplicate);
+    }
+
+    private void loadMetadataCache(Properties properties) {
+        int cacheSize = 100_000;
+        int hashThreads = 2;
+        try {
+            cacheSize = Math.max(1, Integer.parseInt(properties.getProperty("metadata.cacheSize", String.valueOf(cacheSize)).trim()));
+            hashThreads = Math.max(1, Integer.parseInt(properties.getProperty("metadata.hashThreads", String.valueOf(hashThreads)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided metadata cache settings are invalid. Defaults will be used: " + cacheSize + " entries, " + hashThreads + " hashing thread(s)");
+        }
+        metadataCache = new MetadataCache(cacheSize, hashThreads, dedupStore);
+    }
+
+    private void loadBroadcast(Properties properties) {
+        try {
+            broadcastQueueSize = Math.max(1, Integer.parseInt(properties.getProperty("broadcast.queueSize", String.valueOf(broadcastQueueSize)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided broadcast queue size is invalid. Default size will be used: " + broadcastQueueSize);
+        }
+        String policy = properties.getProperty("broadcast.slowConsumer", "drop").trim().toLowerCase();
+        if (!policy.equals("drop") && !policy.equals("disconnect")) {
+            System.out.println("Unknown slow consumer policy: " + policy + ". Default policy will be used: drop");
+        }
+        disconnectSlowConsumers = policy.equals("disconnect");
+        broadcastExecutor = executorType.equals("virtual") ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+    }
+
+    private void loadShaping(Properties properties) {
+        long globalRate = 0;
+        long clientRate = 0;
+        int slots = 1;
+        int quantum = 64 * 1024;
+        try {
+            globalRate = parseSize(properties.getProperty("transfer.rate", "0"));
+            clientRate = parseSize(properties.getProperty("transfer.clientRate", "0"));
+            slots = Math.max(1, Integer.parseInt(properties.getProperty("transfer.slots", String.valueOf(slots)).trim()));
+            quantum = (int) Math.max(1024, Math.min(parseSize(properties.getProperty("transfer.quantum", String.valueOf(quantum))), 16 * 1024 * 1024));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided transfer limits are invalid. Uploads will not be limited.");
+            globalRate = 0;
+            clientRate = 0;
+        }
+        TransferScheduler scheduler = Boolean.parseBoolean(properties.getProperty("transfer.fair", "false").trim())
+                ? new TransferScheduler(slots, quantum) : null;
+        uploadShaper = new UploadShaper(globalRate, clientRate, scheduler);
+    }
+
+    private void loadWriteStrategy(Properties properties) {
+        String strategy = properties.getProperty("write.strategy", "channel").trim().toLowerCase();
+        if (!List.of("channel", "direct", "mapped", "odirect").contains(strategy)) {
+            System.out.println("Unknown write strategy: " + strategy + ". Default strategy will be used: channel");
+            strategy = "channel";
+        }
+        String sync = properties.getProperty("write.sync", "none").trim().toLowerCase();
+        if (!List.of("none", "close", "interval").contains(sync)) {
+            System.out.println("Unknown sync policy: " + sync + ". Default policy will be used: none");
+            sync = "none";
+        }
+        int bufferSize = 1024 * 1024;
+        long syncInterval = 64L * 1024 * 1024;
+        try {
+            bufferSize = (int) Math.max(64 * 1024, Math.min(parseSize(properties.getProperty("write.bufferSize", "1m")), 64 * 1024 * 1024));
+            syncInterval = Math.max(1, parseSize(properties.getProperty("write.syncInterval", "64m")));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided write buffer settings are invalid. Defaults will be used: 1m buffers, sync every 64m");
+        }
+        writeStrategy = new WriteStrategy(strategy, bufferSize, sync, syncInterval);
+    }
+
+    //Байты с необязательным суффиксом k, m или g (степени 1024): 512k, 50m
+    private static long parseSize(String value) {
+        String size = value.trim().toLowerCase();
+        int shift = switch (size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) {
+            case 'k' -> 10;
+            case 'm' -> 20;
+            case 'g' -> 30;
+            default -> 0;
+        };
+        long number = Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1).trim());
+        if (number < 0) {
+            throw new NumberFormatException("Negative size: " + value);
+        }
+        return number << shift;
+    }
+
+    private void loadMetrics(Properties properties) {
+        try {
+            int portValue = Integer.parseInt(properties.getProperty("metrics.port", String.valueOf(metricsPort)).trim());
+            if (portValue >= 0 && portValue < 65535) {
+                metricsPort = portValue;
+            }
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided metrics port is invalid. Metrics endpoint will be disabled.");
+        }
+        metricsAddress = properties.getProperty("metrics.address", metricsAddress).trim();
+        metrics.activeConnections(() -> maxClients - admission.availablePermits());
+        metrics.activeTransfers(activeTransfers::get);
+        metrics.executor("clients", executor);
+        metrics.executor("requests", requestExecutor);
+        metrics.executor("broadcasts", broadcastExecutor);
+        metrics.executor("hashing", metadataCache.executor());
+        if (nioWorkerExecutor != null) {
+            metrics.executor("nio_workers", nioWorkerExecutor);
+        }
+        if (Boolean.parseBoolean(properties.getProperty("metrics.jmx", "true").trim())) {
+            //Платформенный MBeanServer поднимается больше полсекунды - регистрация не задерживает начало приёма
+            Thread registration = new Thread(metrics::registerMBeans, "metrics-jmx");
+            registration.setDaemon(true);
+            registration.start();
+        }
+    }
+
+    private void loadServerMode(Properties properties) {
+        String mode = properties.getProperty("server.mode", serverMode).trim().toLowerCase();
+        if (mode.equals("blocking") || mode.equals("nio")) {
+            serverMode = mode;
+        } else {
+            System.out.println("Unknown server mode: " + mode + ". Default mode will be used: " + serverMode);
+        }
+        try {
+            nioReactors = Math.max(1, Integer.parseInt(properties.getProperty("server.nio.reactors", String.valueOf(nioReactors)).trim()));
+            nioWorkers = Math.max(1, Integer.parseInt(properties.getProperty("server.nio.workers", String.valueOf(nioWorkers)).trim()));
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided nio settings are invalid. Defaults will be used: " + nioReactors + " reactor(s), " + nioWorkers + " worker(s)");
+        }
+    }
+
+    private void loadExecutor(Properties properties) {
+        try {
+            int clientsValue = Integer.parseInt(properties.getProperty("server.maxClients", String.valueOf(maxClients)).trim());
+            if (clientsValue > 0) {
+                maxClients = clientsValue;
+            }
+        } catch (NumberFormatException exception) {
+            System.out.println("Provided client limit is invalid. Default limit will be used: " + maxClients);
+        }
+        String type = properties.getProperty("server.executor", executorType).trim().toLowerCase();
+        if (type.equals("fixed") || type.equals("virtual")) {
+            executorType = type;
+        } else {
+            System.out.println("Unknown executor type: " + type + ". Default executor will be used: " + executorType);
+        }
+        admission = new Semaphore(maxClients);
+        executor = newExecutor(maxClients);
+        requestExecutor = executorType.equals("virtual") ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        if (isNioMode()) {
+            nioWorkerExecutor = newExecutor(nioWorkers);
+        }
+    }
+
+    private ExecutorService newExecutor(int threads) {
+        return executorType.equals("virtual") ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(threads);
+    }
+
+    private boolean isNioMode() {
+        return serverMode.equals("nio");
+    }
+
+    private void bind() throws IOException {
+        //В обоих режимах слушаем через канал, чтобы у сокетов клиентов был SocketChannel для transferFrom
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            if (!isNioMode()) {
+                serverChannel.bind(new InetSocketAddress(InetAddress.getByName(serverIp), port), maxClients);
+            } else {
+                if (nioEngine == null) {
+                    if (nioWorkerExecutor.isShutdown()) {
+                        nioWorkerExecutor = newExecutor(nioWorkers);
+                        metrics.executor("nio_workers", nioWorkerExecutor);
+                    }
+                    nioEngine = new NioEngine(nioReactors, nioWorkerExecutor, connection -> {
+                        ClientHandler handler = new ClientHandler(java.util.UUID.randomUUID(), connection.channel().socket(),
+                                connection.inputStream(), connection.outputStream(), connection::close);
+                        clients.put(handler.UUID, handler);
+                        return handler;
+                    });
+                    nioEngine.start();
+                }
+                serverChannel.bind(new InetSocketAddress(InetAddress.getByName(serverIp), port), NIO_BACKLOG);
+            }
+        } catch (IOException exception) {
+            serverChannel.close();
+            throw exception;
+        }
+        this.serverSocket = serverChannel.socket();
+        //Метрики - не повод не запускать сервер: занятый порт только отключает эндпоинт
+        if (metricsPort > 0 && !metricsStarted) {
+            try {
+                metrics.startEndpoint(metricsAddress, metricsPort);
+                metricsStarted = true;
+            } catch (IOException exception) {
+                System.out.println("Metrics endpoint is not available on " + metricsAddress + ":" + metricsPort + ": " + exception.getMessage());
+            }
+        }
+    }
+
     @Override
     public void run() {
-        while (!Thread.interrupted() || serverSocket.isClosed()) {
-            inputListener.execute(() -> {
-                String input;
-                BufferedReader serverInputReader;
-                while (true) {
-                    try {
-                        serverInputReader = new BufferedReader(new InputStreamReader(System.in));
-                        System.out.print("input>");
-                        input = serverInputReader.readLine();
-                        switch (input.toLowerCase()) {
-                            case ("start"): {
-                                if (!isStarted) {
-                                    this.serverSocket = new ServerSocket(port, maxClients, InetAddress.getByName(serverIp));
-                                    isStarted = true;
-                                    System.out.println("Server running on address: " + serverIp + ":" + port);
-                                } else System.out.println("Server is already running!");
-                                break;
-                            }
-                            case ("stop"): {
-                                close();
-                                break;
-                            }
-                            case ("info"): {
-                                clientsList.forEach(System.out::println);
-                                break;
-                            }
-                            case ("exit"): {
-                                System.exit(0);
-                            }
-                            default:
-                                System.out.println("Unknown command");
+        //exit в консоли и SIGTERM останавливают одинаково: System.exit запускает этот хук
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopServer, "shutdown"));
+        if (headless) {
+            try {
+                startServer();
+            } catch (IOException exception) {
+                System.out.println("Failed to start the server: " + exception.getMessage());
+                System.exit(1);
+            }
+        } else {
+            inputListener.execute(this::readConsole);
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                awaitStarted();
+            } catch (InterruptedException exception) {
+                return;
+            }
+            acceptConnection();
+        }
+    }
+
+    //Консоль оператора: одна задача на всё время работы. Конец ввода (stdin закрыт или не подключён) её завершает,
+    //сервер при этом продолжает работать
+    private void readConsole() {
+        BufferedReader serverInputReader = new BufferedReader(new InputStreamReader(System.in));
+        while (true) {
+            String input;
+            try {
+                System.out.print("input>");
+                input = serverInputReader.readLine();
+            } catch (IOException exception) {
+                exception.printStackTrace();
+                return;
+            }
+            if (input == null) {
+                System.out.println("Console input closed. Use SIGTERM to stop the server.");
+                return;
+            }
+            try {
+                switch (input.trim().toLowerCase()) {
+                    case ("start"): {
+                        startServer();
+                        break;
+                    }
+                    case ("stop"): {
+                        if (!isStarted) {
+                            System.out.println("Server is not running!");
                         }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                        stopServer();
+                        break;
+                    }
+                    case ("info"): {
+                        clients.values().forEach(System.out::println);
+                        printIndexInfo();
+                        break;
+                    }
+                    case ("metrics"): {
+                        System.out.print(metrics.prometheusText());
+                        break;
+                    }
+                    case ("exit"): {
+                        System.exit(0);
                     }
+                    default:
+                        System.out.println("Unknown command");
                 }
-            });
+            } catch (IOException exception) {
+                System.out.println("Failed to start the server: " + exception.getMessage());
+            }
+        }
+    }
+
+    private void startServer() throws IOException {
+        synchronized (lifecycle) {
             if (isStarted) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    final UUID UUID = java.util.UUID.randomUUID();
-                    if (clientsList.size() <= maxClients) {
-                        executor.execute(() -> {
-                            try {
-                                ClientHandler handler = new ClientHandler(UUID, socket);
-                                clientsList.add(handler);
-                                handler.run();
-                            } catch (Exception exception) {
-                                exception.printStackTrace();
-                            }
-                        });
-                    } else {
-                        System.out.println("Too many clients. No free space left!");
-                    }
-                } catch (IOException exception) {
+                System.out.println("Server is already running!");
+                return;
+            }
+            bind();
+            draining = false;
+            isStarted = true;
+            lifecycle.notifyAll();
+        }
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        metrics.started(uptime);
+        System.out.println("Server running on address: " + serverIp + ":" + port + " (" + serverMode + " mode)");
+        System.out.println("Accepting connections " + uptime + " ms after JVM start, configuration and catalogues took " + initMillis + " ms");
+    }
+
+    private void awaitStarted() throws InterruptedException {
+        synchronized (lifecycle) {
+            while (!isStarted) {
+                lifecycle.wait();
+            }
+        }
+    }
+
+    private void acceptConnection() {
+        if (isNioMode()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (admission.tryAcquire()) {
+                    metrics.connectionAccepted();
+                    nioEngine.register(channel, admission::release);
+                } else {
+                    System.out.println("Too many clients. No free space left!");
+                    metrics.connectionRejected();
+                    channel.close();
+                }
+            } catch (IOException exception) {
+                if (isStarted) {
                     exception.printStackTrace();
                 }
             }
+            return;
+        }
+        try {
+            Socket socket = serverChannel.accept().socket();
+            final UUID UUID = java.util.UUID.randomUUID();
+            if (admission.tryAcquire()) {
+                metrics.connectionAccepted();
+                executor.execute(() -> {
+                    try {
+                        ClientHandler handler = new ClientHandler(UUID, socket);
+                        clients.put(UUID, handler);
+                        handler.run();
+                    } catch (Exception exception) {
+                        exception.printStackTrace();
+                    } finally {
+                        admission.release();
+                    }
+                });
+            } else {
+                System.out.println("Too many clients. No free space left!");
+                metrics.connectionRejected();
+                socket.close();
+            }
+        } catch (IOException exception) {
+            //accept прерван остановом
+            if (isStarted) {
+                exception.printStackTrace();
+            }
         }
     }
 
@@ -154,22 +653,61 @@ public class Server extends Thread {
         }
     }
 
-    private void close() {
+    //Останов: новые подключения и новые передачи больше не принимаются, идущие передачи и очереди реплик получают
+    //shutdown.drainSeconds на завершение, затем соединения закрываются. Незаконченную докачку
+    //(upload_init/upload_chunk) клиент продолжит после перезапуска
+    private void stopServer() {
+        synchronized (lifecycle) {
+            if (!isStarted) {
+                return;
+            }
+            isStarted = false;
+            draining = true;
+        }
         System.out.println("Stopping server...");
-        isStarted = false;
         try {
-            serverSocket.close();
+            serverChannel.close();
         } catch (IOException exception) {
             exception.printStackTrace();
         }
-        System.out.println("Server stopped.");
+        sendGlobalMessage("Server is shutting down, transfers in progress have " + TimeUnit.MILLISECONDS.toSeconds(drainTimeoutMillis) + "s to finish");
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        try {
+            while (activeTransfers.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            if (replicator != null) {
+                replicator.awaitIdle(deadline);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        if (replicator != null) {
+            replicator.close();
+        }
+        int unfinished = activeTransfers.get();
+        clients.values().forEach(client -> client.disconnect.run());
+        if (metricsStarted) {
+            metrics.stopEndpoint();
+            metricsStarted = false;
+        }
+        //Реакторы и worker'ы nio создаются заново при следующем start
+        if (nioEngine != null) {
+            nioEngine.close();
+            nioEngine = null;
+            nioWorkerExecutor.shutdown();
+        }
+        System.out.println("Server stopped" + (unfinished > 0 ? ", " + unfinished + " transfer(s) cut off" : "")
+                + " after draining for " + (System.nanoTime() - start) / 1_000_000 + " ms.");
     }
 
     protected void sendGlobalMessage(String message) {
-        clientsList.forEach(i -> i.sendPrivateMessage(String.format("[SERVER] %s", message)));
+        String event = String.format("[SERVER] %s", message);
+        clients.values().forEach(client -> client.sendEvent(event));
     }
 
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements Runnable, NioEngine.Session {
         private final ArrayDeque<String> lastUsedCommands = new ArrayDeque<>(3);
         private static final AtomicInteger counter = new AtomicInteger(1);
         private final Socket clientSocket;
@@ -179,92 +717,60 @@ public class Server extends Thread {
         private final UUID UUID;
         private DataOutputStream dataOutputStream;
         private String currentCatalogue;
+        private byte[] chunkBuffer;
+        //Клиент согласился на сжатие тел командой caps
+        private volatile boolean compression;
+        //Не null после переключения на бинарный протокол
+        private volatile BinaryProtocol.FrameWriter frameWriter;
+        private final Map<Integer, FramedRequest> requests = new ConcurrentHashMap<>();
+        //Запрос, который выполняется в текущем потоке: ответы и тело идут его кадрами
+        private final ThreadLocal<FramedRequest> currentRequest = new ThreadLocal<>();
+        //Команды одного клиента выполняются по порядку, чтобы use успевал до следующих за ним команд
+        private CompletableFuture<Void> commandQueue = CompletableFuture.completedFuture(null);
+        private final OutboundQueue events;
+        //Закрывает соединение так, чтобы сработал onDisconnect: в режиме nio сокет закрывает реактор
+        private final Runnable disconnect;
+        private volatile boolean droppingEvents;
+        //Лимит transfer.clientRate на все загрузки этого клиента; null - без лимита
+        private final TokenBucket uploadBucket = uploadShaper.clientBucket();
+
+        public ClientHandler(UUID uuid, Socket socket) throws IOException {
+            this(uuid, socket, new BufferedInputStream(socket.getInputStream()), socket.getOutputStream(), () -> {
+                try {
+                    socket.close();
+                } catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+            });
+        }
 
-        public ClientHandler(UUID uuid, Socket socket) {
+        //inputStream не оборачивается в буфер: в режиме nio буфер забрал бы из канала начало следующей команды,
+        //которую должен разобрать реактор. Поток nio и так сначала отдаёт то, что реактор уже прочитал
+        public ClientHandler(UUID uuid, Socket socket, InputStream inputStream, OutputStream outputStream, Runnable disconnect) {
             this.UUID = uuid;
+            this.disconnect = disconnect;
+            this.events = new OutboundQueue(broadcastQueueSize, broadcastExecutor, this::writeEvent);
             this.clientName = "Client_" + counter.getAndAdd(1);
             this.connectionTime = LocalDateTime.now();
             this.clientSocket = socket;
-            try {
-                dataInputStream = new DataInputStream(new BufferedInputStream(this.clientSocket.getInputStream()));
-                dataOutputStream = new DataOutputStream(new BufferedOutputStream((this.clientSocket.getOutputStream())));
-            } catch (IOException exception) {
-                exception.printStackTrace();
-            }
+            dataInputStream = new DataInputStream(inputStream);
+            dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
             sendGlobalMessage("New user connected: " + this.clientName);
         }
 
         @Override
         public void run() {
-            sendPrivateMessage("Hello, " + clientName);
-            String input;
+            onOpen();
             try {
-                while (true) {
-                    input = dataInputStream.readUTF();
-                    String command = input;
-                    String parameter = input;
-                    //Разделяем значения на команду и параметр при помощи индекса первого пробела.
-                    if (input.indexOf(' ') >= 0) {
-                        command = input.substring(0, input.indexOf(' '));
-                        parameter = input.substring(input.indexOf(' ') + 1).trim();
-                    }
-                    switch (command) {
-                        case ("bye"):
-                            addUsedCommand(command);
-                            clientsList.remove(this);
-                            close();
-                            break;
-                        case ("catalogs"):
-                            addUsedCommand(command);
-                            sendPrivateMessage(catalogueOutput());
-                            break;
-                        case ("use"):
-                            addUsedCommand(command);
-                            if (!catalogueNamesList.contains(parameter)) {
-                                sendPrivateMessage("Haven't found any catalogue with given name");
-                                break;
-                            }
-                            currentCatalogue = parameter;
-                            sendPrivateMessage("Successfully updated current catalogue. Current catalogue is: " + currentCatalogue);
-                            break;
-                        case ("currcat_files"):
-                            addUsedCommand(command);
-                            try {
-                                sendPrivateMessage(outputFilesInCatalogue(currentCatalogue));
-                                break;
-                            } catch (NullPointerException exception) {
-                                sendPrivateMessage("No catalogues chosen yet!");
-                            }
-                        case ("files"):
-                            addUsedCommand(command);
-                            if (!catalogueNamesList.contains(parameter)) {
-                                sendPrivateMessage("Haven't found any catalogue with given name");
-                                break;
-                            }
-                            sendPrivateMessage(outputFilesInCatalogue(parameter));
-                            break;
-                        case ("search"):
-                            addUsedCommand(command);
-                            try {
-                                sendPrivateMessage(searchFileByName(parameter));
-                            } catch (NullPointerException exception) {
-                                sendPrivateMessage("No catalogues chosen yet!");
-                            }
-                            break;
-                        case ("send"): {
-                            addUsedCommand(command);
-                            Path filePath = Path.of(dataInputStream.readUTF());
-                            if (isPath(filePath)) {
-                                receiveFile();
-                                sendPrivateMessage("Success!");
-                            }
-                            break;
-                        }
-                        default:
-                            sendPrivateMessage("Unrecognized command!");
+                while (!clientSocket.isClosed()) {
+                    if (isBinary()) {
+                        onFrame(BinaryProtocol.readFrame(dataInputStream));
+                    } else {
+                        onCommand(dataInputStream.readUTF());
                     }
                 }
             } catch (IOException exception) {
+                onDisconnect();
                 if (serverSocket.isClosed()) {
                     try {
                         this.close();
@@ -275,8 +781,254 @@ public class Server extends Thread {
             }
         }
 
+        @Override
+        public void onOpen() {
+            //Возможности сервера объявляются в приветствии, клиент выбирает нужные командой caps
+            sendPrivateMessage("Hello, " + clientName + " (capabilities: binary " + WireCompression.CAPABILITY + ")");
+        }
+
+        @Override
+        public void onDisconnect() {
+            clients.remove(UUID);
+        }
+
+        @Override
+        public boolean isBinary() {
+            return frameWriter != null;
+        }
+
+        @Override
+        public void onFrame(BinaryProtocol.Frame frame) throws IOException {
+            switch (frame.type()) {
+                case (BinaryProtocol.COMMAND):
+                    enqueueRequest(frame.requestId(), new String(frame.payload(), StandardCharsets.UTF_8));
+                    break;
+                case (BinaryProtocol.DATA): {
+                    //Тело запроса; кадры запросов, которые уже завершились или были отклонены, просто отбрасываются
+                    FramedRequest request = requests.get(frame.requestId());
+                    if (request != null) {
+                        request.offer(frame);
+                    }
+                    break;
+                }
+                default:
+                    System.out.println(clientName + ": unexpected frame type " + frame.type());
+            }
+        }
+
+        private void enqueueRequest(int requestId, String input) throws IOException {
+            FramedRequest request = new FramedRequest(requestId, frameWriter);
+            //Без лимита каждый запрос занимал бы поток requestExecutor и окно памяти под тело
+            if (requests.size() >= maxRequests) {
+                request.fail("Too many requests in flight, limit is " + maxRequests);
+                return;
+            }
+            if (requests.putIfAbsent(requestId, request) != null) {
+                request.fail("Request id " + requestId + " is already in use");
+                return;
+            }
+            String command = input.indexOf(' ') >= 0 ? input.substring(0, input.indexOf(' ')) : input;
+            if (CONCURRENT_COMMANDS.contains(command)) {
+                commandQueue = commandQueue.thenRun(() -> {
+                    request.catalogue = currentCatalogue;
+                    requestExecutor.execute(() -> executeRequest(request, input));
+                });
+            } else {
+                commandQueue = commandQueue.thenRunAsync(() -> {
+                    request.catalogue = currentCatalogue;
+                    executeRequest(request, input);
+                }, requestExecutor);
+            }
+        }
+
+        private void executeRequest(FramedRequest request, String input) {
+            currentRequest.set(request);
+            try {
+                onCommand(input);
+            } catch (IOException exception) {
+                failRequest(request, exception.getMessage());
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+                failRequest(request, "Internal server error");
+            } finally {
+                currentRequest.remove();
+                //Место освобождается до ответа: получив его, клиент сразу отправит следующий запрос
+                requests.remove(request.id());
+                try {
+                    request.finish();
+                } catch (IOException ignored) {
+                    //Соединение уже закрыто, отвечать некому
+                }
+            }
+        }
+
+        private void failRequest(FramedRequest request, String message) {
+            try {
+                request.fail(message);
+            } catch (IOException ignored) {
+            }
+        }
+
+        private DataInputStream in() {
+            FramedRequest request = currentRequest.get();
+            return request == null ? dataInputStream : request.input();
+        }
+
+        private DataOutputStream out() {
+            FramedRequest request = currentRequest.get();
+            return request == null ? dataOutputStream : request.output();
+        }
+
+        //В бинарном режиме тело идёт кадрами, поэтому передавать его напрямую через сокет нельзя
+        private SocketChannel channel() {
+            return currentRequest.get() == null ? clientSocket.getChannel() : null;
+        }
+
+        private String catalogue() {
+            FramedRequest request = currentRequest.get();
+            return request == null ? currentCatalogue : request.catalogue;
+        }
+
+
+        @Override
+        public void onCommand(String input) throws IOException {
+            String command = input;
+            String parameter = input;
+            //Разделяем значения на команду и параметр при помощи индекса первого пробела.
+            if (input.indexOf(' ') >= 0) {
+                command = input.substring(0, input.indexOf(' '));
+                parameter = input.substring(input.indexOf(' ') + 1).trim();
+            }
+            if (!textProtocol && !isBinary() && !input.equals(BinaryProtocol.SWITCH_COMMAND)) {
+                sendPrivateMessage("Text protocol is disabled, switch with: " + BinaryProtocol.SWITCH_COMMAND);
+                return;
+            }
+            long start = System.nanoTime();
+            //Передачи, пришедшие во время останова, отклоняются сразу - их останов не ждёт
+            boolean transfer = TRANSFER_COMMANDS.contains(command) && !draining;
+            if (transfer) {
+                activeTransfers.incrementAndGet();
+            }
+            try {
+                executeCommand(command, parameter, input);
+            } finally {
+                if (transfer) {
+                    activeTransfers.decrementAndGet();
+                }
+                metrics.recordCommand(command, System.nanoTime() - start);
+            }
+        }
+
+        private void executeCommand(String command, String parameter, String input) throws IOException {
+            switch (command) {
+                case ("protocol"):
+                    switchProtocol(parameter);
+                    break;
+                case ("caps"):
+                    compression = Arrays.asList(parameter.split("\\s+")).contains(WireCompression.CAPABILITY);
+                    sendPrivateMessage("caps" + (compression ? " " + WireCompression.CAPABILITY : " none"));
+                    break;
+                case ("bye"):
+                    addUsedCommand(command);
+                    clients.remove(UUID);
+                    close();
+                    break;
+                case ("catalogs"):
+                    addUsedCommand(command);
+                    sendPrivateMessage(catalogueOutput());
+                    break;
+                case ("use"):
+                    addUsedCommand(command);
+                    if (!catalogueNamesList.contains(parameter)) {
+                        sendPrivateMessage("Haven't found any catalogue with given name");
+                        break;
+                    }
+                    //Каталог хранят другие узлы кластера - клиент должен был прийти туда
+                    if (replicator != null && !replicator.keeps(parameter)) {
+                        sendPrivateMessage("Catalogue " + parameter + " is kept by " + String.join(", ", replicator.nodesFor(parameter)));
+                        break;
+                    }
+                    currentCatalogue = parameter;
+                    sendPrivateMessage("Successfully updated current catalogue. Current catalogue is: " + currentCatalogue);
+                    break;
+                case ("currcat_files"): {
+                    addUsedCommand(command);
+                    String arguments = input.indexOf(' ') >= 0 ? parameter : "";
+                    //-l: записи с размером, временем изменения и хешем вместо голых имён
+                    boolean detailed = arguments.equals("-l") || arguments.startsWith("-l ");
+                    outputFilesInCatalogue(currentCatalogue, detailed ? arguments.substring(2).trim() : arguments, detailed);
+                    break;
+                }
+                case ("files"): {
+                    addUsedCommand(command);
+                    boolean detailed = parameter.startsWith("-l ");
+                    String arguments = detailed ? parameter.substring(3).trim() : parameter;
+                    //Курсор следующей страницы приходит последним словом: files [-l] <catalogue> cursor=<token>
+                    int cursorIndex = arguments.lastIndexOf(" cursor=");
+                    outputFilesInCatalogue(cursorIndex >= 0 ? arguments.substring(0, cursorIndex).trim() : arguments,
+                            cursorIndex >= 0 ? arguments.substring(cursorIndex + 1) : "", detailed);
+                    break;
+                }
+                case ("stat"):
+                    addUsedCommand(command);
+                    sendPrivateMessage(statFile(input.indexOf(' ') >= 0 ? parameter : ""));
+                    break;
+                case ("search"):
+                    addUsedCommand(command);
+                    try {
+                        sendPrivateMessage(searchFileByName(parameter));
+                    } catch (NullPointerException exception) {
+                        sendPrivateMessage("No catalogues chosen yet!");
+                    }
+                    break;
+                case ("send"): {
+                    addUsedCommand(command);
+                    //Путь на стороне клиента, сам файл приходит следом
+                    in().readUTF();
+                    receiveFile();
+                    break;
+                }
+                case ("send_batch"):
+                    addUsedCommand(command);
+                    receiveBatch();
+                    break;
+                case ("send_dedup"):
+                    addUsedCommand(command);
+                    receiveDeduplicated();
+                    break;
+                case ("cluster"):
+                    sendPrivateMessage(replicator == null ? "cluster none" : replicator.describe());
+                    break;
+                case (Replicator.COMMAND):
+                    receiveReplica(parameter);
+                    break;
+                case ("upload_init"):
+                    addUsedCommand(command);
+                    initUpload(parameter);
+                    break;
+                case ("upload_chunk"):
+                    //Ответа на кусок нет: клиент шлёт куски подряд, а итог узнаёт из upload_commit
+                    receiveChunk(parameter);
+                    break;
+                case ("upload_commit"):
+                    addUsedCommand(command);
+                    commitUpload(parameter);
+                    break;
+                case ("get"):
+                    addUsedCommand(command);
+                    sendFile(input.indexOf(' ') >= 0 ? parameter : "");
+                    break;
+                default:
+                    sendPrivateMessage("Unrecognized command!");
+            }
+        }
+
         public void close() {
             sendGlobalMessage("Server closing.");
+            //Клиент мог закрыть соединение сразу после bye, не дожидаясь нас
+            if (clientSocket.isClosed()) {
+                return;
+            }
             try {
                 clientSocket.shutdownInput();
                 clientSocket.shutdownOutput();
@@ -295,36 +1047,297 @@ public class Server extends Thread {
             lastUsedCommands.add(command);
         }
 
-        public synchronized void sendPrivateMessage(String message) {
+        private void switchProtocol(String parameter) {
+            if (!parameter.equals("binary")) {
+                sendPrivateMessage("Unsupported protocol: " + parameter);
+                return;
+            }
+            if (isBinary()) {
+                sendPrivateMessage("Binary protocol is already in use");
+                return;
+            }
+            //Ответ и переключение под одной блокировкой, чтобы рассылка не вклинилась текстом после ответа
+            synchronized (this) {
+                sendPrivateMessage(BinaryProtocol.SWITCH_COMMAND + " " + BinaryProtocol.VERSION + " " + maxRequests);
+                frameWriter = new BinaryProtocol.FrameWriter(dataOutputStream);
+            }
+        }
+
+        //Ответ на текущую команду: в бинарном режиме он закрывает запрос, в текстовом - обычная строка
+        public void sendPrivateMessage(String message) {
+            FramedRequest request = currentRequest.get();
+            if (request == null) {
+                try {
+                    writeEvent(message);
+                } catch (IOException exception) {
+                    System.out.println("Something went wrong...");
+                    exception.printStackTrace();
+                }
+                return;
+            }
             try {
-                dataOutputStream.writeUTF(message);
-                dataOutputStream.flush();
+                request.respond(message);
             } catch (IOException exception) {
                 System.out.println("Something went wrong...");
                 exception.printStackTrace();
             }
         }
 
-        private String outputFilesInCatalogue(String pathToCatalogue) {
-            //Обход всех папок в данной директории
-            StringBuffer result = new StringBuffer();
-            try (Stream<Path> directoryStream = Files.walk(Path.of(pathToCatalogue))) {
-                directoryStream.filter(Files::isRegularFile).forEach(i -> result.append(i.getFileName()).append("\n"));
-            } catch (IOException exception) {
-                exception.printStackTrace();
+        //Рассылка: сообщение ставится в очередь клиента и пишется его задачей, рассылающий поток не ждёт сокет
+        public void sendEvent(String message) {
+            if (events.offer(message)) {
+                droppingEvents = false;
+                return;
+            }
+            if (disconnectSlowConsumers) {
+                System.out.println(clientName + " is not reading broadcasts, disconnecting");
+                metrics.slowConsumerDisconnected();
+                disconnect.run();
+                return;
+            }
+            metrics.broadcastDropped();
+            if (!droppingEvents) {
+                droppingEvents = true;
+                System.out.println(clientName + " is not reading broadcasts, dropping messages");
             }
-            return result.toString();
         }
 
-        private String searchFileByName(String fileName) throws NullPointerException {
-            //Обход всех папок в данной директории с поиском файла
-            StringBuffer result = new StringBuffer();
-            try (Stream<Path> directoryStream = Files.walk(Path.of(currentCatalogue))) {
-                directoryStream.filter(Files::isRegularFile).filter(i -> i.getFileName().toString().equals(fileName)).forEach(i -> result.append("found " + i.getFileName() + " on path: " + i.toAbsolutePath()).append("\n"));
+        //Сообщение вне запросов (рассылки сервера): в бинарном режиме это кадр EVENT с id 0
+        private void writeEvent(String message) throws IOException {
+            synchronized (this) {
+                if (!isBinary()) {
+                    dataOutputStream.writeUTF(message);
+                    dataOutputStream.flush();
+                    return;
+                }
+            }
+            frameWriter.write(BinaryProtocol.EVENT, (byte) 0, 0, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        //Листинг уходит потоком записей (int длина + UTF-8) по мере обхода, конец - длина -1,
+        //затем обычная текстовая строка со статусом и курсором следующей страницы
+        //Текстовый поток ответов у клиента один, поэтому длинный ответ пишется под его блокировкой,
+        //а кадры разных запросов перемежаются сами
+        private void outputFilesInCatalogue(String pathToCatalogue, String cursor, boolean detailed) throws IOException {
+            if (currentRequest.get() != null) {
+                streamFilesInCatalogue(pathToCatalogue, cursor, detailed);
+                return;
+            }
+            synchronized (this) {
+                streamFilesInCatalogue(pathToCatalogue, cursor, detailed);
+            }
+        }
+
+        private void streamFilesInCatalogue(String pathToCatalogue, String cursor, boolean detailed) throws IOException {
+            Listing listing = new Listing();
+            if (pathToCatalogue == null) {
+                listing.end("No catalogues chosen yet!");
+                return;
+            }
+            if (!catalogueNamesList.contains(pathToCatalogue)) {
+                listing.end("Haven't found any catalogue with given name");
+                return;
+            }
+            String after;
+            try {
+                after = decodeCursor(cursor);
+            } catch (IllegalArgumentException exception) {
+                //Испорченный курсор не должен молча начинать листинг заново
+                listing.end("Invalid cursor");
+                return;
+            }
+            CatalogueIndex.Catalogue catalogue = indexedCatalogue(pathToCatalogue);
+            if (catalogue == null) {
+                //Обход всех папок в данной директории, без постраничной разбивки
+                int count = 0;
+                Path root = Path.of(pathToCatalogue).toAbsolutePath().normalize();
+                try (Stream<Path> directoryStream = Files.walk(root)) {
+                    for (Path i : (Iterable<Path>) directoryStream.filter(CatalogueIndex::isCatalogueFile)::iterator) {
+                        String entry = detailed ? describe(i, root.relativize(i).toString().replace('\\', '/'), false)
+                                : i.getFileName().toString();
+                        if (entry != null) {
+                            listing.add(entry);
+                            count++;
+                        }
+                    }
+                } catch (NoSuchFileException | UncheckedIOException exception) {
+                    exception.printStackTrace();
+                }
+                listing.end("Listed " + count + " file(s).");
+                return;
+            }
+            String lastKey = null;
+            int count = 0;
+            for (Map.Entry<String, Path> entry : catalogue.filesAfter(after).entrySet()) {
+                if (count == listingPageSize) {
+                    listing.end("Listed " + count + " file(s), more: files " + (detailed ? "-l " : "") + pathToCatalogue
+                            + " cursor=" + encodeCursor(lastKey));
+                    return;
+                }
+                String record = detailed ? describe(entry.getValue(), entry.getKey(), true) : entry.getValue().getFileName().toString();
+                lastKey = entry.getKey();
+                //Файл мог исчезнуть между индексом и диском - такую запись просто пропускаем
+                if (record != null) {
+                    listing.add(record);
+                    count++;
+                }
+            }
+            listing.end("Listed " + count + " file(s).");
+        }
+
+        //Записи листинга. При включённом сжатии первые записи копятся в памяти: если листинг
+        //дорос до LARGE_LISTING, дальше всё идёт через Deflater, короткий уходит как есть
+        private class Listing {
+            private final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+            private DataOutputStream records;
+            private boolean undecided;
+            private int count;
+
+            Listing() {
+                undecided = compression;
+                records = undecided ? new DataOutputStream(buffered) : out();
+            }
+
+            void add(String entry) throws IOException {
+                byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+                records.writeInt(bytes.length);
+                records.write(bytes);
+                if (undecided && ++count == LARGE_LISTING) {
+                    undecided = false;
+                    out().writeByte(WireCompression.DEFLATE);
+                    records = WireCompression.deflating(out());
+                    buffered.writeTo(records);
+                }
+            }
+
+            void end(String status) throws IOException {
+                if (undecided) {
+                    out().writeByte(WireCompression.RAW);
+                    buffered.writeTo(out());
+                    records = out();
+                }
+                records.writeInt(-1);
+                if (records != out()) {
+                    records.close();
+                }
+                sendPrivateMessage(status);
+            }
+        }
+
+        //Строка в духе ls -l: размер, время изменения (UTC), SHA-256 или "-", пока он не посчитан, и путь в каталоге.
+        //null - файла уже нет
+        private String describe(Path file, String name, boolean watched) throws IOException {
+            try {
+                return format(metadataCache.lookup(file, watched), name);
+            } catch (NoSuchFileException exception) {
+                return null;
+            }
+        }
+
+        private String format(MetadataCache.Metadata metadata, String name) {
+            return metadata.size() + " " + metadata.modified().toInstant().truncatedTo(ChronoUnit.SECONDS) + " " + metadata.hash() + " " + name;
+        }
+
+        //stat <file>: то же, что запись files -l, но хеш дожидается подсчёта
+        private String statFile(String fileName) {
+            String currentCatalogue = catalogue();
+            if (currentCatalogue == null) {
+                return "No catalogues chosen yet!";
+            }
+            Path catalogue = Path.of(currentCatalogue).toAbsolutePath().normalize();
+            Path targetPath = catalogue.resolve(fileName).normalize();
+            if (fileName.isEmpty() || !targetPath.startsWith(catalogue) || !CatalogueIndex.isCatalogueFile(targetPath)) {
+                return "Haven't found any file with given name";
+            }
+            try {
+                return format(metadataCache.await(targetPath, indexedCatalogue(currentCatalogue) != null),
+                        catalogue.relativize(targetPath).toString().replace('\\', '/'));
             } catch (IOException exception) {
-                exception.printStackTrace();
+                return "Failed to read " + fileName + ": " + exception.getMessage();
+            }
+        }
+
+        private String encodeCursor(String key) {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        }
+
+        //null - курсора нет, листинг с начала; IllegalArgumentException - курсор не выдавался сервером
+        private String decodeCursor(String cursor) {
+            if (cursor.isEmpty()) {
+                return null;
+            }
+            if (!cursor.startsWith("cursor=")) {
+                throw new IllegalArgumentException(cursor);
             }
-            return result.length() == 0 ? result.append("No such file found.").toString() : result.toString();
+            byte[] key = Base64.getUrlDecoder().decode(cursor.substring("cursor=".length()));
+            try {
+                String decoded = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(key)).toString();
+                if (decoded.isEmpty()) {
+                    throw new IllegalArgumentException(cursor);
+                }
+                return decoded;
+            } catch (CharacterCodingException exception) {
+                throw new IllegalArgumentException(cursor, exception);
+            }
+        }
+
+        //search <часть имени> | <glob> [page=<n>]: без * и ? ищется подстрока имени (report - как *report*),
+        //с ними - шаблон целиком (report* - префикс, *.log - окончание, ?? - ровно два символа).
+        //Выдача постраничная и ограничена searchMaxResults. Номер страницы - только явным page=,
+        //иначе имя вроде "report 2024" приняли бы за вторую страницу
+        private String searchFileByName(String query) throws NullPointerException {
+            CatalogueIndex.Catalogue catalogue = indexedCatalogue(Objects.requireNonNull(currentCatalogue));
+            int page = 1;
+            Matcher pageToken = SEARCH_PAGE.matcher(query);
+            if (pageToken.find()) {
+                try {
+                    page = Math.max(1, Integer.parseInt(pageToken.group(1)));
+                } catch (NumberFormatException exception) {
+                    return "Results are capped at " + searchMaxResults + " matches, refine the query.";
+                }
+                query = query.substring(0, pageToken.start()).trim();
+            }
+            if (query.isEmpty()) {
+                return "Usage: search <part of a name> | <glob with * and ?> [page=<n>]";
+            }
+            //Ссылка на следующую страницу повторяет запрос как есть, подстрока превращается в шаблон только здесь
+            String glob = FileNameIndex.isPattern(query) ? query : "*" + query + "*";
+            int from = (page - 1) * searchPageSize;
+            if (from >= searchMaxResults) {
+                return "Results are capped at " + searchMaxResults + " matches, refine the query.";
+            }
+            //Берём на одно совпадение больше, чтобы знать, есть ли следующая страница
+            int limit = Math.min(from + searchPageSize, searchMaxResults) + 1;
+            List<Path> matches = new ArrayList<>();
+            if (catalogue != null) {
+                for (String name : catalogue.nameIndex().find(glob, limit)) {
+                    catalogue.findByName(name).stream().sorted().forEach(matches::add);
+                    if (matches.size() >= limit) {
+                        break;
+                    }
+                }
+            } else {
+                Predicate<String> matcher = FileNameIndex.globMatcher(glob);
+                try (Stream<Path> directoryStream = Files.walk(Path.of(currentCatalogue))) {
+                    directoryStream.filter(CatalogueIndex::isCatalogueFile).filter(i -> matcher.test(i.getFileName().toString()))
+                            .limit(limit).forEach(i -> matches.add(i.toAbsolutePath()));
+                } catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+            }
+            if (matches.size() <= from) {
+                return page == 1 ? "No such file found." : "No more results.";
+            }
+            StringBuilder result = new StringBuilder();
+            int to = Math.min(matches.size(), from + searchPageSize);
+            matches.subList(from, to).forEach(i -> result.append("found " + i.getFileName() + " on path: " + i).append("\n"));
+            result.append("page ").append(page).append(", results ").append(from + 1).append('-').append(to);
+            if (matches.size() > to && to < searchMaxResults) {
+                result.append(", more: search ").append(query).append(" page=").append(page + 1);
+            } else if (matches.size() > to) {
+                result.append(", capped at ").append(searchMaxResults).append(" matches");
+            }
+            return result.toString();
         }
 
         private String catalogueOutput() {
@@ -335,31 +1348,508 @@ public class Server extends Thread {
         }
 
         public void receiveFile() throws IOException {
-            String fileName = dataInputStream.readUTF();
-            String targetFilePath = currentCatalogue + File.separator + fileName;
-            Path targetPath = Path.of(targetFilePath);
+            String status;
+            try (UploadShaper.Upload upload = upload()) {
+                DataInputStream inputStream = upload.input();
+                String fileName = inputStream.readUTF();
+                //Пустое имя - клиент не нашёл у себя файла и тело не отправляет
+                if (fileName.isEmpty()) {
+                    sendPrivateMessage("No file received.");
+                    return;
+                }
+                long size = inputStream.readLong();
+                byte encoding = readEncoding(inputStream);
+                String currentCatalogue = catalogue();
+                if (draining) {
+                    WireCompression.skip(inputStream, size, encoding);
+                    status = DRAINING;
+                } else if (currentCatalogue == null) {
+                    WireCompression.skip(inputStream, size, encoding);
+                    status = "No catalogues chosen yet!";
+                } else {
+                    status = storeFile(inputStream, upload.isShaped() ? null : channel(), currentCatalogue, fileName, size, encoding);
+                    if (status.equals("File sent successfully")) {
+                        replicate(currentCatalogue, fileName);
+                    }
+                }
+            }
+            //Ответ уходит уже без слота планировщика
+            sendPrivateMessage(status);
+        }
+
+        //Тело загрузки. При ограничениях скорости байты идут через поток, без transferFrom из сокета
+        private UploadShaper.Upload upload() {
+            return uploadShaper.open(in(), uploadBucket);
+        }
+
+        //send_batch: подряд записи (UTF имя, long размер, тело), конец - пустое имя.
+        //Мелкие файлы приходят пачкой одним запросом вместо обмена на каждый файл
+        //При сжатии байт кодировки стоит перед всей пачкой: мелкие файлы сжимаются лучше вместе
+        private void receiveBatch() throws IOException {
+            int stored = 0;
+            int total = 0;
+            StringBuilder skipped = new StringBuilder();
+            try (UploadShaper.Upload upload = upload()) {
+                boolean deflated = readEncoding(upload.input()) == WireCompression.DEFLATE;
+                DataInputStream inputStream = deflated ? WireCompression.inflating(upload.input()) : upload.input();
+                SocketChannel socketChannel = deflated || upload.isShaped() ? null : channel();
+                String currentCatalogue = catalogue();
+                String fileName;
+                while (!(fileName = inputStream.readUTF()).isEmpty()) {
+                    long size = inputStream.readLong();
+                    total++;
+                    String status;
+                    if (draining) {
+                        FileTransfer.skip(inputStream, size);
+                        status = DRAINING;
+                    } else if (currentCatalogue == null) {
+                        FileTransfer.skip(inputStream, size);
+                        status = "No catalogues chosen yet!";
+                    } else {
+                        status = storeFile(inputStream, socketChannel, currentCatalogue, fileName, size, WireCompression.RAW);
+                    }
+                    if (status.equals("File sent successfully")) {
+                        replicate(currentCatalogue, fileName);
+                        stored++;
+                    } else {
+                        skipped.append("\nskipped ").append(fileName).append(": ").append(status);
+                    }
+                }
+                if (deflated) {
+                    inputStream.close();
+                }
+            }
+            sendPrivateMessage("Stored " + stored + " of " + total + " file(s)" + skipped);
+        }
 
-            if (Files.exists(targetPath)) {
-                throw new FileAlreadyExistsException("This file already exists!");
+        //send_dedup: сначала список кусков (хэш + длина), в ответ промежуточная строка "missing <диапазоны>"
+        //или "refused", затем клиент присылает тела запрошенных кусков по порядку, и только потом - итоговый ответ
+        private void receiveDeduplicated() throws IOException {
+            DataInputStream inputStream = in();
+            String fileName = inputStream.readUTF();
+            long size = inputStream.readLong();
+            int count = inputStream.readInt();
+            //Куски короче минимума бывают только в конце, так что больше этого их быть не может
+            if (size < 0 || count < 0 || count > size / ContentChunker.MIN_SIZE + 1) {
+                throw new IOException("Invalid dedup manifest: " + count + " chunk(s) for " + size + " bytes");
+            }
+            List<DedupStore.Chunk> chunks = new ArrayList<>(count);
+            byte[] hash = new byte[DedupStore.HASH_SIZE];
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                inputStream.readFully(hash);
+                int length = inputStream.readInt();
+                if (length <= 0 || length > ContentChunker.MAX_SIZE) {
+                    throw new IOException("Invalid chunk length: " + length);
+                }
+                chunks.add(new DedupStore.Chunk(HexFormat.of().formatHex(hash), length));
+                total += length;
+            }
+            String currentCatalogue = catalogue();
+            Path targetPath = null;
+            String refusal = null;
+            if (draining) {
+                refusal = DRAINING;
+            } else if (currentCatalogue == null) {
+                refusal = "No catalogues chosen yet!";
+            } else if (total != size) {
+                refusal = "Chunk lengths do not add up to the file size";
+            } else {
+                Path catalogue = Path.of(currentCatalogue).toAbsolutePath().normalize();
+                try {
+                    targetPath = catalogue.resolve(fileName).normalize();
+                } catch (InvalidPathException exception) {
+                    targetPath = catalogue;
+                }
+                if (!targetPath.startsWith(catalogue) || targetPath.equals(catalogue)
+                        || CatalogueIndex.isServerFile(targetPath.getFileName().toString())) {
+                    refusal = "Invalid file name: " + fileName;
+                } else if (Files.exists(targetPath)) {
+                    refusal = "This file already exists!";
+                }
+            }
+            if (refusal != null) {
+                sendInterim("refused");
+                sendPrivateMessage(refusal);
+                return;
             }
+            //В режиме dedup просим только то, чего нет в хранилище, повторы внутри файла - один раз
+            BitSet present = new BitSet(count);
+            if (deduplicate) {
+                Set<String> requested = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    String chunkHash = chunks.get(i).hash();
+                    if (dedupStore.contains(chunkHash) || !requested.add(chunkHash)) {
+                        present.set(i);
+                    }
+                }
+            }
+            sendInterim("missing " + ResumableUploads.missingRanges(present, count));
+            Files.createDirectories(targetPath.getParent());
+            String status;
+            try (UploadShaper.Upload upload = upload()) {
+                status = deduplicate ? receiveChunks(upload.input(), chunks, present, targetPath, size)
+                        : receiveChunksPlain(upload.input(), chunks, targetPath);
+            }
+            if (status.equals("File sent successfully")) {
+                replicate(currentCatalogue, fileName);
+            }
+            sendPrivateMessage(status);
+        }
 
-            try (FileChannel fileChannel = FileChannel.open(targetPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-                long size = dataInputStream.readLong();
-                ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+        private String receiveChunks(DataInputStream inputStream, List<DedupStore.Chunk> chunks, BitSet present,
+                                     Path targetPath, long size) throws IOException {
+            byte[] data = new byte[ContentChunker.MAX_SIZE];
+            List<Integer> corrupted = new ArrayList<>();
+            for (int i = present.nextClearBit(0); i < chunks.size(); i = present.nextClearBit(i + 1)) {
+                DedupStore.Chunk chunk = chunks.get(i);
+                inputStream.readFully(data, 0, chunk.length());
+                metrics.uploaded(chunk.length());
+                //Испорченный кусок не сохраняем, но дочитываем остальные, чтобы не сбить поток команд
+                if (!dedupStore.put(chunk.hash(), data, 0, chunk.length())) {
+                    corrupted.add(i);
+                }
+            }
+            if (!corrupted.isEmpty()) {
+                return "Chunk(s) " + corrupted + " do not match their hashes, send the file again";
+            }
+            try {
+                dedupStore.writeManifest(targetPath, new DedupStore.Manifest(size, chunks));
+            } catch (FileAlreadyExistsException exception) {
+                return "This file already exists!";
+            }
+            metrics.fileStored();
+            return "File sent successfully";
+        }
 
-                while (size > 0 && fileChannel.read(buffer) != -1) {
-                    buffer.flip();
-                    fileChannel.write(buffer);
-                    buffer.clear();
-                    size -= buffer.remaining();
+        //Режим plain: запрошены все куски, файл собирается как есть, хэши всё равно проверяются
+        private String receiveChunksPlain(DataInputStream inputStream, List<DedupStore.Chunk> chunks, Path targetPath) throws IOException {
+            byte[] data = new byte[ContentChunker.MAX_SIZE];
+            List<Integer> corrupted = new ArrayList<>();
+            boolean created = false;
+            boolean complete = false;
+            try (FileChannel fileChannel = FileChannel.open(targetPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                created = true;
+                for (int i = 0; i < chunks.size(); i++) {
+                    DedupStore.Chunk chunk = chunks.get(i);
+                    inputStream.readFully(data, 0, chunk.length());
+                    metrics.uploaded(chunk.length());
+                    if (!chunk.hash().equals(DedupStore.hash(data, 0, chunk.length()))) {
+                        corrupted.add(i);
+                    }
+                    ByteBuffer source = ByteBuffer.wrap(data, 0, chunk.length());
+                    while (source.hasRemaining()) {
+                        fileChannel.write(source);
+                    }
                 }
+                complete = corrupted.isEmpty();
+            } catch (FileAlreadyExistsException exception) {
+                //Файл появился, пока клиент отправлял куски
+                for (DedupStore.Chunk chunk : chunks) {
+                    inputStream.skipNBytes(chunk.length());
+                }
+                return "This file already exists!";
+            } finally {
+                //Обрыв посреди тела или битый кусок: обрезанный файл не должен занимать имя, иначе повтор получит "already exists"
+                if (created && !complete) {
+                    Files.deleteIfExists(targetPath);
+                }
+            }
+            if (!corrupted.isEmpty()) {
+                return "Chunk(s) " + corrupted + " do not match their hashes, send the file again";
+            }
+            metrics.fileStored();
+            return "File sent successfully";
+        }
 
-                sendPrivateMessage("File sent successfully");
+        //Промежуточный ответ внутри команды: в бинарном режиме - данные запроса, ответ на запрос ещё впереди
+        private void sendInterim(String message) throws IOException {
+            if (currentRequest.get() == null) {
+                sendPrivateMessage(message);
+                return;
+            }
+            out().writeUTF(message);
+            out().flush();
+        }
+
+        //Байт кодировки тела есть, только если сжатие согласовано
+        private byte readEncoding(DataInputStream inputStream) throws IOException {
+            return compression ? inputStream.readByte() : WireCompression.RAW;
+        }
+
+        //Имя может содержать подкаталоги (send -r), недостающие создаются; выйти за пределы каталога нельзя
+        private String storeFile(DataInputStream inputStream, SocketChannel socketChannel, String currentCatalogue, String fileName,
+                                 long size, byte encoding) throws IOException {
+            Path catalogue = Path.of(currentCatalogue).toAbsolutePath().normalize();
+            Path targetPath;
+            try {
+                targetPath = catalogue.resolve(fileName).normalize();
+            } catch (InvalidPathException exception) {
+                targetPath = catalogue;
+            }
+            //Имена служебных файлов заняты: такой файл не было бы видно, а загрузка могла бы его перезаписать
+            if (!targetPath.startsWith(catalogue) || targetPath.equals(catalogue)
+                    || CatalogueIndex.isServerFile(targetPath.getFileName().toString())) {
+                WireCompression.skip(inputStream, size, encoding);
+                return "Invalid file name: " + fileName;
+            }
+            Files.createDirectories(targetPath.getParent());
+            try {
+                if (deduplicate) {
+                    //Куски режутся по исходным данным; сжатый поток закрываем только после записи,
+                    //иначе при существующем файле тело было бы вычитано дважды
+                    InputStream source = encoding == WireCompression.DEFLATE ? WireCompression.inflating(inputStream) : inputStream;
+                    dedupStore.write(source, size, targetPath);
+                    if (source != inputStream) {
+                        source.close();
+                    }
+                    recordUpload(size);
+                    return "File sent successfully";
+                }
+                if (encoding == WireCompression.DEFLATE) {
+                    writeStrategy.receiveInflated(inputStream, targetPath, size);
+                } else {
+                    writeStrategy.receive(inputStream, socketChannel, targetPath, size);
+                }
+                recordUpload(size);
+                return "File sent successfully";
             } catch (FileAlreadyExistsException exception) {
+                //Тело всё равно нужно вычитать, иначе следующая команда прочитается из середины файла
+                WireCompression.skip(inputStream, size, encoding);
+                return "This file already exists!";
+            }
+        }
+
+        //Принятый файл уходит остальным узлам каталога, клиент этого не ждёт
+        private void replicate(String catalogue, String fileName) {
+            if (replicator != null) {
+                replicator.replicate(catalogue, fileName, Path.of(catalogue).toAbsolutePath().normalize().resolve(fileName).normalize());
+            }
+        }
+
+        //Сессия докачки помнит только путь файла - каталог находим по нему
+        private void replicate(ResumableUploads.Upload upload) {
+            if (replicator == null) {
+                return;
+            }
+            for (String name : catalogueNamesList) {
+                Path root = Path.of(name).toAbsolutePath().normalize();
+                if (upload.target().startsWith(root)) {
+                    replicate(name, root.relativize(upload.target()).toString().replace('\\', '/'));
+                    return;
+                }
+            }
+        }
+
+        //replicate <catalogue>: копия загрузки с другого узла кластера, тело как у send без байта кодировки.
+        //Дальше не реплицируется, иначе узлы пересылали бы файл друг другу
+        private void receiveReplica(String catalogueName) throws IOException {
+            DataInputStream inputStream = in();
+            String fileName = inputStream.readUTF();
+            long size = inputStream.readLong();
+            String status;
+            if (replicator == null || !replicator.isPeer(clientSocket.getInetAddress())) {
+                //Реплика минует проверки загрузки, поэтому принимается только от узлов кольца
+                FileTransfer.skip(inputStream, size);
+                status = "Replication is only accepted from cluster nodes";
+            } else if (!catalogueNamesList.contains(catalogueName) || !replicator.keeps(catalogueName)) {
+                FileTransfer.skip(inputStream, size);
+                status = "This node does not keep catalogue " + catalogueName;
+            } else if (draining) {
+                FileTransfer.skip(inputStream, size);
+                status = DRAINING;
+            } else {
+                status = storeFile(inputStream, channel(), catalogueName, fileName, size, WireCompression.RAW);
+            }
+            sendPrivateMessage(status);
+        }
+
+        private void recordUpload(long size) {
+            metrics.uploaded(size);
+            metrics.fileStored();
+        }
+
+        //Ответ на get: три long (размер файла, смещение, длина куска), тело, затем текстовый статус.
+        //Размер -1 означает отказ, тело тогда не передаётся.
+        public void sendFile(String parameter) throws IOException {
+            if (currentRequest.get() != null) {
+                sendFileRange(parameter);
+                return;
+            }
+            synchronized (this) {
+                sendFileRange(parameter);
+            }
+        }
+
+        private void sendFileRange(String parameter) throws IOException {
+            String currentCatalogue = catalogue();
+            String[] arguments = parameter.trim().split("\\s+");
+            if (draining) {
+                refuseFile(DRAINING);
+                return;
+            }
+            if (currentCatalogue == null) {
+                refuseFile("No catalogues chosen yet!");
+                return;
+            }
+            Path catalogue = Path.of(currentCatalogue).toAbsolutePath().normalize();
+            Path targetPath = catalogue.resolve(arguments[0]).normalize();
+            if (arguments[0].isEmpty() || !targetPath.startsWith(catalogue) || !CatalogueIndex.isCatalogueFile(targetPath)) {
+                refuseFile("Haven't found any file with given name");
+                return;
+            }
+            long offset;
+            long length;
+            try {
+                offset = arguments.length > 1 ? Long.parseLong(arguments[1]) : 0;
+                length = arguments.length > 2 ? Long.parseLong(arguments[2]) : -1;
+            } catch (NumberFormatException exception) {
+                refuseFile("Provided range is invalid");
+                return;
+            }
+            try (FileChannel fileChannel = FileChannel.open(targetPath, StandardOpenOption.READ)) {
+                //В режиме dedup файл - манифест, содержимое собирается из кусков
+                DedupStore.Manifest manifest = dedupStore.readManifest(targetPath);
+                long size = manifest != null ? manifest.size() : fileChannel.size();
+                if (offset < 0 || offset > size) {
+                    refuseFile("Requested range is out of file bounds: file size is " + size);
+                    return;
+                }
+                long count = length < 0 ? size - offset : Math.min(length, size - offset);
+                DataOutputStream outputStream = out();
+                outputStream.writeLong(size);
+                outputStream.writeLong(offset);
+                outputStream.writeLong(count);
+                //Сжимать ли, решаем по образцу из начала диапазона; несжатое тело идёт через transferTo
+                boolean deflated = compression && (manifest != null ? worthCompressing(manifest, offset, count)
+                        : WireCompression.worthCompressing(fileChannel, offset, count));
+                if (compression) {
+                    outputStream.writeByte(deflated ? WireCompression.DEFLATE : WireCompression.RAW);
+                }
+                if (manifest != null) {
+                    DataOutputStream body = deflated ? WireCompression.deflating(outputStream) : outputStream;
+                    dedupStore.copy(manifest, offset, count, body);
+                    if (deflated) {
+                        body.close();
+                    }
+                    outputStream.flush();
+                } else if (deflated) {
+                    WireCompression.deflate(fileChannel, offset, count, outputStream);
+                } else {
+                    FileTransfer.send(outputStream, channel(), fileChannel, offset, count);
+                }
+                sendPrivateMessage("Sent bytes " + offset + "-" + (offset + count) + " of " + size + " from " + arguments[0]
+                        + (deflated ? " (deflate)" : ""));
+            }
+        }
+
+        private boolean worthCompressing(DedupStore.Manifest manifest, long offset, long count) throws IOException {
+            ByteArrayOutputStream sample = new ByteArrayOutputStream();
+            dedupStore.copy(manifest, offset, Math.min(count, 64 * 1024), sample);
+            return WireCompression.worthCompressing(sample.toByteArray(), sample.size());
+        }
+
+        private void refuseFile(String message) throws IOException {
+            out().writeLong(-1);
+            sendPrivateMessage(message);
+        }
+
+        //upload_init <name> <size> <chunkSize>: имя может содержать пробелы, числа берём с конца
+        private void initUpload(String parameter) {
+            if (draining) {
+                sendPrivateMessage(DRAINING);
+                return;
+            }
+            if (currentCatalogue == null) {
+                sendPrivateMessage("No catalogues chosen yet!");
+                return;
+            }
+            try {
+                int chunkSizeIndex = parameter.lastIndexOf(' ');
+                int sizeIndex = parameter.lastIndexOf(' ', chunkSizeIndex - 1);
+                String fileName = parameter.substring(0, sizeIndex).trim();
+                long size = Long.parseLong(parameter.substring(sizeIndex + 1, chunkSizeIndex));
+                int chunkSize = Integer.parseInt(parameter.substring(chunkSizeIndex + 1));
+                Path catalogue = Path.of(currentCatalogue).toAbsolutePath().normalize();
+                ResumableUploads.Upload upload = resumableUploads.open(catalogue, fileName, size, chunkSize);
+                sendPrivateMessage("session " + upload.id() + " missing " + upload.missingRanges());
+            } catch (StringIndexOutOfBoundsException | IllegalArgumentException exception) {
+                sendPrivateMessage("Usage: upload_init <name> <size> <chunkSize>. " + exception.getMessage());
+            } catch (IOException exception) {
                 sendPrivateMessage(exception.getMessage());
             }
         }
 
+        //upload_chunk <session> <index>, затем int длина, int CRC32C и тело куска
+        private void receiveChunk(String parameter) throws IOException {
+            DataInputStream inputStream = in();
+            int length = inputStream.readInt();
+            int crc = inputStream.readInt();
+            String[] arguments = parameter.trim().split("\\s+");
+            ResumableUploads.Upload upload = resumableUploads.find(arguments[0]);
+            int index = -1;
+            try {
+                index = arguments.length > 1 ? Integer.parseInt(arguments[1]) : -1;
+            } catch (NumberFormatException ignored) {
+            }
+            //Недокачанный файл клиент дошлёт после перезапуска
+            if (upload == null || index < 0 || draining) {
+                FileTransfer.skip(inputStream, length);
+                sendChunkAck("rejected chunk " + index);
+                return;
+            }
+            //Куски бинарного протокола принимаются параллельно, общий буфер есть только у текстового
+            byte[] buffer = currentRequest.get() == null ? chunkBuffer() : new byte[64 * 1024];
+            boolean accepted;
+            try (UploadShaper.Upload body = upload()) {
+                accepted = upload.receiveChunk(body.input(), index, length, crc, buffer);
+            }
+            if (!accepted) {
+                System.out.println(clientName + ": rejected chunk " + index + " of upload " + upload.id());
+                sendChunkAck("rejected chunk " + index);
+                return;
+            }
+            metrics.uploaded(length);
+            sendChunkAck("received chunk " + index);
+        }
+
+        private byte[] chunkBuffer() {
+            if (chunkBuffer == null) {
+                chunkBuffer = new byte[64 * 1024];
+            }
+            return chunkBuffer;
+        }
+
+        //В текстовом режиме на кусок не отвечаем, в бинарном каждый запрос закрывается ответом
+        private void sendChunkAck(String message) {
+            if (currentRequest.get() != null) {
+                sendPrivateMessage(message);
+            }
+        }
+
+        private void commitUpload(String sessionId) {
+            ResumableUploads.Upload upload = resumableUploads.find(sessionId.trim());
+            if (upload == null) {
+                sendPrivateMessage("Unknown upload session, start it again with upload_init");
+                return;
+            }
+            if (!upload.isComplete()) {
+                sendPrivateMessage("session " + upload.id() + " missing " + upload.missingRanges());
+                return;
+            }
+            try {
+                resumableUploads.complete(upload);
+                if (deduplicate) {
+                    dedupStore.importFile(upload.target());
+                }
+                metrics.fileStored();
+                replicate(upload);
+                sendPrivateMessage("File sent successfully");
+            } catch (IOException exception) {
+                sendPrivateMessage("Failed to complete upload: " + exception.getMessage());
+            }
+        }
+
         public static boolean isPath(Path path) {
             return Files.exists(path) && Files.isRegularFile(path);
         }
@@ -0,0 +1,233 @@
+package serverside.logic;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/*
+ * Метрики сервера: гистограммы задержек по командам, принятые байты и файлы, соединения, рассылки, очереди пулов.
+ * Запись на горячем пути - только счётчики и заранее созданные гистограммы. Снимок собирается при чтении:
+ * через JMX (serverside:type=...) и в текстовом формате Prometheus по HTTP (GET /metrics).
+ */
+class ServerMetrics {
+    private static final String PREFIX = "fileserver_";
+    //Команды вне списка пишутся в одну гистограмму, чтобы мусорный ввод не плодил серии
+    private static final String OTHER = "other";
+    private static final List<String> COMMANDS = List.of("protocol", "caps", "bye", "catalogs", "use", "currcat_files",
+            "files", "search", "send", "send_batch", "send_dedup", "upload_init", "upload_chunk", "upload_commit", "get", "stat",
+            "cluster", "replicate", OTHER);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    //Скорость приёма - скользящее среднее за минуту, пересчитывается по 5-секундным интервалам
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+    private final Map<String, LatencyHistogram> commandLatency;
+    private final LongAdder uploadBytes = new LongAdder();
+    private final LongAdder uploadedFiles = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder droppedBroadcasts = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+    //Пул nio_workers пересоздаётся при перезапуске, пока /metrics читает карту из своего потока
+    private final Map<String, IntSupplier> queueDepths = new ConcurrentSkipListMap<>();
+    private IntSupplier activeConnections = () -> 0;
+    private IntSupplier activeTransfers = () -> 0;
+    //От запуска JVM до первого accept; 0 - сервер ещё не принимал соединений
+    private volatile long startupMillis;
+    private long lastTick = System.nanoTime();
+    private long bytesAtLastTick;
+    private double uploadRate;
+    private HttpServer endpoint;
+
+    ServerMetrics() {
+        Map<String, LatencyHistogram> histograms = new HashMap<>();
+        COMMANDS.forEach(command -> histograms.put(command, new LatencyHistogram()));
+        commandLatency = Collections.unmodifiableMap(histograms);
+    }
+
+    void recordCommand(String command, long nanos) {
+        LatencyHistogram histogram = commandLatency.get(command);
+        (histogram != null ? histogram : commandLatency.get(OTHER)).recordNanos(nanos);
+    }
+
+    //Байты содержимого файлов, принятые от клиентов (после распаковки; в dedup - только недостающие куски)
+    void uploaded(long bytes) {
+        uploadBytes.add(bytes);
+    }
+
+    void fileStored() {
+        uploadedFiles.increment();
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void broadcastDropped() {
+        droppedBroadcasts.increment();
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumers.increment();
+    }
+
+    void activeConnections(IntSupplier supplier) {
+        activeConnections = supplier;
+    }
+
+    void activeTransfers(IntSupplier supplier) {
+        activeTransfers = supplier;
+    }
+
+    void started(long millis) {
+        if (startupMillis == 0) {
+            startupMillis = millis;
+        }
+    }
+
+    //У пулов без очереди (виртуальные потоки, cached) задачи не ждут, такой пул в метрики не попадает
+    void executor(String name, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor pool && !(pool.getQueue() instanceof SynchronousQueue)) {
+            queueDepths.put(name, () -> pool.getQueue().size());
+        } else {
+            queueDepths.remove(name);
+        }
+    }
+
+    synchronized double uploadBytesPerSecond() {
+        long now = System.nanoTime();
+        long ticks = (now - lastTick) / TICK_NANOS;
+        if (ticks > 0) {
+            long bytes = uploadBytes.sum();
+            //Байты за пропущенные интервалы делятся поровну: чтение метрик редкое, а не каждые 5 секунд
+            double instant = (bytes - bytesAtLastTick) / (ticks * (TICK_NANOS / 1e9));
+            for (long i = 0; i < Math.min(ticks, 720); i++) {
+                uploadRate += ALPHA * (instant - uploadRate);
+            }
+            bytesAtLastTick = bytes;
+            lastTick += ticks * TICK_NANOS;
+        }
+        return uploadRate;
+    }
+
+    void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            MetricsBean serverBean = new MetricsBean("File server connections, uploads, broadcasts and executor queues")
+                    .longAttribute("ActiveConnections", activeConnections::getAsInt)
+                    .longAttribute("ActiveTransfers", activeTransfers::getAsInt)
+                    .longAttribute("StartupMillis", () -> startupMillis)
+                    .longAttribute("AcceptedConnections", acceptedConnections::sum)
+                    .longAttribute("RejectedConnections", rejectedConnections::sum)
+                    .longAttribute("DroppedBroadcasts", droppedBroadcasts::sum)
+                    .longAttribute("SlowConsumersDisconnected", slowConsumers::sum)
+                    .longAttribute("UploadBytes", uploadBytes::sum)
+                    .longAttribute("UploadedFiles", uploadedFiles::sum)
+                    .doubleAttribute("UploadBytesPerSecond", this::uploadBytesPerSecond);
+            //Пул берётся из карты при каждом чтении: пересозданный при перезапуске пул подменяет прежний
+            queueDepths.keySet().forEach(name -> serverBean.longAttribute("QueueDepth_" + name,
+                    () -> queueDepths.getOrDefault(name, () -> 0).getAsInt()));
+            server.registerMBean(serverBean, new ObjectName("serverside:type=Server"));
+            for (String command : COMMANDS) {
+                LatencyHistogram histogram = commandLatency.get(command);
+                MetricsBean commandBean = new MetricsBean("Latency of the " + command + " command, microseconds")
+                        .longAttribute("Count", histogram::count)
+                        .doubleAttribute("Mean", histogram::meanMicros)
+                        .longAttribute("Max", histogram::maxMicros);
+                for (double quantile : QUANTILES) {
+                    commandBean.longAttribute("P" + quantileLabel(quantile).substring(2), () -> histogram.percentileMicros(quantile));
+                }
+                server.registerMBean(commandBean, new ObjectName("serverside:type=CommandLatency,command=" + command));
+            }
+        } catch (JMException exception) {
+            //Второй сервер в той же JVM: бины первого остаются, метрики доступны по HTTP
+            System.out.println("Failed to register metrics MBeans: " + exception.getMessage());
+        }
+    }
+
+    void startEndpoint(String address, int port) throws IOException {
+        endpoint = HttpServer.create(new InetSocketAddress(address, port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        endpoint.start();
+        System.out.println("Metrics available on http://" + address + ":" + endpoint.getAddress().getPort() + "/metrics");
+    }
+
+    void stopEndpoint() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+            endpoint = null;
+        }
+    }
+
+    String prometheusText() {
+        StringBuilder text = new StringBuilder();
+        header(text, "command_latency_seconds", "summary", "Time spent executing a client command");
+        for (String command : COMMANDS) {
+            LatencyHistogram histogram = commandLatency.get(command);
+            for (double quantile : QUANTILES) {
+                text.append(PREFIX).append("command_latency_seconds{command=\"").append(command).append("\",quantile=\"")
+                        .append(quantile).append("\"} ").append(histogram.percentileMicros(quantile) / 1e6).append('\n');
+            }
+            text.append(PREFIX).append("command_latency_seconds_sum{command=\"").append(command).append("\"} ")
+                    .append(histogram.sumMicros() / 1e6).append('\n');
+            text.append(PREFIX).append("command_latency_seconds_count{command=\"").append(command).append("\"} ")
+                    .append(histogram.count()).append('\n');
+        }
+        sample(text, "upload_bytes_total", "counter", "File content bytes received from clients", uploadBytes.sum());
+        sample(text, "upload_bytes_per_second", "gauge", "One-minute moving average of upload throughput", uploadBytesPerSecond());
+        sample(text, "uploaded_files_total", "counter", "Files stored from client uploads", uploadedFiles.sum());
+        sample(text, "connections_active", "gauge", "Currently admitted client connections", activeConnections.getAsInt());
+        sample(text, "transfers_active", "gauge", "Uploads and downloads in progress", activeTransfers.getAsInt());
+        sample(text, "startup_seconds", "gauge", "Time from JVM start to accepting connections", startupMillis / 1e3);
+        sample(text, "connections_accepted_total", "counter", "Client connections admitted", acceptedConnections.sum());
+        sample(text, "connections_rejected_total", "counter", "Client connections refused by the admission limit", rejectedConnections.sum());
+        sample(text, "broadcasts_dropped_total", "counter", "Broadcast messages dropped because a client's queue was full", droppedBroadcasts.sum());
+        sample(text, "slow_consumers_disconnected_total", "counter", "Clients disconnected for not reading broadcasts", slowConsumers.sum());
+        header(text, "executor_queue_depth", "gauge", "Tasks waiting for a thread in a server executor");
+        queueDepths.forEach((name, depth) -> text.append(PREFIX).append("executor_queue_depth{executor=\"").append(name)
+                .append("\"} ").append(depth.getAsInt()).append('\n'));
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String type, String help, Number value) {
+        header(text, name, type, help);
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    //0.5 -> "0.50", 0.999 -> "0.999": для имён атрибутов P50, P90, P99, P999
+    private static String quantileLabel(double quantile) {
+        String label = String.valueOf(quantile);
+        return label.length() < 4 ? label + "0" : label;
+    }
+}
@@ -0,0 +1,45 @@
+package serverside.logic;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Пул временных Selector'ов, на которых worker ждёт готовности неблокирующего канала,
+ * не переключая его в блокирующий режим и не снимая с селектора реактора.
+ */
+final class TemporarySelectors {
+    private static final long WAIT_MILLIS = 1000;
+    private static final Queue<Selector> pool = new ConcurrentLinkedQueue<>();
+
+    private TemporarySelectors() {
+    }
+
+    static void await(SelectableChannel channel, int operations) throws IOException {
+        Selector selector = pool.poll();
+        if (selector == null) {
+            selector = Selector.open();
+        }
+        try {
+            SelectionKey key = channel.register(selector, operations);
+            try {
+                //Ждём порциями, чтобы заметить закрытие канала из другого потока
+                while (selector.select(WAIT_MILLIS) == 0) {
+                    if (!channel.isOpen()) {
+                        throw new ClosedChannelException();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } finally {
+                key.cancel();
+                selector.selectNow();
+            }
+        } finally {
+            pool.add(selector);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package serverside.logic;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Ведро токенов: rate байт в секунду, не больше capacity про запас.
+ * Кусок больше остатка уводит ведро в долг, и следующий забирающий ждёт, пока долг не погасится -
+ * так ожидающие обслуживаются по очереди, а большой кусок не ждёт бесконечно.
+ */
+class TokenBucket {
+    private final double tokensPerNano;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond, long capacity) {
+        this.tokensPerNano = bytesPerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    void acquire(long bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            tokens -= bytes;
+            wait = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+    }
+}
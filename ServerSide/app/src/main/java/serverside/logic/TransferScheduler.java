@@ -0,0 +1,114 @@
+package serverside.logic;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Deficit round-robin по кускам между активными передачами: одновременно обрабатывается не больше slots кусков,
+ * очередной слот получает передача в голове круга, если её кредит (deficit) покрывает кусок.
+ * На каждом проходе круга кредит растёт на quantum байт, поэтому передачи делят слоты поровну по байтам,
+ * независимо от размера кусков и от того, сколько файлов идёт через одно соединение.
+ */
+class TransferScheduler {
+    private final int slots;
+    private final int quantum;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Flow> waiting = new ArrayDeque<>();
+    private int busy;
+
+    TransferScheduler(int slots, int quantum) {
+        this.slots = slots;
+        this.quantum = quantum;
+    }
+
+    Flow open() {
+        return new Flow();
+    }
+
+    //Вызывается под lock
+    private void dispatch() {
+        while (busy < slots && !waiting.isEmpty()) {
+            Flow flow = waiting.pollFirst();
+            if (flow.deficit < flow.request) {
+                flow.deficit += quantum;
+                if (flow.deficit < flow.request) {
+                    waiting.addLast(flow);
+                    continue;
+                }
+            }
+            flow.deficit -= flow.request;
+            flow.granted = true;
+            busy++;
+            flow.turn.signal();
+        }
+    }
+
+    //Одна передача. Слот держится от acquire до следующего acquire или close
+    final class Flow {
+        private final Condition turn = lock.newCondition();
+        private long deficit;
+        private int request;
+        private boolean granted;
+        private boolean holding;
+
+        void acquire(int bytes) throws InterruptedIOException {
+            lock.lock();
+            try {
+                //Пока кредит покрывает кусок, ход за этой передачей и слот не отдаётся: если сначала
+                //освободить слот, его заберёт соседняя передача со свежим quantum, и делёж пойдёт по ходам, а не по байтам
+                if (holding && deficit >= bytes) {
+                    deficit -= bytes;
+                    return;
+                }
+                releaseSlot();
+                request = bytes;
+                //Кредита хватает - ход всё ещё за этой передачей, иначе ждёт своего круга
+                if (deficit >= bytes) {
+                    waiting.addFirst(this);
+                } else {
+                    waiting.addLast(this);
+                }
+                dispatch();
+                while (!granted) {
+                    try {
+                        turn.await();
+                    } catch (InterruptedException exception) {
+                        if (!granted) {
+                            waiting.remove(this);
+                        }
+                        releaseSlot();
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a transfer slot");
+                    }
+                }
+                granted = false;
+                holding = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                releaseSlot();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void releaseSlot() {
+            if (granted) {
+                granted = false;
+                holding = true;
+            }
+            if (holding) {
+                holding = false;
+                busy--;
+                dispatch();
+            }
+        }
+    }
+}
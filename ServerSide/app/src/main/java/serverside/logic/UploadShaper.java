@@ -0,0 +1,121 @@
+package serverside.logic;
+
+import java.io.*;
+
+/*
+ * Ограничение загрузок: ведро токенов клиента, справедливая очередь TransferScheduler и общее ведро сервера.
+ * Тело читается из сети без слота, а прочитанный кусок отдаётся вызывающему только после своей очереди -
+ * запись куска на диск идёт под слотом, который освобождается следующим чтением или close.
+ * Не успевшая получить слот загрузка перестаёт читать, и TCP сам притормаживает её клиента.
+ */
+class UploadShaper {
+    private final TokenBucket globalBucket;
+    private final TransferScheduler scheduler;
+    private final long clientRate;
+
+    //Нули - без ограничений; scheduler == null - без справедливой очереди
+    UploadShaper(long globalRate, long clientRate, TransferScheduler scheduler) {
+        this.globalBucket = globalRate > 0 ? new TokenBucket(globalRate, burst(globalRate)) : null;
+        this.clientRate = clientRate;
+        this.scheduler = scheduler;
+    }
+
+    boolean isEnabled() {
+        return globalBucket != null || clientRate > 0 || scheduler != null;
+    }
+
+    //Ведро для нового соединения: лимит клиента действует на все его загрузки вместе
+    TokenBucket clientBucket() {
+        return clientRate > 0 ? new TokenBucket(clientRate, burst(clientRate)) : null;
+    }
+
+    Upload open(DataInputStream inputStream, TokenBucket clientBucket) {
+        if (!isEnabled()) {
+            return new Upload(inputStream, null);
+        }
+        Shaped shaped = new Shaped(inputStream, clientBucket, scheduler == null ? null : scheduler.open());
+        return new Upload(new DataInputStream(shaped), shaped);
+    }
+
+    //Запас в десятую долю секунды, но не меньше одного куска копирования
+    private static long burst(long rate) {
+        return Math.max(rate / 10, 64 * 1024);
+    }
+
+    //Тело одной загрузки. close освобождает слот, но не закрывает поток соединения
+    static final class Upload implements Closeable {
+        private final DataInputStream input;
+        private final Shaped shaped;
+
+        private Upload(DataInputStream input, Shaped shaped) {
+            this.input = input;
+            this.shaped = shaped;
+        }
+
+        DataInputStream input() {
+            return input;
+        }
+
+        //Под ограничением байты должны идти через input: transferFrom из сокета их бы обошёл
+        boolean isShaped() {
+            return shaped != null;
+        }
+
+        @Override
+        public void close() {
+            if (shaped != null) {
+                shaped.finish();
+            }
+        }
+    }
+
+    private final class Shaped extends FilterInputStream {
+        private final TokenBucket clientBucket;
+        private final TransferScheduler.Flow flow;
+
+        private Shaped(InputStream inputStream, TokenBucket clientBucket, TransferScheduler.Flow flow) {
+            super(inputStream);
+            this.clientBucket = clientBucket;
+            this.flow = flow;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            //Предыдущий кусок вызывающий уже записал - слот больше не нужен, пока ждём сеть
+            if (flow != null) {
+                flow.close();
+            }
+            int count = in.read(bytes, offset, length);
+            if (count <= 0) {
+                return count;
+            }
+            if (clientBucket != null) {
+                clientBucket.acquire(count);
+            }
+            if (flow != null) {
+                flow.acquire(count);
+            }
+            if (globalBucket != null) {
+                globalBucket.acquire(count);
+            }
+            return count;
+        }
+
+        private void finish() {
+            if (flow != null) {
+                flow.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            finish();
+        }
+    }
+}
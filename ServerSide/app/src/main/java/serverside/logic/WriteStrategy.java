@@ -0,0 +1,306 @@
+package serverside.logic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Как тело загрузки попадает на диск:
+ * channel - transferFrom из сокета в файл, как было всегда;
+ * direct - крупные direct-буферы из пула, одна запись на буфер;
+ * mapped - файл сразу растягивается до размера из заголовка и заполняется из сокета через отображение в память;
+ * odirect - O_DIRECT мимо страничного кэша, выровненными блоками.
+ * Если есть канал сокета, тело нигде не проходит через кучу. Долговечность задаёт sync:
+ * none - как решит ОС, close - force файла и каталога перед ответом клиенту, interval - ещё и каждые syncInterval байт.
+ */
+class WriteStrategy {
+    //Отображение идёт окнами: отображённые области освобождает только GC
+    private static final long MAP_REGION = 64L * 1024 * 1024;
+    private static final int STAGING_SIZE = 64 * 1024;
+    //com.sun.nio.file.ExtendedOpenOption.DIRECT берётся через отражение: JDK-специфичный класс
+    //не нужен при компиляции, а без него odirect просто уходит в запасной путь. null - опции нет
+    private static final OpenOption DIRECT = directOption();
+
+    private final String kind;
+    private final String sync;
+    private final long syncInterval;
+    private final int bufferSize;
+    private final BufferPool buffers;
+    private volatile BufferPool alignedBuffers;
+    private volatile boolean directUnsupported;
+
+    WriteStrategy(String kind, int bufferSize, String sync, long syncInterval) {
+        this.kind = kind;
+        this.bufferSize = bufferSize;
+        this.sync = sync;
+        this.syncInterval = syncInterval;
+        this.buffers = new BufferPool(bufferSize, 16);
+    }
+
+    //Файл создаётся заново: FileAlreadyExistsException вылетает до того, как прочитан хоть байт тела.
+    //При ошибке посреди тела недописанный файл удаляется - после mapped он выглядел бы целым
+    void receive(DataInputStream inputStream, SocketChannel channel, Path target, long size) throws IOException {
+        switch (kind) {
+            case ("direct"):
+                receiveDirect(new Source(inputStream, channel, size), target, size);
+                break;
+            case ("mapped"):
+                receiveMapped(new Source(inputStream, channel, size), target, size);
+                break;
+            case ("odirect"):
+                receiveUnbuffered(new Source(inputStream, channel, size), target, size);
+                break;
+            default:
+                try (FileChannel fileChannel = create(target)) {
+                    try {
+                        Sync durability = new Sync(fileChannel);
+                        FileTransfer.receive(inputStream, channel, fileChannel, size, durability::written);
+                        durability.close(target);
+                    } catch (IOException exception) {
+                        discard(fileChannel, target);
+                        throw exception;
+                    }
+                }
+        }
+    }
+
+    //Сжатое тело: распаковка пишет в файл кусками произвольной длины, поэтому всегда через обычный канал
+    void receiveInflated(InputStream inputStream, Path target, long size) throws IOException {
+        try (FileChannel fileChannel = create(target)) {
+            try {
+                WireCompression.inflate(inputStream, fileChannel, 0, size);
+                new Sync(fileChannel).close(target);
+            } catch (IOException exception) {
+                discard(fileChannel, target);
+                throw exception;
+            }
+        }
+    }
+
+    private FileChannel create(Path target) throws IOException {
+        return FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private void discard(FileChannel fileChannel, Path target) throws IOException {
+        fileChannel.close();
+        Files.deleteIfExists(target);
+    }
+
+    private void receiveDirect(Source source, Path target, long size) throws IOException {
+        try (FileChannel fileChannel = create(target)) {
+            ByteBuffer buffer = buffers.acquire();
+            try {
+                Sync durability = new Sync(fileChannel);
+                long position = 0;
+                while (position < size) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                    source.fill(buffer);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += fileChannel.write(buffer, position);
+                    }
+                    durability.written(position);
+                }
+                durability.close(target);
+            } catch (IOException exception) {
+                discard(fileChannel, target);
+                throw exception;
+            } finally {
+                buffers.release(buffer);
+            }
+        }
+    }
+
+    private void receiveMapped(Source source, Path target, long size) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            try {
+                //Размер известен из заголовка: файл удлиняется один раз, а не на каждом окне
+                if (size > 0) {
+                    fileChannel.write(ByteBuffer.allocate(1), size - 1);
+                }
+                for (long offset = 0; offset < size; offset += MAP_REGION) {
+                    MappedByteBuffer region = fileChannel.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(MAP_REGION, size - offset));
+                    source.fill(region);
+                    //force канала не обязан сбрасывать изменения отображения, поэтому окна сбрасываются сами
+                    if (!sync.equals("none")) {
+                        region.force();
+                    }
+                }
+                new Sync(fileChannel).close(target);
+            } catch (IOException exception) {
+                discard(fileChannel, target);
+                throw exception;
+            }
+        }
+    }
+
+    private void receiveUnbuffered(Source source, Path target, long size) throws IOException {
+        int block = (int) Files.getFileStore(target.getParent()).getBlockSize();
+        FileChannel unbuffered = openUnbuffered(target);
+        if (unbuffered == null) {
+            receiveDirect(source, target, size);
+            return;
+        }
+        try (FileChannel fileChannel = unbuffered) {
+            ByteBuffer buffer = alignedBuffers(block).acquire();
+            try {
+                Sync durability = new Sync(fileChannel);
+                long position = 0;
+                while (position < size) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                    source.fill(buffer);
+                    int length = buffer.position();
+                    //Хвост короче блока дополняется нулями, лишнее потом отрезается
+                    int padded = (length + block - 1) / block * block;
+                    buffer.limit(padded);
+                    while (buffer.hasRemaining()) {
+                        buffer.put((byte) 0);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        fileChannel.write(buffer, position + buffer.position());
+                    }
+                    position += length;
+                    durability.written(position);
+                }
+                if (fileChannel.size() > size) {
+                    fileChannel.truncate(size);
+                }
+                durability.close(target);
+            } catch (IOException exception) {
+                discard(fileChannel, target);
+                throw exception;
+            } finally {
+                alignedBuffers.release(buffer);
+            }
+        }
+    }
+
+    //null - O_DIRECT здесь недоступен, пишем через direct-буферы
+    private FileChannel openUnbuffered(Path target) throws IOException {
+        if (directUnsupported) {
+            return null;
+        }
+        if (DIRECT == null) {
+            System.out.println("O_DIRECT is not available in this JDK, falling back to direct buffers");
+            directUnsupported = true;
+            return null;
+        }
+        try {
+            return FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, DIRECT);
+        } catch (FileAlreadyExistsException exception) {
+            throw exception;
+        } catch (UnsupportedOperationException | IOException exception) {
+            //Windows, tmpfs и часть сетевых ФС O_DIRECT не умеют
+            System.out.println("O_DIRECT is not available for " + target.getParent() + ", falling back to direct buffers: " + exception);
+            directUnsupported = true;
+            Files.deleteIfExists(target);
+            return null;
+        }
+    }
+
+    private static OpenOption directOption() {
+        try {
+            return (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption").getField("DIRECT").get(null);
+        } catch (ReflectiveOperationException | ClassCastException exception) {
+            return null;
+        }
+    }
+
+    private BufferPool alignedBuffers(int block) {
+        if (alignedBuffers == null) {
+            synchronized (this) {
+                if (alignedBuffers == null) {
+                    alignedBuffers = new BufferPool((bufferSize + block - 1) / block * block, 16, block);
+                }
+            }
+        }
+        return alignedBuffers;
+    }
+
+    private final class Sync {
+        private final FileChannel fileChannel;
+        private long synced;
+
+        private Sync(FileChannel fileChannel) {
+            this.fileChannel = fileChannel;
+        }
+
+        void written(long position) throws IOException {
+            if (sync.equals("interval") && position - synced >= syncInterval) {
+                fileChannel.force(false);
+                synced = position;
+            }
+        }
+
+        //Новый файл переживёт сбой питания, только если сброшена и запись о нём в каталоге
+        void close(Path target) throws IOException {
+            if (sync.equals("none")) {
+                return;
+            }
+            fileChannel.force(true);
+            try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException exception) {
+                //Каталог как канал открывается не везде (Windows) - там хватает force самого файла
+            }
+        }
+    }
+
+    //Тело из соединения: сначала то, что уже осело в буфере потока вместе с заголовком, затем сокет напрямую.
+    //Без канала (бинарный протокол, ограничение скорости) - поток через небольшой промежуточный массив
+    private static final class Source {
+        private final DataInputStream inputStream;
+        private final SocketChannel channel;
+        private final long size;
+        private long buffered;
+        private long received;
+        private byte[] staging;
+
+        private Source(DataInputStream inputStream, SocketChannel channel, long size) throws IOException {
+            this.inputStream = inputStream;
+            this.channel = channel;
+            this.size = size;
+            this.buffered = channel == null ? size : Math.min(inputStream.available(), size);
+        }
+
+        void fill(ByteBuffer target) throws IOException {
+            while (target.hasRemaining()) {
+                int count = buffered > 0 ? readStream(target) : readChannel(target);
+                if (count < 0) {
+                    throw new EOFException("Connection closed after " + received + " of " + size + " bytes");
+                }
+                received += count;
+            }
+        }
+
+        private int readStream(ByteBuffer target) throws IOException {
+            if (staging == null) {
+                staging = new byte[STAGING_SIZE];
+            }
+            int count = inputStream.read(staging, 0, (int) Math.min(Math.min(staging.length, target.remaining()), buffered));
+            if (count > 0) {
+                target.put(staging, 0, count);
+                buffered -= count;
+            }
+            return count;
+        }
+
+        private int readChannel(ByteBuffer target) throws IOException {
+            int count = channel.read(target);
+            //Сокет режима nio неблокирующий: ждём данных на временном селекторе
+            if (count == 0 && !channel.isBlocking()) {
+                TemporarySelectors.await(channel, SelectionKey.OP_READ);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryProtocolTest {
+    @Test void frameRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter(new DataOutputStream(bytes));
+        writer.write(BinaryProtocol.RESPONSE, BinaryProtocol.FLAG_END, 42, "done".getBytes(StandardCharsets.UTF_8));
+        writer.write(BinaryProtocol.DATA, (byte) 0, 7, new byte[]{1, 2, 3, 4, 5}, 1, 3);
+        assertEquals(2 * BinaryProtocol.HEADER_SIZE + 4 + 3, bytes.size());
+
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        BinaryProtocol.Frame response = BinaryProtocol.readFrame(inputStream);
+        assertEquals(BinaryProtocol.RESPONSE, response.type());
+        assertEquals(42, response.requestId());
+        assertTrue(response.isEnd());
+        assertEquals("done", new String(response.payload(), StandardCharsets.UTF_8));
+
+        BinaryProtocol.Frame data = BinaryProtocol.readFrame(inputStream);
+        assertEquals(BinaryProtocol.DATA, data.type());
+        assertEquals(7, data.requestId());
+        assertFalse(data.isEnd());
+        assertArrayEquals(new byte[]{2, 3, 4}, data.payload());
+    }
+
+    @Test void emptyAndMaximalPayloadsAreAccepted() throws IOException {
+        BinaryProtocol.validateHeader(BinaryProtocol.VERSION, 0);
+        BinaryProtocol.validateHeader(BinaryProtocol.VERSION, BinaryProtocol.MAX_PAYLOAD);
+        BinaryProtocol.Frame frame = BinaryProtocol.readFrame(header(BinaryProtocol.VERSION, 0));
+        assertEquals(0, frame.payload().length);
+    }
+
+    @Test void wrongVersionIsRejected() {
+        IOException exception = assertThrows(IOException.class, () -> BinaryProtocol.readFrame(header((byte) 1, 0)));
+        assertEquals("Unsupported protocol version: 1", exception.getMessage());
+    }
+
+    @Test void invalidLengthIsRejectedBeforeAllocation() {
+        //Длина проверяется до выделения буфера, иначе чужой заголовок заставил бы выделить до 2 ГБ
+        assertThrows(IOException.class, () -> BinaryProtocol.readFrame(header(BinaryProtocol.VERSION, -1)));
+        assertThrows(IOException.class, () -> BinaryProtocol.readFrame(header(BinaryProtocol.VERSION, BinaryProtocol.MAX_PAYLOAD + 1)));
+        assertThrows(IOException.class, () -> BinaryProtocol.readFrame(header(BinaryProtocol.VERSION, Integer.MAX_VALUE)));
+    }
+
+    @Test void truncatedFrameIsEof() {
+        assertThrows(EOFException.class, () -> BinaryProtocol.readFrame(header(BinaryProtocol.VERSION, 10)));
+        assertThrows(EOFException.class, () -> BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(new byte[]{1, 1, 0}))));
+    }
+
+    //Заголовок COMMAND с id 1 и заявленной длиной, без тела
+    private static DataInputStream header(byte version, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeByte(version);
+        outputStream.writeByte(BinaryProtocol.COMMAND);
+        outputStream.writeByte(0);
+        outputStream.writeInt(1);
+        outputStream.writeInt(length);
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
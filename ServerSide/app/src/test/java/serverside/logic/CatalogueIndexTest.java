@@ -0,0 +1,42 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogueIndexTest {
+    @TempDir
+    Path root;
+
+    @Test void serverFilesAreRecognised() {
+        assertTrue(CatalogueIndex.isServerFile("movie.mkv.part"));
+        assertTrue(CatalogueIndex.isServerFile("movie.mkv.part.manifest"));
+        assertTrue(CatalogueIndex.isServerFile("movie.mkv.part.manifest.tmp"));
+        assertTrue(CatalogueIndex.isServerFile("movie.mkv.dedup.tmp"));
+        assertFalse(CatalogueIndex.isServerFile("movie.mkv"));
+        assertFalse(CatalogueIndex.isServerFile("notes.tmp"));
+    }
+
+    @Test void serverFilesAreNotIndexed() throws IOException {
+        Files.createDirectories(root.resolve("sub"));
+        for (String name : List.of("a.bin", "a.bin.dedup.tmp", "sub/b.bin", "sub/c.bin.part", "sub/c.bin.part.manifest")) {
+            Files.writeString(root.resolve(name), "x");
+        }
+        try (CatalogueIndex index = new CatalogueIndex(null)) {
+            index.add("cat", root);
+            CatalogueIndex.Catalogue catalogue = index.get("cat");
+            assertTrue(catalogue.isLive());
+            assertEquals(List.of("a.bin", "sub/b.bin"), List.copyOf(catalogue.filesAfter(null).keySet()));
+            assertTrue(catalogue.findByName("c.bin.part").isEmpty());
+        }
+        assertTrue(CatalogueIndex.isCatalogueFile(root.resolve("a.bin")));
+        assertFalse(CatalogueIndex.isCatalogueFile(root.resolve("a.bin.dedup.tmp")));
+        assertFalse(CatalogueIndex.isCatalogueFile(root.resolve("sub")));
+    }
+}
@@ -0,0 +1,78 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentChunkerTest {
+    @Test void shortTailIsOneChunk() {
+        byte[] data = new byte[ContentChunker.MIN_SIZE];
+        assertEquals(ContentChunker.MIN_SIZE, ContentChunker.cut(data, 0, data.length));
+        assertEquals(10, ContentChunker.cut(data, 5, 10));
+    }
+
+    @Test void chunksStayWithinBounds() {
+        byte[] data = random(4 * 1024 * 1024, 1);
+        List<Integer> lengths = lengths(data);
+        for (int i = 0; i < lengths.size(); i++) {
+            assertTrue(lengths.get(i) <= ContentChunker.MAX_SIZE, "chunk " + i + " is too long: " + lengths.get(i));
+            if (i < lengths.size() - 1) {
+                assertTrue(lengths.get(i) > ContentChunker.MIN_SIZE, "chunk " + i + " is too short: " + lengths.get(i));
+            }
+        }
+        assertEquals(data.length, lengths.stream().mapToInt(Integer::intValue).sum());
+    }
+
+    @Test void zeroFilledDataIsCutAtMaxSize() {
+        //На нулях хэш не даёт границы, кусок обрывается на MAX_SIZE
+        byte[] data = new byte[ContentChunker.MAX_SIZE * 3];
+        assertEquals(List.of(ContentChunker.MAX_SIZE, ContentChunker.MAX_SIZE, ContentChunker.MAX_SIZE), lengths(data));
+    }
+
+    @Test void insertShiftsOnlyNeighbouringBoundaries() {
+        byte[] original = random(4 * 1024 * 1024, 2);
+        byte[] inserted = new byte[original.length + 100];
+        System.arraycopy(original, 0, inserted, 0, 1000);
+        System.arraycopy(random(100, 3), 0, inserted, 1000, 100);
+        System.arraycopy(original, 1000, inserted, 1100, original.length - 1000);
+
+        Set<Long> before = boundaries(original, 0);
+        //Границы после вставки сдвигаем обратно, чтобы сравнивать с исходным файлом
+        Set<Long> after = boundaries(inserted, -100);
+        Set<Long> kept = new HashSet<>(before);
+        kept.retainAll(after);
+        assertTrue(before.size() - kept.size() <= 2, "only " + kept.size() + " of " + before.size() + " boundaries survived");
+    }
+
+    private static List<Integer> lengths(byte[] data) {
+        List<Integer> lengths = new ArrayList<>();
+        for (int offset = 0; offset < data.length; ) {
+            int length = ContentChunker.cut(data, offset, data.length - offset);
+            lengths.add(length);
+            offset += length;
+        }
+        return lengths;
+    }
+
+    private static Set<Long> boundaries(byte[] data, long shift) {
+        Set<Long> boundaries = new HashSet<>();
+        long end = 0;
+        for (int length : lengths(data)) {
+            end += length;
+            boundaries.add(end + shift);
+        }
+        return boundaries;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,124 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test void writeThenCopyRestoresContent() throws IOException {
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        byte[] data = random(1024 * 1024 + 123, 1);
+        Path file = directory.resolve("file.bin");
+        store.write(new ByteArrayInputStream(data), data.length, file);
+
+        DedupStore.Manifest manifest = store.readManifest(file);
+        assertNotNull(manifest);
+        assertEquals(data.length, manifest.size());
+        assertEquals(data.length, manifest.chunks().stream().mapToLong(DedupStore.Chunk::length).sum());
+        assertArrayEquals(data, copy(store, manifest, 0, data.length));
+        assertArrayEquals(Arrays.copyOfRange(data, 100_000, 400_000), copy(store, manifest, 100_000, 300_000));
+    }
+
+    @Test void sameContentIsStoredOnce() throws IOException {
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        byte[] data = random(512 * 1024, 2);
+        store.write(new ByteArrayInputStream(data), data.length, directory.resolve("first.bin"));
+        long chunks = chunkCount();
+        store.write(new ByteArrayInputStream(data), data.length, directory.resolve("second.bin"));
+
+        assertEquals(chunks, chunkCount());
+        assertEquals(store.readManifest(directory.resolve("first.bin")), store.readManifest(directory.resolve("second.bin")));
+    }
+
+    @Test void writeManifestRoundTrip() throws IOException {
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        byte[] data = "hello, dedup".getBytes(StandardCharsets.UTF_8);
+        String hash = DedupStore.hash(data, 0, data.length);
+        assertTrue(store.put(hash, data, 0, data.length));
+        assertFalse(store.put(hash, data, 1, data.length - 1));
+
+        DedupStore.Manifest manifest = new DedupStore.Manifest(data.length * 2L,
+                List.of(new DedupStore.Chunk(hash, data.length), new DedupStore.Chunk(hash, data.length)));
+        Path file = directory.resolve("twice.txt");
+        store.writeManifest(file, manifest);
+
+        assertEquals(manifest, store.readManifest(file));
+        assertEquals("hello, dedup" + "hello, dedup", new String(copy(store, manifest, 0, data.length * 2L), StandardCharsets.UTF_8));
+    }
+
+    @Test void importFileReplacesPlainFile() throws IOException {
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        byte[] data = random(300 * 1024, 3);
+        Path file = directory.resolve("uploaded.bin");
+        Files.write(file, data);
+        assertNull(store.readManifest(file));
+
+        store.importFile(file);
+        assertArrayEquals(data, copy(store, store.readManifest(file), 0, data.length));
+    }
+
+    @Test void unmarkedManifestIsPlainFile() throws IOException {
+        //Файл клиента с сигнатурой манифеста не должен читаться как манифест
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        Path file = directory.resolve("fake.txt");
+        Files.writeString(file, "#dedup-manifest 1\nsize 4\n" + "0".repeat(64) + " 4\n");
+        assertNull(store.readManifest(file));
+    }
+
+    @Test void changedManifestIsPlainFile() throws IOException {
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        byte[] data = random(64 * 1024, 4);
+        Path file = directory.resolve("file.bin");
+        store.write(new ByteArrayInputStream(data), data.length, file);
+        Files.writeString(file, "\n", StandardOpenOption.APPEND);
+        assertNull(store.readManifest(file));
+    }
+
+    @Test void plainModeIgnoresManifests() throws IOException {
+        Path chunks = directory.resolve("chunks");
+        byte[] data = random(64 * 1024, 5);
+        Path file = directory.resolve("file.bin");
+        new DedupStore(chunks, true).write(new ByteArrayInputStream(data), data.length, file);
+        assertNull(new DedupStore(chunks, false).readManifest(file));
+    }
+
+    @Test void invalidChunkHashIsRejected() {
+        DedupStore store = new DedupStore(directory.resolve("chunks"), true);
+        assertThrows(IllegalArgumentException.class, () -> store.contains("../../etc/passwd"));
+    }
+
+    private long chunkCount() throws IOException {
+        Path chunks = directory.resolve("chunks");
+        try (Stream<Path> files = Files.walk(chunks)) {
+            return files.filter(Files::isRegularFile).filter(i -> !i.startsWith(chunks.resolve("manifests"))).count();
+        }
+    }
+
+    private static byte[] copy(DedupStore store, DedupStore.Manifest manifest, long offset, long count) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        store.copy(manifest, offset, count, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
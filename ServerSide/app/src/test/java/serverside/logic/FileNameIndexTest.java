@@ -0,0 +1,88 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileNameIndexTest {
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    private final FileNameIndex index = new FileNameIndex(names);
+
+    FileNameIndexTest() {
+        names.addAll(List.of("report-2023.txt", "report-2024.txt", "report.pdf", "notes.txt", "a.c", "ab.c", "photo (1).jpg"));
+        index.rebuild();
+    }
+
+    @Test void prefix() {
+        assertEquals(List.of("report-2023.txt", "report-2024.txt", "report.pdf"), index.find("report*", 10));
+        assertEquals(List.of("a.c", "ab.c"), index.find("a*", 10));
+    }
+
+    @Test void glob() {
+        assertEquals(List.of("notes.txt", "report-2023.txt", "report-2024.txt"), index.find("*.txt", 10));
+        assertEquals(List.of("report-2023.txt", "report-2024.txt"), index.find("report-202?.txt", 10));
+        assertEquals(List.of("a.c", "ab.c"), index.find("*.c", 10));
+    }
+
+    @Test void substring() {
+        assertEquals(List.of("report-2024.txt"), index.find("*2024*", 10));
+        assertEquals(List.of("report-2023.txt", "report-2024.txt", "report.pdf"), index.find("*port*", 10));
+        assertEquals(List.of(), index.find("*missing*", 10));
+    }
+
+    @Test void exactName() {
+        assertEquals(List.of("notes.txt"), index.find("notes.txt", 10));
+        assertEquals(List.of(), index.find("notes", 10));
+    }
+
+    @Test void regexCharactersAreLiteral() {
+        assertEquals(List.of("photo (1).jpg"), index.find("photo (?).jpg", 10));
+        assertEquals(List.of(), index.find("report.???-*", 10));
+    }
+
+    @Test void limit() {
+        assertEquals(List.of("report-2023.txt", "report-2024.txt"), index.find("*port*", 2));
+        assertEquals(List.of("notes.txt"), index.find("*.txt", 1));
+    }
+
+    @Test void namesAddedAfterBuildAreFoundFromDelta() {
+        names.add("draft-report.txt");
+        index.onNameAdded("draft-report.txt");
+        names.add("a.cpp");
+        index.onNameAdded("a.cpp");
+
+        assertEquals(List.of("draft-report.txt", "report-2023.txt", "report-2024.txt", "report.pdf"), index.find("*report*", 10));
+        assertEquals(List.of("a.c", "a.cpp", "ab.c"), index.find("a*", 10));
+        assertEquals(9, index.nameCount());
+
+        index.rebuild();
+        assertEquals(List.of("draft-report.txt", "report-2023.txt", "report-2024.txt", "report.pdf"), index.find("*report*", 10));
+        assertEquals(9, index.nameCount());
+    }
+
+    @Test void removedNamesAreNotReturned() {
+        names.remove("report.pdf");
+        index.onNameRemoved("report.pdf");
+        assertEquals(List.of("report-2023.txt", "report-2024.txt"), index.find("report*", 10));
+
+        names.add("new.txt");
+        index.onNameAdded("new.txt");
+        names.remove("new.txt");
+        index.onNameRemoved("new.txt");
+        assertEquals(List.of("notes.txt", "report-2023.txt", "report-2024.txt"), index.find("*.txt", 10));
+    }
+
+    @Test void patterns() {
+        assertTrue(FileNameIndex.isPattern("*.txt"));
+        assertTrue(FileNameIndex.isPattern("file?.txt"));
+        assertFalse(FileNameIndex.isPattern("report 2024"));
+        assertTrue(FileNameIndex.globMatcher("a*b?").test("a-long-bX"));
+        assertFalse(FileNameIndex.globMatcher("a*b?").test("a-long-b"));
+        assertTrue(FileNameIndex.globMatcher("a.b").test("a.b"));
+        assertFalse(FileNameIndex.globMatcher("a.b").test("axb"));
+    }
+}
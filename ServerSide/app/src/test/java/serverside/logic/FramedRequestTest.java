@@ -0,0 +1,77 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FramedRequestTest {
+    private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    private final FramedRequest request = new FramedRequest(7, new BinaryProtocol.FrameWriter(new DataOutputStream(sent)));
+
+    @Test void bodyIsReadUntilEnd() throws IOException {
+        request.offer(data(new byte[]{1, 2, 3}, false));
+        request.offer(data(new byte[]{4}, true));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, request.input().readAllBytes());
+    }
+
+    @Test void fullWindowIsAcceptedWithoutReading() throws IOException {
+        //Читатель кадров не ждёт команду: всё окно ложится в очередь, даже если тело никто не читает
+        byte[] chunk = new byte[BinaryProtocol.WINDOW / 4];
+        for (int i = 0; i < 4; i++) {
+            request.offer(data(chunk, i == 3));
+        }
+        assertEquals(BinaryProtocol.WINDOW, request.input().readAllBytes().length);
+    }
+
+    @Test void overflowFailsOnlyThisRequest() throws IOException {
+        request.offer(data(new byte[BinaryProtocol.WINDOW], false));
+        request.offer(data(new byte[1], false));
+        //Кадры после переполнения отбрасываются
+        request.offer(data(new byte[1], true));
+        byte[] buffer = new byte[BinaryProtocol.WINDOW];
+        request.input().readFully(buffer);
+        IOException exception = assertThrows(IOException.class, () -> request.input().read());
+        assertEquals("Request body exceeds the flow control window", exception.getMessage());
+    }
+
+    @Test void readingReturnsCredit() throws IOException {
+        byte[] chunk = new byte[BinaryProtocol.WINDOW / 4];
+        for (int i = 0; i < 4; i++) {
+            request.offer(data(chunk, false));
+        }
+        request.input().readFully(new byte[BinaryProtocol.WINDOW / 2]);
+        List<Integer> credits = credits();
+        assertFalse(credits.isEmpty());
+        int granted = credits.stream().mapToInt(Integer::intValue).sum();
+        assertTrue(granted >= BinaryProtocol.WINDOW / 4 && granted <= BinaryProtocol.WINDOW / 2, "granted " + granted);
+        //Возвращённый кредит позволяет прислать ещё столько же сверх окна
+        request.offer(data(new byte[granted], true));
+        assertEquals(BinaryProtocol.WINDOW / 2 + granted, request.input().readAllBytes().length);
+    }
+
+    private List<Integer> credits() throws IOException {
+        List<Integer> credits = new ArrayList<>();
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+        while (inputStream.available() > 0) {
+            BinaryProtocol.Frame frame = BinaryProtocol.readFrame(inputStream);
+            assertEquals(7, frame.requestId());
+            if (frame.type() == BinaryProtocol.CREDIT) {
+                credits.add(ByteBuffer.wrap(frame.payload()).getInt());
+            }
+        }
+        return credits;
+    }
+
+    private static BinaryProtocol.Frame data(byte[] payload, boolean end) {
+        return new BinaryProtocol.Frame(BinaryProtocol.DATA, end ? BinaryProtocol.FLAG_END : 0, 7, payload);
+    }
+}
@@ -0,0 +1,67 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    @Test void smallValuesHaveOwnBuckets() {
+        for (int value = 0; value < 32; value++) {
+            assertEquals(value, LatencyHistogram.bucketOf(value));
+            assertEquals(value, LatencyHistogram.highestValueOf(value));
+        }
+    }
+
+    @Test void bucketsAreContiguous() {
+        //Верхняя граница корзины лежит в ней самой, следующее значение - уже в следующей корзине
+        int last = LatencyHistogram.bucketOf(MAX_VALUE);
+        for (int bucket = 0; bucket < last; bucket++) {
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(highest), "highest value of bucket " + bucket);
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(highest + 1), "value after bucket " + bucket);
+        }
+        assertEquals(MAX_VALUE, LatencyHistogram.highestValueOf(last));
+    }
+
+    @Test void powerOfTwoBoundaries() {
+        assertEquals(32, LatencyHistogram.bucketOf(32));
+        assertEquals(32, LatencyHistogram.bucketOf(33));
+        assertEquals(33, LatencyHistogram.bucketOf(34));
+        assertEquals(33, LatencyHistogram.highestValueOf(32));
+        assertEquals(63, LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(63)));
+        //16 корзин на каждую степень двойки
+        assertEquals(32, LatencyHistogram.bucketOf(1L << 20) - LatencyHistogram.bucketOf(1L << 18));
+    }
+
+    @Test void bucketWidthKeepsRelativeErrorSmall() {
+        for (long value = 32; value < MAX_VALUE; value = value * 3 / 2 + 1) {
+            long highest = LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(value));
+            assertTrue(highest >= value && highest - value <= value / 16, "value " + value + " reported as " + highest);
+        }
+    }
+
+    @Test void recordClampsAndTracksTotals() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        histogram.recordNanos(3_000);
+        assertEquals(3, histogram.count());
+        assertEquals(MAX_VALUE, histogram.maxMicros());
+        assertEquals(MAX_VALUE + 3, histogram.sumMicros());
+        assertEquals(MAX_VALUE, histogram.percentileMicros(1));
+    }
+
+    @Test void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(0.5));
+        for (int value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(5_000, histogram.percentileMicros(0.5), 5_000 / 16.0);
+        assertEquals(9_900, histogram.percentileMicros(0.99), 9_900 / 16.0);
+        assertEquals(10_000, histogram.percentileMicros(1));
+        assertEquals(5_000.5, histogram.meanMicros(), 1e-9);
+    }
+}
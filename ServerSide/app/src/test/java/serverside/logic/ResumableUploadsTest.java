@@ -0,0 +1,119 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResumableUploadsTest {
+    @TempDir
+    Path catalogue;
+
+    @Test void nothingReceived() {
+        assertEquals("0", ResumableUploads.missingRanges(new BitSet(), 1));
+        assertEquals("0-9", ResumableUploads.missingRanges(new BitSet(), 10));
+    }
+
+    @Test void everythingReceived() {
+        BitSet present = new BitSet();
+        present.set(0, 10);
+        assertEquals("none", ResumableUploads.missingRanges(present, 10));
+        assertEquals("none", ResumableUploads.missingRanges(new BitSet(), 0));
+    }
+
+    @Test void gapsBecomeRanges() {
+        BitSet present = new BitSet();
+        present.set(0);
+        present.set(1);
+        present.set(4);
+        present.set(7, 9);
+        assertEquals("2-3,5-6,9", ResumableUploads.missingRanges(present, 10));
+    }
+
+    @Test void bitsBeyondCountAreIgnored() {
+        BitSet present = new BitSet();
+        present.set(1);
+        present.set(20);
+        assertEquals("0,2-4", ResumableUploads.missingRanges(present, 5));
+    }
+
+    @Test void sameUploadResumesSameSession() throws IOException {
+        ResumableUploads uploads = new ResumableUploads();
+        ResumableUploads.Upload first = uploads.open(catalogue, "file.bin", 1000, 100);
+        assertEquals("0-9", first.missingRanges());
+        assertEquals(first.id(), uploads.open(catalogue, "file.bin", 1000, 100).id());
+        //Другой размер - другая загрузка, прежняя сессия заменяется
+        assertNotEquals(first.id(), uploads.open(catalogue, "file.bin", 2000, 100).id());
+        assertNull(uploads.find(first.id()));
+    }
+
+    @Test void invalidTargetsAreRejected() throws IOException {
+        ResumableUploads uploads = new ResumableUploads();
+        assertThrows(IllegalArgumentException.class, () -> uploads.open(catalogue, "../outside.bin", 10, 10));
+        assertThrows(IllegalArgumentException.class, () -> uploads.open(catalogue, ".", 10, 10));
+        assertThrows(IllegalArgumentException.class, () -> uploads.open(catalogue, "file.bin", 10, 0));
+        //Имена служебных файлов заняты самой докачкой
+        assertThrows(IllegalArgumentException.class, () -> uploads.open(catalogue, "file.bin.part", 10, 10));
+        assertThrows(IllegalArgumentException.class, () -> uploads.open(catalogue, "file.bin.part.manifest", 10, 10));
+        assertThrows(IllegalArgumentException.class, () -> uploads.open(catalogue, "file.bin", 10, ResumableUploads.MAX_CHUNK_SIZE + 1));
+        Files.writeString(catalogue.resolve("exists.txt"), "x");
+        assertThrows(FileAlreadyExistsException.class, () -> uploads.open(catalogue, "exists.txt", 10, 10));
+    }
+
+    @Test void uploadFilesAreRecognised() {
+        assertTrue(ResumableUploads.isUploadFile("a.bin.part"));
+        assertTrue(ResumableUploads.isUploadFile("a.bin.part.manifest"));
+        assertTrue(ResumableUploads.isUploadFile("a.bin.part.manifest.tmp"));
+        assertFalse(ResumableUploads.isUploadFile("a.bin"));
+        assertFalse(ResumableUploads.isUploadFile("part"));
+    }
+
+    @Test void expiredSessionsAreSwept() throws IOException {
+        ResumableUploads uploads = new ResumableUploads(TimeUnit.HOURS.toMillis(1));
+        ResumableUploads.Upload stale = uploads.open(catalogue, "stale.bin", 100, 10);
+        ResumableUploads.Upload fresh = uploads.open(catalogue, "fresh.bin", 100, 10);
+        age(catalogue.resolve("stale.bin.part.manifest"));
+        assertEquals(1, uploads.sweep(List.of(catalogue)));
+        assertNull(uploads.find(stale.id()));
+        assertFalse(Files.exists(catalogue.resolve("stale.bin.part")));
+        assertFalse(Files.exists(catalogue.resolve("stale.bin.part.manifest")));
+        assertSame(fresh, uploads.find(fresh.id()));
+        assertTrue(Files.exists(catalogue.resolve("fresh.bin.part")));
+    }
+
+    @Test void leftoversFromPreviousRunAreSwept() throws IOException {
+        //Сессии прошлого запуска есть только на диске
+        new ResumableUploads().open(catalogue, "old.bin", 100, 10);
+        Files.writeString(catalogue.resolve("old.bin.part.manifest.tmp"), "x");
+        for (String name : List.of("old.bin.part", "old.bin.part.manifest", "old.bin.part.manifest.tmp")) {
+            age(catalogue.resolve(name));
+        }
+        Files.writeString(catalogue.resolve("kept.bin"), "x");
+        age(catalogue.resolve("kept.bin"));
+        assertEquals(1, new ResumableUploads(TimeUnit.HOURS.toMillis(1)).sweep(List.of(catalogue)));
+        try (var files = Files.list(catalogue)) {
+            assertEquals(List.of(catalogue.resolve("kept.bin")), files.toList());
+        }
+    }
+
+    @Test void zeroExpiryKeepsSessions() throws IOException {
+        ResumableUploads uploads = new ResumableUploads(0);
+        ResumableUploads.Upload upload = uploads.open(catalogue, "file.bin", 100, 10);
+        age(catalogue.resolve("file.bin.part.manifest"));
+        assertEquals(0, uploads.sweep(List.of(catalogue)));
+        assertSame(upload, uploads.find(upload.id()));
+    }
+
+    private static void age(Path file) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    }
+}
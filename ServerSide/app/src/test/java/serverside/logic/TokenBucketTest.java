@@ -0,0 +1,46 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    @Test void burstUpToCapacityDoesNotWait() throws Exception {
+        TokenBucket bucket = new TokenBucket(1_000_000, 100_000);
+        long start = System.nanoTime();
+        bucket.acquire(60_000);
+        bucket.acquire(40_000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+    }
+
+    @Test void debtIsPaidAtTheConfiguredRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1_000_000, 100_000);
+        bucket.acquire(100_000);
+        long start = System.nanoTime();
+        //Ведро пусто: 200 КБ при 1 МБ/с - около 200 мс
+        bucket.acquire(200_000);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 150 && elapsed < 1000, "waited " + elapsed + " ms");
+    }
+
+    @Test void chunkLargerThanCapacityIsNotBlockedForever() throws Exception {
+        TokenBucket bucket = new TokenBucket(10_000_000, 1_000);
+        long start = System.nanoTime();
+        bucket.acquire(1_000_000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test void interruptWhileWaiting() {
+        TokenBucket bucket = new TokenBucket(1_000, 1_000);
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(InterruptedIOException.class, () -> bucket.acquire(1_000_000));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package serverside.logic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferSchedulerTest {
+    private static final int QUANTUM = 64 * 1024;
+
+    @Test void chunkLargerThanQuantumIsGranted() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1, 1024);
+        TransferScheduler.Flow flow = scheduler.open();
+        flow.acquire(QUANTUM);
+        flow.acquire(QUANTUM);
+        flow.close();
+    }
+
+    @Test void slotsLimitConcurrentChunks() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1, QUANTUM);
+        TransferScheduler.Flow first = scheduler.open();
+        first.acquire(QUANTUM);
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread second = new Thread(() -> {
+            TransferScheduler.Flow flow = scheduler.open();
+            try {
+                flow.acquire(QUANTUM);
+                granted.countDown();
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            } finally {
+                flow.close();
+            }
+        });
+        second.start();
+        assertFalse(granted.await(200, TimeUnit.MILLISECONDS), "second flow ran while the only slot was taken");
+        first.close();
+        assertTrue(granted.await(5, TimeUnit.SECONDS));
+        second.join();
+    }
+
+    @Test void flowsShareBytesEvenlyWhateverTheirChunkSize() throws Exception {
+        //Один слот на две передачи: куски по 64 КБ и по 8 КБ должны получить поровну байт, а не поровну ходов
+        TransferScheduler scheduler = new TransferScheduler(1, QUANTUM);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong large = new AtomicLong();
+        AtomicLong small = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(2);
+        Thread first = transfer(scheduler, QUANTUM, large, started, stop);
+        Thread second = transfer(scheduler, 8 * 1024, small, started, stop);
+        TimeUnit.MILLISECONDS.sleep(500);
+        stop.set(true);
+        first.join();
+        second.join();
+
+        double ratio = (double) large.get() / small.get();
+        assertTrue(ratio > 0.8 && ratio < 1.25, "bytes granted 64K flow/8K flow = " + ratio);
+    }
+
+    private static Thread transfer(TransferScheduler scheduler, int chunk, AtomicLong bytes, CountDownLatch started, AtomicBoolean stop) {
+        Thread thread = new Thread(() -> {
+            TransferScheduler.Flow flow = scheduler.open();
+            try {
+                started.countDown();
+                started.await();
+                while (!stop.get()) {
+                    flow.acquire(chunk);
+                    bytes.addAndGet(chunk);
+                    //Кусок "пишется", пока слот занят
+                    TimeUnit.MICROSECONDS.sleep(50);
+                }
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            } finally {
+                flow.close();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}